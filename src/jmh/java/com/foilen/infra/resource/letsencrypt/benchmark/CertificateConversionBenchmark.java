@@ -0,0 +1,82 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.benchmark;
+
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
+import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
+import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
+import com.foilen.smalltools.crypt.spongycastle.cert.CertificateDetails;
+import com.foilen.smalltools.crypt.spongycastle.cert.RSACertificate;
+import com.foilen.smalltools.tools.DateTools;
+import com.foilen.smalltools.tools.ResourceTools;
+
+/**
+ * The conversion of the certificates received from Let's Encrypt to WebsiteCertificates (with the bundled CA certificate) by batches, like at the end of the renewals.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CertificateConversionBenchmark {
+
+    private static final String CA_CERTIFICATE_TEXT = ResourceTools.getResourceAsString("/com/foilen/infra/resource/letsencrypt/lets-encrypt-x3-cross-signed.pem");
+
+    @Param({ "RSA_4096", "EC_P256" })
+    private KeyType keyType;
+
+    @Param({ "1", "10", "100" })
+    private int batchSize;
+
+    private CertificateKeys keys;
+    private X509Certificate certificate;
+
+    @Benchmark
+    public void convert(Blackhole blackhole) {
+        for (int i = 0; i < batchSize; ++i) {
+            blackhole.consume(keys.toWebsiteCertificate(CA_CERTIFICATE_TEXT, certificate));
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        keys = CertificateKeys.generate(keyType);
+
+        // A certificate like the ones received (the signing keys do not change the conversion cost)
+        AsymmetricKeys caKeys = RSACrypt.RSA_CRYPT.generateKeyPair(2048);
+        CertificateDetails certificateDetails = new CertificateDetails() //
+                .setCommonName("example.com") //
+                .addSanDns("example.com", "www.example.com") //
+                .setEndDate(DateTools.addDate(Calendar.DAY_OF_YEAR, 90));
+        RSACertificate rsaCertificate = new RSACertificate(caKeys).selfSign(certificateDetails);
+        certificate = new JcaX509CertificateConverter().getCertificate(rsaCertificate.getCertificate());
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shredzone.acme4j.util.CSRBuilder;
+
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
+
+/**
+ * The creation of the certificate signing request that is sent to finalize an order (sign and encode) for different key types and amount of domain names.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CsrBenchmark {
+
+    @Param({ "RSA_2048", "RSA_4096", "EC_P256", "EC_P384" })
+    private KeyType keyType;
+
+    @Param({ "1", "10", "100" })
+    private int domainCount;
+
+    private CertificateKeys keys;
+    private List<String> domainNames = new ArrayList<>();
+
+    @Benchmark
+    public byte[] buildCsr() throws Exception {
+        CSRBuilder csrb = new CSRBuilder();
+        csrb.addDomains(domainNames);
+        csrb.sign(keys.getKeyPair());
+        return csrb.getEncoded();
+    }
+
+    @Setup
+    public void setup() {
+        keys = CertificateKeys.generate(keyType);
+        domainNames.clear();
+        for (int i = 0; i < domainCount; ++i) {
+            domainNames.add("d" + i + ".example.com");
+        }
+    }
+
+}
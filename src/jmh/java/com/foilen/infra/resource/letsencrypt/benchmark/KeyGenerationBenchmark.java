@@ -0,0 +1,53 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
+import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
+import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
+
+/**
+ * The generation of the keys of a certificate. The RSA keys are generated directly (without the pool) to see the real cost.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyGenerationBenchmark {
+
+    @Param({ "RSA_2048", "RSA_3072", "RSA_4096", "EC_P256", "EC_P384" })
+    private KeyType keyType;
+
+    @Benchmark
+    public Object generate() {
+        if (keyType.isRsa()) {
+            AsymmetricKeys keys = RSACrypt.RSA_CRYPT.generateKeyPair(keyType.getKeySize());
+            return keys;
+        }
+        return CertificateKeys.generate(keyType);
+    }
+
+}
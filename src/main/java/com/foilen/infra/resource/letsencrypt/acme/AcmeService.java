@@ -9,18 +9,110 @@
  */
 package com.foilen.infra.resource.letsencrypt.acme;
 
+import java.net.URL;
+import java.time.Instant;
+import java.util.List;
+
 import org.shredzone.acme4j.Order;
+import org.shredzone.acme4j.Status;
 import org.shredzone.acme4j.challenge.Dns01Challenge;
 
-import com.foilen.smalltools.crypt.spongycastle.cert.RSACertificate;
 import com.foilen.smalltools.tuple.Tuple2;
 
 public interface AcmeService {
 
+    /**
+     * The maximum amount of domain names Lets Encrypt accepts in a single order.
+     */
+    int MAX_DOMAINS_PER_ORDER = 100;
+
+    /**
+     * Get the non-blocking version that uses this service for the single request steps.
+     *
+     * @return the async service
+     */
+    AsyncAcmeService async();
+
+    /**
+     * Trigger the challenge and wait (blocking) until it is valid. See {@link AsyncAcmeService#challengeComplete(Dns01Challenge)} to not block.
+     *
+     * @param dnsChallenge
+     *            the challenge
+     */
     void challengeComplete(Dns01Challenge dnsChallenge);
 
-    Tuple2<Order, Dns01Challenge> challengeInit(String domainName);
+    /**
+     * Create a single order for all the domain names (SAN) and get the DNS challenge of each of them.
+     *
+     * @param domainNames
+     *            the domain names (between 1 and {@link #MAX_DOMAINS_PER_ORDER})
+     * @return the order and the challenges
+     */
+    OrderAndChallenges challengeInit(List<String> domainNames);
+
+    /**
+     * Get back an existing order and the DNS challenge of each of its domain names.
+     *
+     * @param orderLocation
+     *            the location of the order
+     * @return the order and the challenges
+     */
+    OrderAndChallenges challengeResume(URL orderLocation);
+
+    /**
+     * Tell the server the challenge is ready to be validated. Does not wait.
+     *
+     * @param dnsChallenge
+     *            the challenge
+     */
+    void challengeTrigger(Dns01Challenge dnsChallenge);
+
+    /**
+     * Get the latest status of the challenge. Does not wait.
+     *
+     * @param dnsChallenge
+     *            the challenge
+     * @return the status and the Retry-After sent by the server (or null)
+     */
+    Tuple2<Status, Instant> challengeUpdate(Dns01Challenge dnsChallenge);
+
+    /**
+     * Get the certificate of an order that is valid.
+     *
+     * @param order
+     *            the valid order
+     * @return the certificate and the intermediates returned by the server
+     */
+    CertificateChain orderCertificate(Order order);
+
+    /**
+     * Send the certificate request to finalize the order. Does not wait.
+     *
+     * @param order
+     *            the order with all its challenges completed
+     * @param certificateRequest
+     *            the CSR
+     */
+    void orderExecute(Order order, byte[] certificateRequest);
+
+    /**
+     * Get the latest status of the order. Does not wait.
+     *
+     * @param order
+     *            the order
+     * @return the status and the Retry-After sent by the server (or null)
+     */
+    Tuple2<Status, Instant> orderUpdate(Order order);
 
-    RSACertificate requestCertificate(Order order, byte[] certificateRequest);
+    /**
+     * Finalize the order and wait (blocking) until the certificate is issued. See {@link AsyncAcmeService#requestCertificate(Order, byte[])} to not block.
+     *
+     * @param order
+     *            the order with all its challenges completed
+     * @param certificateRequest
+     *            the CSR
+     * @return the certificate and the intermediates returned by the server
+     */
+    CertificateChain requestCertificate(Order order, byte[] certificateRequest);
 
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foilen.infra.resource.letsencrypt.plugin.LetsencryptConfig;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+
+/**
+ * Keeps the logged in {@link AcmeService} for each ACME url and account key to only get the directory and login once per process.
+ */
+public abstract class AcmeServiceCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AcmeServiceCache.class);
+
+    private static final Map<String, AcmeService> acmeServiceByKey = new ConcurrentHashMap<>();
+
+    private static volatile Function<LetsencryptConfig, AcmeService> acmeServiceFactory = AcmeServiceImpl::new;
+
+    /**
+     * Get the cached service or create and log in a new one.
+     *
+     * @param config
+     *            the config
+     * @return the service
+     */
+    public static AcmeService getAcmeService(LetsencryptConfig config) {
+        return acmeServiceByKey.computeIfAbsent(getKey(config), key -> {
+            LOGGER.info("No AcmeService in the cache for {}. Creating it", config.getUrl());
+            return acmeServiceFactory.apply(config);
+        });
+    }
+
+    protected static String getKey(LetsencryptConfig config) {
+        String accountKeypairPem = Strings.nullToEmpty(config.getAccountKeypairPem());
+        return config.getUrl() + "|" + Hashing.sha256().hashString(accountKeypairPem, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Remove the service of that config.
+     *
+     * @param config
+     *            the config
+     */
+    public static void invalidate(LetsencryptConfig config) {
+        if (acmeServiceByKey.remove(getKey(config)) != null) {
+            LOGGER.info("Removed the AcmeService from the cache for {}", config.getUrl());
+        }
+    }
+
+    /**
+     * Remove all the services.
+     */
+    public static void invalidateAll() {
+        LOGGER.info("Removing all the AcmeServices from the cache");
+        acmeServiceByKey.clear();
+    }
+
+    /**
+     * Change how the services are created (e.g. to use a local ACME server in the tests). The services already in the cache are removed.
+     *
+     * @param acmeServiceFactory
+     *            creates and logs in a service for a config
+     */
+    public static void setAcmeServiceFactory(Function<LetsencryptConfig, AcmeService> acmeServiceFactory) {
+        AcmeServiceCache.acmeServiceFactory = acmeServiceFactory;
+        invalidateAll();
+    }
+
+}
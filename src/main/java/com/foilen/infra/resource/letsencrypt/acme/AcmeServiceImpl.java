@@ -12,33 +12,32 @@ package com.foilen.infra.resource.letsencrypt.acme;
 import java.net.URI;
 import java.net.URL;
 import java.security.KeyPair;
-import java.security.cert.X509Certificate;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import org.shredzone.acme4j.Account;
 import org.shredzone.acme4j.AccountBuilder;
 import org.shredzone.acme4j.Authorization;
 import org.shredzone.acme4j.Certificate;
+import org.shredzone.acme4j.Login;
 import org.shredzone.acme4j.Order;
-import org.shredzone.acme4j.Session;
 import org.shredzone.acme4j.Status;
 import org.shredzone.acme4j.challenge.Dns01Challenge;
 import org.shredzone.acme4j.exception.AcmeException;
+import org.shredzone.acme4j.exception.AcmeRetryAfterException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
 import com.foilen.infra.resource.letsencrypt.plugin.LetsencryptConfig;
-import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
-import com.foilen.smalltools.crypt.spongycastle.cert.RSACertificate;
-import com.foilen.smalltools.crypt.spongycastle.cert.RSATools;
 import com.foilen.smalltools.tools.AssertTools;
-import com.foilen.smalltools.tools.ThreadTools;
 import com.foilen.smalltools.tuple.Tuple2;
 import com.google.common.base.Joiner;
 
 /**
- * To communicate with the ACME server.
+ * To communicate with the ACME server. The methods that wait are done by the {@link AsyncAcmeServiceImpl} and this one waits for their results.
  */
 public class AcmeServiceImpl implements AcmeService {
 
@@ -46,27 +45,92 @@ public class AcmeServiceImpl implements AcmeService {
 
     private LetsencryptConfig config;
 
+    private AsyncAcmeServiceImpl asyncAcmeService = new AsyncAcmeServiceImpl(this);
+
     // Cache
-    private Session session;
+    private PooledSession session;
     private Account account;
+    private Login login;
 
     public AcmeServiceImpl(LetsencryptConfig config) {
+        this(config, config.getUrl());
+    }
+
+    /**
+     * Use another ACME server than the one of the config (e.g. a local test server).
+     *
+     * @param config
+     *            the config
+     * @param serverUrl
+     *            the ACME server URL or its directory URL
+     */
+    public AcmeServiceImpl(LetsencryptConfig config, String serverUrl) {
         this.config = config;
         try {
-            LOGGER.info("Logging to {}", config.getUrl());
-            session = new Session(new URI(config.getUrl()));
+            LOGGER.info("Logging to {}", serverUrl);
+            session = new PooledSession(new URI(serverUrl), new NoncePool());
             login();
         } catch (Exception e) {
             throw new LetsencryptException("Problem connecting to ACME", e);
         }
     }
 
+    private void addChallenges(OrderAndChallenges orderAndChallenges) {
+
+        // Get the DNS challenge of each authorization that is not already valid
+        for (Authorization auth : orderAndChallenges.getOrder().getAuthorizations()) {
+            orderAndChallenges.addAuthorizationUrl(auth.getDomain(), auth.getLocation().toString());
+            if (auth.getStatus() == Status.VALID) {
+                LOGGER.info("The authorization for {} is already valid. No challenge needed", auth.getDomain());
+                orderAndChallenges.addAlreadyValidDomain(auth.getDomain());
+                continue;
+            }
+
+            Dns01Challenge challenge = auth.findChallenge(Dns01Challenge.TYPE);
+            if (challenge == null) {
+                List<String> availableChallenges = auth.getChallenges().stream().map(it -> it.getType()).collect(Collectors.toList());
+                throw new LetsencryptException("DNS Challenge not found for " + auth.getDomain() + " ; Available challenges are: [" + Joiner.on(", ").join(availableChallenges) + "]");
+            }
+            orderAndChallenges.addChallenge(auth.getDomain(), challenge);
+        }
+
+    }
+
+    @Override
+    public AsyncAcmeServiceImpl async() {
+        return asyncAcmeService;
+    }
+
     @Override
     public void challengeComplete(Dns01Challenge challenge) {
+        AsyncAcmeServiceImpl.join(asyncAcmeService.challengeComplete(challenge));
+    }
+
+    @Override
+    public OrderAndChallenges challengeResume(URL orderLocation) {
+
+        AssertTools.assertNotNull(login, "You need to log in first");
+
+        try {
+            LOGGER.info("Resuming the order {}", orderLocation);
+            Order order = login.bindOrder(orderLocation);
+            OrderAndChallenges orderAndChallenges = new OrderAndChallenges(order, new ArrayList<>(order.getDomains()));
+            addChallenges(orderAndChallenges);
+            return orderAndChallenges;
+        } catch (LetsencryptException e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.error("Could not resume the order {}", orderLocation, e);
+            throw new LetsencryptException("Could not resume the order " + orderLocation, e);
+        }
+
+    }
+
+    @Override
+    public void challengeTrigger(Dns01Challenge challenge) {
 
         AssertTools.assertNotNull(account, "You need to log in first");
 
-        // Trigger the challenge
         try {
             LOGGER.info("Triggering the challenge");
             challenge.trigger();
@@ -75,56 +139,59 @@ public class AcmeServiceImpl implements AcmeService {
             throw new LetsencryptException("Problem triggering the challenge", e);
         }
 
-        // Wait until completed
-        while (challenge.getStatus() != Status.VALID) {
-            if (challenge.getStatus() == Status.INVALID) {
-                throw new LetsencryptException("The challenge failed");
-            }
-            ThreadTools.sleep(5 * 1000); // 5 secs
-            try {
-                LOGGER.info("Updating the status");
-                challenge.update();
-            } catch (AcmeException e) {
-                LOGGER.error("Problem updating the challenge status", e);
-                throw new LetsencryptException("Problem updating the challenge status", e);
-            }
-            LOGGER.info("Current status: {}", challenge.getStatus());
+    }
+
+    @Override
+    public Tuple2<Status, Instant> challengeUpdate(Dns01Challenge challenge) {
+
+        AssertTools.assertNotNull(account, "You need to log in first");
+
+        Instant retryAfter = null;
+        try {
+            LOGGER.info("Updating the status");
+            challenge.update();
+        } catch (AcmeRetryAfterException e) {
+            retryAfter = e.getRetryAfter();
+        } catch (AcmeException e) {
+            LOGGER.error("Problem updating the challenge status", e);
+            throw new LetsencryptException("Problem updating the challenge status", e);
         }
+        LOGGER.info("Current status: {}", challenge.getStatus());
+        return new Tuple2<>(challenge.getStatus(), retryAfter);
 
     }
 
     @Override
-    public Tuple2<Order, Dns01Challenge> challengeInit(String domainName) {
+    public OrderAndChallenges challengeInit(List<String> domainNames) {
 
         AssertTools.assertNotNull(account, "You need to log in first");
 
+        if (domainNames == null || domainNames.isEmpty()) {
+            throw new LetsencryptException("There must be at least one domain name");
+        }
+        if (domainNames.size() > MAX_DOMAINS_PER_ORDER) {
+            throw new LetsencryptException("There can be at most " + MAX_DOMAINS_PER_ORDER + " domain names per order. Got " + domainNames.size());
+        }
+
         Order order;
         try {
             order = account.newOrder() //
-                    .domains(domainName) //
+                    .domains(domainNames) //
                     .create();
         } catch (AcmeException e) {
-            LOGGER.error("Could not ask for domain {}", domainName, e);
-            throw new LetsencryptException("Could not ask for domain " + domainName, e);
+            LOGGER.error("Could not ask for domains {}", domainNames, e);
+            throw new LetsencryptException("Could not ask for domains " + domainNames, e);
         }
 
-        // Get the DNS challenge
-        Dns01Challenge challenge = null;
-        List<String> availableChallenges = new ArrayList<>();
-        for (Authorization auth : order.getAuthorizations()) {
-            auth.getChallenges().stream().map(it -> it.getType()).forEach(it -> availableChallenges.add(it));
-            challenge = auth.findChallenge(Dns01Challenge.TYPE);
-        }
-        if (challenge == null) {
-            throw new LetsencryptException("DNS Challenge not found for " + domainName + " ; Available challenges are: [" + Joiner.on(", ").join(availableChallenges) + "]");
-        }
+        OrderAndChallenges orderAndChallenges = new OrderAndChallenges(order, new ArrayList<>(domainNames));
+        addChallenges(orderAndChallenges);
 
-        return new Tuple2<>(order, challenge);
+        return orderAndChallenges;
     }
 
     private void login() {
 
-        KeyPair accountKeyPair = RSATools.createKeyPair(RSACrypt.RSA_CRYPT.loadKeysPemFromString(config.getAccountKeypairPem()));
+        KeyPair accountKeyPair = CertificateKeys.fromPem(config.getAccountKeypairPem()).getKeyPair();
 
         LOGGER.info("Registering account");
         try {
@@ -139,7 +206,7 @@ public class AcmeServiceImpl implements AcmeService {
         }
 
         URL accountLocationUrl = account.getLocation();
-        session.login(accountLocationUrl, accountKeyPair);
+        login = session.login(accountLocationUrl, accountKeyPair);
 
         // Get the location
         LOGGER.info("AcmeClient location: {}", accountLocationUrl);
@@ -147,11 +214,22 @@ public class AcmeServiceImpl implements AcmeService {
     }
 
     @Override
-    public RSACertificate requestCertificate(Order order, byte[] certificateRequest) {
+    public CertificateChain orderCertificate(Order order) {
+
+        if (order.getStatus() != Status.VALID) {
+            throw new LetsencryptException("The order is not valid. Status is " + order.getStatus());
+        }
+
+        Certificate certificate = order.getCertificate();
+        return CertificateChain.from(certificate.getCertificateChain());
+
+    }
+
+    @Override
+    public void orderExecute(Order order, byte[] certificateRequest) {
 
         AssertTools.assertNotNull(account, "You need to log in first");
 
-        // Get the cert URL
         try {
             order.execute(certificateRequest);
         } catch (AcmeException e) {
@@ -159,33 +237,41 @@ public class AcmeServiceImpl implements AcmeService {
             throw new LetsencryptException("Problem executing the cert request", e);
         }
 
-        // Wait the order to be ready
-        int count = 0;
-        while (order.getStatus() != Status.VALID && count < 6) {
-            if (order.getStatus() == Status.INVALID) {
-                throw new LetsencryptException("The order failed");
-            }
-            ThreadTools.sleep(10 * 1000); // 10 secs
-            try {
-                LOGGER.info("Updating the status");
-                order.update();
-            } catch (AcmeException e) {
-                LOGGER.error("Problem updating the order status", e);
-                throw new LetsencryptException("Problem updating the order status", e);
-            }
-            LOGGER.info("[{}] Current order status: {}", count, order.getStatus());
-            ++count;
-        }
+    }
 
-        if (order.getStatus() != Status.VALID) {
-            LOGGER.error("Order status is still not valid after 1 minute. Status is {} ; problem is {} ; json: {}", order.getStatus(), order.getError(), order.getJSON().toString());
-            throw new LetsencryptException("Order status is still not valid after 1 minute. Status is " + order.getStatus());
+    @Override
+    public Tuple2<Status, Instant> orderUpdate(Order order) {
+
+        AssertTools.assertNotNull(account, "You need to log in first");
+
+        Instant retryAfter = null;
+        try {
+            LOGGER.info("Updating the status");
+            order.update();
+        } catch (AcmeRetryAfterException e) {
+            retryAfter = e.getRetryAfter();
+        } catch (AcmeException e) {
+            LOGGER.error("Problem updating the order status", e);
+            throw new LetsencryptException("Problem updating the order status", e);
         }
+        LOGGER.info("Current order status: {}", order.getStatus());
+        return new Tuple2<>(order.getStatus(), retryAfter);
 
-        Certificate certificate = order.getCertificate();
-        X509Certificate cert = certificate.getCertificate();
-        return new RSACertificate(cert);
+    }
+
+    @Override
+    public CertificateChain requestCertificate(Order order, byte[] certificateRequest) {
+        return AsyncAcmeServiceImpl.join(asyncAcmeService.requestCertificate(order, certificateRequest));
+    }
+
+    public AcmeServiceImpl setChallengePollingStrategy(PollingStrategy challengePollingStrategy) {
+        asyncAcmeService.setChallengePollingStrategy(challengePollingStrategy);
+        return this;
+    }
 
+    public AcmeServiceImpl setOrderPollingStrategy(PollingStrategy orderPollingStrategy) {
+        asyncAcmeService.setOrderPollingStrategy(orderPollingStrategy);
+        return this;
     }
 
 }
@@ -0,0 +1,77 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.shredzone.acme4j.Order;
+import org.shredzone.acme4j.challenge.Dns01Challenge;
+
+/**
+ * The non-blocking version of the {@link AcmeService}. The waits between the status updates are scheduled instead of sleeping so no thread is held while the server is validating. The
+ * futures complete exceptionally with a {@link LetsencryptException} on failures.
+ */
+public interface AsyncAcmeService {
+
+    /**
+     * Trigger the challenge and complete when it is valid.
+     *
+     * @param dnsChallenge
+     *            the challenge
+     * @return the future
+     */
+    CompletableFuture<Void> challengeComplete(Dns01Challenge dnsChallenge);
+
+    /**
+     * Create a single order for all the domain names (SAN) and get the DNS challenge of each of them.
+     *
+     * @param domainNames
+     *            the domain names (between 1 and {@link AcmeService#MAX_DOMAINS_PER_ORDER})
+     * @return the order and the challenges
+     */
+    CompletableFuture<OrderAndChallenges> challengeInit(List<String> domainNames);
+
+    /**
+     * Get back an existing order and the DNS challenge of each of its domain names.
+     *
+     * @param orderLocation
+     *            the location of the order
+     * @return the order and the challenges
+     */
+    CompletableFuture<OrderAndChallenges> challengeResume(URL orderLocation);
+
+    /**
+     * Finalize the order and complete when the certificate is issued.
+     *
+     * @param order
+     *            the order with all its challenges completed
+     * @param certificateRequest
+     *            the CSR
+     * @return the certificate and the intermediates returned by the server
+     */
+    CompletableFuture<CertificateChain> requestCertificate(Order order, byte[] certificateRequest);
+
+    /**
+     * Run some single request steps of the {@link AcmeService} (e.g. the next step of a renewal) after a delay. Nothing holds a thread during the delay.
+     *
+     * @param steps
+     *            the steps to run with the blocking service
+     * @param delayMs
+     *            the delay before running them
+     * @param <T>
+     *            the type of the result
+     * @return the result of the steps
+     */
+    <T> CompletableFuture<T> schedule(Function<AcmeService, T> steps, long delayMs);
+
+}
@@ -0,0 +1,202 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.net.URL;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.shredzone.acme4j.Order;
+import org.shredzone.acme4j.Status;
+import org.shredzone.acme4j.challenge.Dns01Challenge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foilen.smalltools.tuple.Tuple2;
+
+/**
+ * Drives the single request steps of an {@link AcmeService} (trigger, update, execute, ...) on a scheduled executor. The polls are scheduled with the delays of the {@link PollingStrategy}.
+ *
+ * <p>
+ * By default, each instance has its own executor with up to {@link #DEFAULT_THREADS} threads that stop when idle. The steps of different renewals run at the same time on these threads
+ * with the same {@link AcmeService}: its {@link PooledSession} keeps the nonce of each thread apart so that each signed request has its own. Many renewals can wait at the same time since
+ * a wait does not use a thread.
+ * </p>
+ */
+public class AsyncAcmeServiceImpl implements AsyncAcmeService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncAcmeServiceImpl.class);
+
+    /**
+     * The maximum amount of threads of the default executor.
+     */
+    public static final int DEFAULT_THREADS = 10;
+
+    private static final AtomicInteger nextThreadId = new AtomicInteger();
+
+    private static ScheduledExecutorService createDefaultExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(DEFAULT_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "letsencrypt-acme-async-" + nextThreadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Wait for the future and throw its failure.
+     *
+     * @param future
+     *            the future
+     * @param <T>
+     *            the type of the result
+     * @return the result
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new LetsencryptException("Unexpected failure", cause);
+        }
+    }
+
+    private AcmeService acmeService;
+    private ScheduledExecutorService executor;
+
+    private PollingStrategy challengePollingStrategy = ExponentialBackoffPollingStrategy.DEFAULT_CHALLENGE;
+    private PollingStrategy orderPollingStrategy = ExponentialBackoffPollingStrategy.DEFAULT_ORDER;
+
+    public AsyncAcmeServiceImpl(AcmeService acmeService) {
+        this(acmeService, createDefaultExecutor());
+    }
+
+    public AsyncAcmeServiceImpl(AcmeService acmeService, ScheduledExecutorService executor) {
+        this.acmeService = acmeService;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Void> challengeComplete(Dns01Challenge dnsChallenge) {
+        return CompletableFuture.runAsync(() -> acmeService.challengeTrigger(dnsChallenge), executor) //
+                .thenCompose(it -> poll("challenge", challengePollingStrategy, dnsChallenge.getStatus(), () -> acmeService.challengeUpdate(dnsChallenge)));
+    }
+
+    @Override
+    public CompletableFuture<OrderAndChallenges> challengeInit(List<String> domainNames) {
+        return CompletableFuture.supplyAsync(() -> acmeService.challengeInit(domainNames), executor);
+    }
+
+    @Override
+    public CompletableFuture<OrderAndChallenges> challengeResume(URL orderLocation) {
+        return CompletableFuture.supplyAsync(() -> acmeService.challengeResume(orderLocation), executor);
+    }
+
+    public PollingStrategy getChallengePollingStrategy() {
+        return challengePollingStrategy;
+    }
+
+    public PollingStrategy getOrderPollingStrategy() {
+        return orderPollingStrategy;
+    }
+
+    /**
+     * Complete when the status is valid by scheduling the updates as told by the polling strategy.
+     *
+     * @param what
+     *            the name of what is polled (for the messages)
+     * @param pollingStrategy
+     *            the polling strategy
+     * @param currentStatus
+     *            the status before the first update
+     * @param updater
+     *            updates and gives the new status
+     * @return the future
+     */
+    protected CompletableFuture<Void> poll(String what, PollingStrategy pollingStrategy, Status currentStatus, Supplier<Tuple2<Status, Instant>> updater) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        pollNext(future, what, pollingStrategy, System.currentTimeMillis(), 0, currentStatus, null, updater);
+        return future;
+    }
+
+    private void pollNext(CompletableFuture<Void> future, String what, PollingStrategy pollingStrategy, long start, int attempt, Status status, Instant retryAfter,
+            Supplier<Tuple2<Status, Instant>> updater) {
+
+        if (status == Status.VALID) {
+            future.complete(null);
+            return;
+        }
+        if (status == Status.INVALID) {
+            future.completeExceptionally(new LetsencryptException("The " + what + " failed"));
+            return;
+        }
+
+        long delay = pollingStrategy.nextDelay(attempt, System.currentTimeMillis() - start, retryAfter);
+        if (delay < 0) {
+            LOGGER.error("The {} status is still not valid after {} ms. Status is {}", what, System.currentTimeMillis() - start, status);
+            future.completeExceptionally(new LetsencryptException("The " + what + " status is still not valid after " + (System.currentTimeMillis() - start) / 1000 + " seconds. Status is " + status));
+            return;
+        }
+
+        executor.schedule(() -> {
+            try {
+                Tuple2<Status, Instant> statusAndRetryAfter = updater.get();
+                pollNext(future, what, pollingStrategy, start, attempt + 1, statusAndRetryAfter.getA(), statusAndRetryAfter.getB(), updater);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+    }
+
+    @Override
+    public CompletableFuture<CertificateChain> requestCertificate(Order order, byte[] certificateRequest) {
+        return CompletableFuture.runAsync(() -> acmeService.orderExecute(order, certificateRequest), executor) //
+                .thenCompose(it -> poll("order", orderPollingStrategy, order.getStatus(), () -> acmeService.orderUpdate(order))) //
+                .thenApplyAsync(it -> acmeService.orderCertificate(order), executor);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> schedule(Function<AcmeService, T> steps, long delayMs) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.schedule(() -> {
+            try {
+                future.complete(steps.apply(acmeService));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    public AsyncAcmeServiceImpl setChallengePollingStrategy(PollingStrategy challengePollingStrategy) {
+        this.challengePollingStrategy = challengePollingStrategy;
+        return this;
+    }
+
+    public AsyncAcmeServiceImpl setOrderPollingStrategy(PollingStrategy orderPollingStrategy) {
+        this.orderPollingStrategy = orderPollingStrategy;
+        return this;
+    }
+
+}
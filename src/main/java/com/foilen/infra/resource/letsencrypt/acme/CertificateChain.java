@@ -0,0 +1,144 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.io.StringWriter;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * The certificate issued by the ACME server with the intermediate certificates it returned.
+ * The intermediates are the same for most of the certificates, so they are interned by fingerprint: all the chains share the same parsed intermediates and the same PEM.
+ */
+public class CertificateChain {
+
+    private static final Map<String, X509Certificate> intermediateByFingerprint = new ConcurrentHashMap<>();
+    private static final Map<String, String> intermediatesPemByFingerprints = new ConcurrentHashMap<>();
+
+    /**
+     * Remove all the interned intermediates (e.g. between tests).
+     */
+    public static void clearCache() {
+        intermediateByFingerprint.clear();
+        intermediatesPemByFingerprints.clear();
+    }
+
+    /**
+     * Create the chain and intern its intermediates.
+     *
+     * @param certificates
+     *            the certificates as returned by the server: the issued certificate first and then its intermediates
+     * @return the chain
+     */
+    public static CertificateChain from(List<X509Certificate> certificates) {
+
+        if (certificates == null || certificates.isEmpty()) {
+            throw new LetsencryptException("The server did not return any certificate");
+        }
+
+        List<X509Certificate> intermediates = new ArrayList<>();
+        List<String> fingerprints = new ArrayList<>();
+        for (X509Certificate intermediate : certificates.subList(1, certificates.size())) {
+            String fingerprint = getFingerprint(intermediate);
+            fingerprints.add(fingerprint);
+            intermediates.add(intermediateByFingerprint.computeIfAbsent(fingerprint, it -> intermediate));
+        }
+
+        String intermediatesPem = null;
+        if (!intermediates.isEmpty()) {
+            intermediatesPem = intermediatesPemByFingerprints.computeIfAbsent(String.join(",", fingerprints), it -> toPem(intermediates));
+        }
+
+        return new CertificateChain(certificates.get(0), Collections.unmodifiableList(intermediates), intermediatesPem);
+    }
+
+    /**
+     * Get the amount of intermediates that are interned.
+     *
+     * @return the amount
+     */
+    public static int getCachedIntermediatesCount() {
+        return intermediateByFingerprint.size();
+    }
+
+    /**
+     * Get the SHA-256 fingerprint of a certificate.
+     *
+     * @param certificate
+     *            the certificate
+     * @return the fingerprint in hex
+     */
+    public static String getFingerprint(X509Certificate certificate) {
+        try {
+            return Hashing.sha256().hashBytes(certificate.getEncoded()).toString();
+        } catch (CertificateEncodingException e) {
+            throw new LetsencryptException("Could not encode the certificate", e);
+        }
+    }
+
+    private static String toPem(List<X509Certificate> certificates) {
+        StringWriter stringWriter = new StringWriter();
+        try (JcaPEMWriter pemWriter = new JcaPEMWriter(stringWriter)) {
+            for (X509Certificate certificate : certificates) {
+                pemWriter.writeObject(certificate);
+            }
+        } catch (Exception e) {
+            throw new LetsencryptException("Could not save in PEM", e);
+        }
+        return stringWriter.toString();
+    }
+
+    private final X509Certificate certificate;
+    private final List<X509Certificate> intermediates;
+    private final String intermediatesPem;
+
+    private CertificateChain(X509Certificate certificate, List<X509Certificate> intermediates, String intermediatesPem) {
+        this.certificate = certificate;
+        this.intermediates = intermediates;
+        this.intermediatesPem = intermediatesPem;
+    }
+
+    /**
+     * Get the issued certificate.
+     *
+     * @return the certificate
+     */
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * Get the intermediate certificates.
+     *
+     * @return the intermediates (shared with the other chains)
+     */
+    public List<X509Certificate> getIntermediates() {
+        return intermediates;
+    }
+
+    /**
+     * Get the intermediate certificates in PEM. That is the CA certificate of the {@link com.foilen.infra.resource.webcertificate.WebsiteCertificate}.
+     *
+     * @return the PEM (the same instance for all the chains with the same intermediates) or null if the server did not return any intermediate
+     */
+    public String getIntermediatesPem() {
+        return intermediatesPem;
+    }
+
+}
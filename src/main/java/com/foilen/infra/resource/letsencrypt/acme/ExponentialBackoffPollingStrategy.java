@@ -0,0 +1,106 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Waits longer between each status request (with some random jitter) until an overall deadline. When the server sends a Retry-After, it is used instead.
+ */
+public class ExponentialBackoffPollingStrategy implements PollingStrategy {
+
+    /**
+     * For challenges: from 2 seconds to 30 seconds between the requests for 5 minutes.
+     */
+    public static final ExponentialBackoffPollingStrategy DEFAULT_CHALLENGE = new ExponentialBackoffPollingStrategy(2000, 30000, 2.0, 0.2, 5 * 60000);
+
+    /**
+     * For the DNS propagation: from 15 seconds to 2 minutes between the checks for 30 minutes.
+     */
+    public static final ExponentialBackoffPollingStrategy DEFAULT_DNS = new ExponentialBackoffPollingStrategy(15000, 2 * 60000, 1.5, 0.2, 30 * 60000);
+
+    /**
+     * For orders: from 2 seconds to 15 seconds between the requests for 2 minutes.
+     */
+    public static final ExponentialBackoffPollingStrategy DEFAULT_ORDER = new ExponentialBackoffPollingStrategy(2000, 15000, 2.0, 0.2, 2 * 60000);
+
+    private long initialDelayMs;
+    private long maxDelayMs;
+    private double multiplier;
+    private double jitterRatio;
+    private long deadlineMs;
+
+    /**
+     * Create the strategy.
+     *
+     * @param initialDelayMs
+     *            the delay before the first request
+     * @param maxDelayMs
+     *            the maximum delay between 2 requests when the server does not say otherwise
+     * @param multiplier
+     *            how much the delay is multiplied after each request
+     * @param jitterRatio
+     *            the random variation of the delay (0.2 is +/- 20%)
+     * @param deadlineMs
+     *            the maximum time to poll
+     */
+    public ExponentialBackoffPollingStrategy(long initialDelayMs, long maxDelayMs, double multiplier, double jitterRatio, long deadlineMs) {
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.multiplier = multiplier;
+        this.jitterRatio = jitterRatio;
+        this.deadlineMs = deadlineMs;
+    }
+
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    public long getInitialDelayMs() {
+        return initialDelayMs;
+    }
+
+    public double getJitterRatio() {
+        return jitterRatio;
+    }
+
+    public long getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    @Override
+    public long nextDelay(int attempt, long elapsedMs, Instant retryAfter) {
+
+        long remainingMs = deadlineMs - elapsedMs;
+        if (remainingMs <= 0) {
+            return -1;
+        }
+
+        long delay;
+        if (retryAfter != null) {
+            delay = Math.max(0, retryAfter.toEpochMilli() - System.currentTimeMillis());
+        } else {
+            double backoff = initialDelayMs * Math.pow(multiplier, attempt);
+            delay = (long) Math.min(maxDelayMs, backoff);
+            if (jitterRatio > 0) {
+                double jitter = ThreadLocalRandom.current().nextDouble(-jitterRatio, jitterRatio);
+                delay += (long) (delay * jitter);
+            }
+        }
+
+        return Math.max(0, Math.min(delay, remainingMs));
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+
+/**
+ * Keeps the replay nonces that were received but not used yet to avoid asking for a new one (a HEAD request) before a signed request. The most recent nonces are used first since the oldest
+ * ones are more likely to be expired on the server.
+ */
+public class NoncePool {
+
+    public static final int DEFAULT_CAPACITY = 10;
+
+    private final int capacity;
+    private final Deque<String> nonces = new ArrayDeque<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong offered = new AtomicLong();
+
+    public NoncePool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public NoncePool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get how many times a nonce was available when needed.
+     *
+     * @return the amount
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get how many times a nonce had to be requested from the server.
+     *
+     * @return the amount
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get how many nonces were kept for later.
+     *
+     * @return the amount
+     */
+    public long getOffered() {
+        return offered.get();
+    }
+
+    /**
+     * Keep a nonce for later. When full, the oldest one is dropped.
+     *
+     * @param nonce
+     *            the nonce (ignored if null)
+     */
+    public synchronized void offer(String nonce) {
+        if (nonce == null) {
+            return;
+        }
+        offered.incrementAndGet();
+        nonces.addFirst(nonce);
+        while (nonces.size() > capacity) {
+            nonces.removeLast();
+        }
+    }
+
+    public synchronized int size() {
+        return nonces.size();
+    }
+
+    /**
+     * Take a nonce.
+     *
+     * @return the most recent nonce or null if there is none (a miss)
+     */
+    public synchronized String take() {
+        String nonce = nonces.pollFirst();
+        if (nonce == null) {
+            misses.incrementAndGet();
+            Metrics.getRegistry().increment(Metrics.ACME_NONCE_MISSES);
+        } else {
+            hits.incrementAndGet();
+            Metrics.getRegistry().increment(Metrics.ACME_NONCE_HITS);
+        }
+        return nonce;
+    }
+
+    @Override
+    public String toString() {
+        return "NoncePool [size=" + size() + ", hits=" + hits + ", misses=" + misses + ", offered=" + offered + "]";
+    }
+
+}
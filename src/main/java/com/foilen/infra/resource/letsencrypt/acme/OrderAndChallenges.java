@@ -0,0 +1,96 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.shredzone.acme4j.Order;
+import org.shredzone.acme4j.challenge.Dns01Challenge;
+
+/**
+ * An order for one or multiple domain names (SAN) with the DNS challenge of each of them. The domain names that already have a valid authorization do not have a challenge.
+ */
+public class OrderAndChallenges {
+
+    private Order order;
+    private List<String> domainNames = new ArrayList<>();
+    private Map<String, Dns01Challenge> challengeByDomain = new LinkedHashMap<>();
+    private Map<String, String> authorizationUrlByDomain = new LinkedHashMap<>();
+    private Set<String> alreadyValidDomains = new LinkedHashSet<>();
+
+    public OrderAndChallenges() {
+    }
+
+    public OrderAndChallenges(Order order, List<String> domainNames) {
+        this.order = order;
+        this.domainNames = domainNames;
+    }
+
+    public OrderAndChallenges addChallenge(String domainName, Dns01Challenge challenge) {
+        challengeByDomain.put(domainName, challenge);
+        return this;
+    }
+
+    public OrderAndChallenges addAuthorizationUrl(String domainName, String authorizationUrl) {
+        authorizationUrlByDomain.put(domainName, authorizationUrl);
+        return this;
+    }
+
+    public OrderAndChallenges addAlreadyValidDomain(String domainName) {
+        alreadyValidDomains.add(domainName);
+        return this;
+    }
+
+    public Set<String> getAlreadyValidDomains() {
+        return alreadyValidDomains;
+    }
+
+    public Map<String, String> getAuthorizationUrlByDomain() {
+        return authorizationUrlByDomain;
+    }
+
+    public Map<String, Dns01Challenge> getChallengeByDomain() {
+        return challengeByDomain;
+    }
+
+    public List<String> getDomainNames() {
+        return domainNames;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    public void setAlreadyValidDomains(Set<String> alreadyValidDomains) {
+        this.alreadyValidDomains = alreadyValidDomains;
+    }
+
+    public void setAuthorizationUrlByDomain(Map<String, String> authorizationUrlByDomain) {
+        this.authorizationUrlByDomain = authorizationUrlByDomain;
+    }
+
+    public void setChallengeByDomain(Map<String, Dns01Challenge> challengeByDomain) {
+        this.challengeByDomain = challengeByDomain;
+    }
+
+    public void setDomainNames(List<String> domainNames) {
+        this.domainNames = domainNames;
+    }
+
+    public void setOrder(Order order) {
+        this.order = order;
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.time.Instant;
+
+/**
+ * Tells how long to wait before asking the ACME server for the status of a resource again.
+ */
+public interface PollingStrategy {
+
+    /**
+     * Get the delay before the next status request.
+     *
+     * @param attempt
+     *            the amount of status requests already done (0 before the first one)
+     * @param elapsedMs
+     *            the time since the polling started
+     * @param retryAfter
+     *            the Retry-After sent by the server on the last request or null if none
+     * @return the delay in milliseconds or -1 if it must stop polling
+     */
+    long nextDelay(int attempt, long elapsedMs, Instant retryAfter);
+
+}
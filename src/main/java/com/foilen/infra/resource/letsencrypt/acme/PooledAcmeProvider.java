@@ -0,0 +1,106 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.shredzone.acme4j.Login;
+import org.shredzone.acme4j.Session;
+import org.shredzone.acme4j.challenge.Challenge;
+import org.shredzone.acme4j.connector.Connection;
+import org.shredzone.acme4j.connector.HttpConnector;
+import org.shredzone.acme4j.exception.AcmeException;
+import org.shredzone.acme4j.provider.AcmeProvider;
+import org.shredzone.acme4j.toolbox.JSON;
+
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+
+/**
+ * Wraps the {@link AcmeProvider} found by acme4j to create {@link PooledConnection}s that share the same {@link NoncePool}.
+ */
+public class PooledAcmeProvider implements AcmeProvider {
+
+    private final AcmeProvider delegate;
+    private final NoncePool noncePool;
+    private final HttpConnector httpConnector = new HttpConnector();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong drainedResponses = new AtomicLong();
+
+    public PooledAcmeProvider(AcmeProvider delegate, NoncePool noncePool) {
+        this.delegate = delegate;
+        this.noncePool = noncePool;
+    }
+
+    @Override
+    public boolean accepts(URI serverUri) {
+        return delegate.accepts(serverUri);
+    }
+
+    @Override
+    public Connection connect() {
+        return new PooledConnection(httpConnector, this);
+    }
+
+    @Override
+    public Challenge createChallenge(Login login, JSON data) {
+        return delegate.createChallenge(login, data);
+    }
+
+    @Override
+    public JSON directory(Session session, URI serverUri) throws AcmeException {
+        return delegate.directory(session, serverUri);
+    }
+
+    /**
+     * Get how many responses had unread data that was read to let the connection be reused.
+     *
+     * @return the amount
+     */
+    public long getDrainedResponses() {
+        return drainedResponses.get();
+    }
+
+    public NoncePool getNoncePool() {
+        return noncePool;
+    }
+
+    /**
+     * Get how many requests were sent (without the nonce requests).
+     *
+     * @return the amount
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    protected void requestSent() {
+        requests.incrementAndGet();
+        Metrics.getRegistry().increment(Metrics.ACME_REQUESTS);
+    }
+
+    @Override
+    public URL resolve(URI serverUri) {
+        return delegate.resolve(serverUri);
+    }
+
+    protected void responseDrained() {
+        drainedResponses.incrementAndGet();
+        Metrics.getRegistry().increment(Metrics.ACME_CONNECTIONS_DRAINED);
+    }
+
+    @Override
+    public String toString() {
+        return "PooledAcmeProvider [requests=" + requests + ", drainedResponses=" + drainedResponses + ", " + noncePool + "]";
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.KeyPair;
+
+import org.shredzone.acme4j.Login;
+import org.shredzone.acme4j.Session;
+import org.shredzone.acme4j.connector.DefaultConnection;
+import org.shredzone.acme4j.connector.HttpConnector;
+import org.shredzone.acme4j.exception.AcmeException;
+import org.shredzone.acme4j.toolbox.JSONBuilder;
+
+/**
+ * A {@link DefaultConnection} that:
+ * <ul>
+ * <li>takes the nonce of each signed request from the {@link NoncePool} instead of doing a HEAD request;</li>
+ * <li>gives back to the pool the nonce of each response (signed or not) so that it is used by the next signed request of any thread;</li>
+ * <li>reads the rest of the response when closed so that the JVM can reuse the HTTP connection (keep-alive).</li>
+ * </ul>
+ */
+public class PooledConnection extends DefaultConnection {
+
+    private final PooledAcmeProvider pooledAcmeProvider;
+    private final NoncePool noncePool;
+
+    public PooledConnection(HttpConnector httpConnector, PooledAcmeProvider pooledAcmeProvider) {
+        super(httpConnector);
+        this.pooledAcmeProvider = pooledAcmeProvider;
+        this.noncePool = pooledAcmeProvider.getNoncePool();
+    }
+
+    @Override
+    public void close() {
+        if (conn != null) {
+            release(conn);
+        }
+        super.close();
+    }
+
+    private void release(HttpURLConnection httpURLConnection) {
+        try {
+            InputStream inputStream = httpURLConnection.getResponseCode() >= 400 ? httpURLConnection.getErrorStream() : httpURLConnection.getInputStream();
+            if (inputStream != null) {
+                try (InputStream in = inputStream) {
+                    byte[] buffer = new byte[4096];
+                    int drained = 0;
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        drained += read;
+                    }
+                    if (drained > 0) {
+                        pooledAcmeProvider.responseDrained();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // Already read and closed by acme4j
+        }
+    }
+
+    @Override
+    public void resetNonce(Session session) throws AcmeException {
+        String nonce = noncePool.take();
+        if (nonce == null) {
+            super.resetNonce(session);
+        } else {
+            session.setNonce(nonce);
+        }
+    }
+
+    /**
+     * Give back the nonce of the last response to the pool.
+     *
+     * @param session
+     *            the session that has the nonce of the current thread
+     */
+    private void releaseNonce(Session session) {
+        noncePool.offer(session.getNonce());
+        session.setNonce(null);
+    }
+
+    @Override
+    public void sendRequest(URL url, Session session) throws AcmeException {
+        pooledAcmeProvider.requestSent();
+        super.sendRequest(url, session);
+
+        // Keep the nonce of the response that acme4j ignores
+        noncePool.offer(getNonce());
+    }
+
+    @Override
+    public int sendSignedRequest(URL url, JSONBuilder claims, Login login) throws AcmeException {
+        pooledAcmeProvider.requestSent();
+        try {
+            return super.sendSignedRequest(url, claims, login);
+        } finally {
+            releaseNonce(login.getSession());
+        }
+    }
+
+    @Override
+    public int sendSignedRequest(URL url, JSONBuilder claims, Session session, KeyPair keypair) throws AcmeException {
+        pooledAcmeProvider.requestSent();
+        try {
+            return super.sendSignedRequest(url, claims, session, keypair);
+        } finally {
+            releaseNonce(session);
+        }
+    }
+
+}
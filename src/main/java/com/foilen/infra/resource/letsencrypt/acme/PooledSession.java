@@ -0,0 +1,64 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.net.URI;
+
+import org.shredzone.acme4j.Session;
+
+/**
+ * A {@link Session} that uses a {@link PooledAcmeProvider} for all its connections. It can be used by multiple threads at the same time: acme4j keeps the nonce of the next signed request
+ * in the session, so it is kept per thread here and each signed request takes its own nonce from the {@link NoncePool} (see {@link PooledConnection}).
+ */
+public class PooledSession extends Session {
+
+    private final PooledAcmeProvider pooledAcmeProvider;
+    private final ThreadLocal<String> nonceOfThread = new ThreadLocal<>();
+
+    public PooledSession(URI serverUri, NoncePool noncePool) {
+        super(serverUri);
+        pooledAcmeProvider = new PooledAcmeProvider(super.provider(), noncePool);
+    }
+
+    /**
+     * Get the nonce of the current thread.
+     *
+     * @return the nonce or null
+     */
+    @Override
+    public String getNonce() {
+        return nonceOfThread.get();
+    }
+
+    public PooledAcmeProvider getPooledAcmeProvider() {
+        return pooledAcmeProvider;
+    }
+
+    @Override
+    public PooledAcmeProvider provider() {
+        return pooledAcmeProvider;
+    }
+
+    /**
+     * Set the nonce of the current thread.
+     *
+     * @param nonce
+     *            the nonce or null
+     */
+    @Override
+    public void setNonce(String nonce) {
+        if (nonce == null) {
+            nonceOfThread.remove();
+        } else {
+            nonceOfThread.set(nonce);
+        }
+    }
+
+}
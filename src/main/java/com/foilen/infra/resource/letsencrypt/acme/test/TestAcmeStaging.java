@@ -9,13 +9,15 @@
  */
 package com.foilen.infra.resource.letsencrypt.acme.test;
 
-import org.shredzone.acme4j.Order;
+import java.util.Collections;
+
 import org.shredzone.acme4j.challenge.Dns01Challenge;
 import org.shredzone.acme4j.util.CSRBuilder;
 
 import com.foilen.infra.resource.letsencrypt.acme.AcmeService;
 import com.foilen.infra.resource.letsencrypt.acme.AcmeServiceImpl;
 import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.foilen.infra.resource.letsencrypt.acme.OrderAndChallenges;
 import com.foilen.infra.resource.letsencrypt.plugin.LetsencryptConfig;
 import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
 import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
@@ -24,7 +26,6 @@ import com.foilen.smalltools.crypt.spongycastle.cert.RSATools;
 import com.foilen.smalltools.tools.FileTools;
 import com.foilen.smalltools.tools.SecureRandomTools;
 import com.foilen.smalltools.tools.ThreadTools;
-import com.foilen.smalltools.tuple.Tuple2;
 
 public class TestAcmeStaging {
 
@@ -56,8 +57,8 @@ public class TestAcmeStaging {
         // Request the challenge
         AcmeService acmeService = new AcmeServiceImpl(config);
         String domainName = "testing.foilen.org";
-        Tuple2<Order, Dns01Challenge> orderAndDnsChallenge = acmeService.challengeInit(domainName);
-        Dns01Challenge dnsChallenge = orderAndDnsChallenge.getB();
+        OrderAndChallenges orderAndChallenges = acmeService.challengeInit(Collections.singletonList(domainName));
+        Dns01Challenge dnsChallenge = orderAndChallenges.getChallengeByDomain().get(domainName);
 
         String acmeDomainName = "_acme-challenge." + domainName;
         System.out.println("Need " + acmeDomainName + " / TXT / " + dnsChallenge.getDigest());
@@ -86,7 +87,7 @@ public class TestAcmeStaging {
             AsymmetricKeys asymmetricKeys = RSACrypt.RSA_CRYPT.generateKeyPair(4096);
             csrb.sign(RSATools.createKeyPair(asymmetricKeys));
             byte[] csr = csrb.getEncoded();
-            RSACertificate certificate = acmeService.requestCertificate(orderAndDnsChallenge.getA(), csr);
+            RSACertificate certificate = new RSACertificate(acmeService.requestCertificate(orderAndChallenges.getOrder(), csr).getCertificate());
             certificate.setKeysForSigning(asymmetricKeys);
 
             System.out.println("Got the certificate: " + certificate.getThumbprint());
@@ -0,0 +1,195 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.crypt;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
+import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
+
+/**
+ * A bounded pool of pre-generated keys. The pool is filled in the background by low priority threads and {@link #take()} only generates the keys inline when the pool is empty.
+ */
+public class AsymmetricKeysPool {
+
+    public static final String ALGORITHM_RSA = "RSA";
+
+    public static final int DEFAULT_KEY_SIZE = 4096;
+    public static final int DEFAULT_POOL_SIZE = 5;
+    public static final int MAX_POOL_SIZE = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsymmetricKeysPool.class);
+
+    private static final Map<String, AsymmetricKeysPool> poolByAlgorithmAndSize = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger nextFillerId = new AtomicInteger();
+    private static final ExecutorService fillerExecutorService = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+        Thread thread = new Thread(runnable, "letsencrypt-keys-pool-" + nextFillerId.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Change the size of the pool for that algorithm and key size (the keys pool size of the Lets Encrypt config). Takes effect on the next refill.
+     *
+     * @param algorithm
+     *            the algorithm
+     * @param keySize
+     *            the key size
+     * @param poolSize
+     *            the amount of keys to keep ready
+     * @return the pool
+     */
+    public static AsymmetricKeysPool configure(String algorithm, int keySize, int poolSize) {
+        AsymmetricKeysPool pool = getPool(algorithm, keySize);
+        pool.poolSize = Math.max(0, Math.min(poolSize, MAX_POOL_SIZE));
+        pool.refill();
+        return pool;
+    }
+
+    /**
+     * Get the pool of RSA {@link #DEFAULT_KEY_SIZE} bits keys.
+     *
+     * @return the pool
+     */
+    public static AsymmetricKeysPool getDefaultPool() {
+        return getPool(ALGORITHM_RSA, DEFAULT_KEY_SIZE);
+    }
+
+    /**
+     * Get (or create and start filling) the pool for that algorithm and key size.
+     *
+     * @param algorithm
+     *            the algorithm
+     * @param keySize
+     *            the key size
+     * @return the pool
+     */
+    public static AsymmetricKeysPool getPool(String algorithm, int keySize) {
+        return poolByAlgorithmAndSize.computeIfAbsent(algorithm + "-" + keySize, key -> {
+            AsymmetricKeysPool pool = new AsymmetricKeysPool(algorithm, keySize, DEFAULT_POOL_SIZE);
+            pool.refill();
+            return pool;
+        });
+    }
+
+    private final String algorithm;
+    private final int keySize;
+    private volatile int poolSize;
+
+    private final BlockingQueue<AsymmetricKeys> availableKeys = new ArrayBlockingQueue<>(MAX_POOL_SIZE);
+    private final AtomicInteger pendingGenerations = new AtomicInteger();
+
+    // Stats
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    protected AsymmetricKeysPool(String algorithm, int keySize, int poolSize) {
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+        this.poolSize = Math.max(0, Math.min(poolSize, MAX_POOL_SIZE));
+    }
+
+    protected AsymmetricKeys generate() {
+        switch (algorithm) {
+        case ALGORITHM_RSA:
+            return RSACrypt.RSA_CRYPT.generateKeyPair(keySize);
+        default:
+            throw new LetsencryptException("Unsupported key algorithm " + algorithm);
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getAvailable() {
+        return availableKeys.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public int getKeySize() {
+        return keySize;
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Start generating keys in the background until the pool is full. Each generation reserves its slot before being submitted so that concurrent calls do not go past the pool size.
+     */
+    public void refill() {
+        while (true) {
+            int pending = pendingGenerations.get();
+            if (availableKeys.size() + pending >= poolSize) {
+                return;
+            }
+            if (!pendingGenerations.compareAndSet(pending, pending + 1)) {
+                continue;
+            }
+            fillerExecutorService.submit(() -> {
+                try {
+                    availableKeys.offer(generate());
+                } catch (Exception e) {
+                    LOGGER.error("Problem generating a {} {} key for the pool", algorithm, keySize, e);
+                } finally {
+                    pendingGenerations.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * Take a key from the pool or generate one if the pool is empty.
+     *
+     * @return the keys
+     */
+    public AsymmetricKeys take() {
+        AsymmetricKeys keys = availableKeys.poll();
+        if (keys == null) {
+            misses.incrementAndGet();
+            Metrics.getRegistry().increment(Metrics.KEYS_POOL_MISSES);
+            LOGGER.debug("Pool {} {} is empty. Generating the key inline", algorithm, keySize);
+            keys = generate();
+        } else {
+            hits.incrementAndGet();
+            Metrics.getRegistry().increment(Metrics.KEYS_POOL_HITS);
+        }
+        refill();
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return "AsymmetricKeysPool [algorithm=" + algorithm + ", keySize=" + keySize + ", poolSize=" + poolSize + ", available=" + getAvailable() + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+
+}
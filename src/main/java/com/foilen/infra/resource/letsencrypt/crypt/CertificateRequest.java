@@ -0,0 +1,96 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.crypt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.shredzone.acme4j.util.CSRBuilder;
+
+import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+
+/**
+ * The keys of a certificate and its signed CSR. They can be prepared in the background by low priority threads (e.g. while the challenges are validated) so that the order can be finalized
+ * right away.
+ */
+public class CertificateRequest {
+
+    private static final ExecutorService preparerExecutorService = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+        Thread thread = new Thread(runnable, "letsencrypt-csr");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Generate the keys and sign the CSR.
+     *
+     * @param keyType
+     *            the type of keys
+     * @param domainNames
+     *            the domain names of the certificate
+     * @return the request
+     */
+    public static CertificateRequest prepare(KeyType keyType, Collection<String> domainNames) {
+        long start = System.currentTimeMillis();
+        CertificateKeys keys = CertificateKeys.generate(keyType);
+        try {
+            CSRBuilder csrb = new CSRBuilder();
+            csrb.addDomains(domainNames);
+            csrb.sign(keys.getKeyPair());
+            return new CertificateRequest(keys, csrb.getEncoded());
+        } catch (Exception e) {
+            throw new LetsencryptException("Could not create the certificate request for " + domainNames, e);
+        } finally {
+            Metrics.getRegistry().record(Metrics.CERTIFICATE_REQUEST_TIME, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Generate the keys and sign the CSR in the background.
+     *
+     * @param keyType
+     *            the type of keys
+     * @param domainNames
+     *            the domain names of the certificate
+     * @return the future request
+     */
+    public static CompletableFuture<CertificateRequest> prepareAsync(KeyType keyType, Collection<String> domainNames) {
+        List<String> domainNamesCopy = new ArrayList<>(domainNames);
+        return CompletableFuture.supplyAsync(() -> prepare(keyType, domainNamesCopy), preparerExecutorService);
+    }
+
+    private final CertificateKeys keys;
+    private final byte[] encoded;
+
+    public CertificateRequest(CertificateKeys keys, byte[] encoded) {
+        this.keys = keys;
+        this.encoded = encoded;
+    }
+
+    /**
+     * Get the CSR.
+     *
+     * @return the CSR in DER
+     */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    public CertificateKeys getKeys() {
+        return keys;
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.crypt;
+
+import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.google.common.base.Strings;
+
+/**
+ * The types of keys that can be used for the certificates and the account.
+ */
+public enum KeyType {
+
+    RSA_2048(AsymmetricKeysPool.ALGORITHM_RSA, 2048, null), //
+    RSA_3072(AsymmetricKeysPool.ALGORITHM_RSA, 3072, null), //
+    RSA_4096(AsymmetricKeysPool.ALGORITHM_RSA, 4096, null), //
+    EC_P256(KeyType.ALGORITHM_EC, 256, "secp256r1"), //
+    EC_P384(KeyType.ALGORITHM_EC, 384, "secp384r1"), //
+    ;
+
+    public static final String ALGORITHM_EC = "EC";
+
+    public static final KeyType DEFAULT = RSA_4096;
+
+    /**
+     * Get the key type from its name.
+     *
+     * @param value
+     *            the name (case insensitive) or empty for the default
+     * @return the key type
+     */
+    public static KeyType fromValue(String value) {
+        if (Strings.isNullOrEmpty(value)) {
+            return DEFAULT;
+        }
+        try {
+            return KeyType.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new LetsencryptException("Unknown key type " + value);
+        }
+    }
+
+    private final String algorithm;
+    private final int keySize;
+    private final String curveName;
+
+    private KeyType(String algorithm, int keySize, String curveName) {
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+        this.curveName = curveName;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getCurveName() {
+        return curveName;
+    }
+
+    public int getKeySize() {
+        return keySize;
+    }
+
+    public boolean isRsa() {
+        return AsymmetricKeysPool.ALGORITHM_RSA.equals(algorithm);
+    }
+
+}
@@ -0,0 +1,24 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.dns;
+
+public class DnsException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DnsException(String message) {
+        super(message);
+    }
+
+    public DnsException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.dns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tuple.Tuple2;
+
+/**
+ * Checks that the DNS-01 challenges digests are visible on all the authoritative name servers of their zone. All the queries are done in parallel.
+ */
+public class DnsPropagationVerifier extends AbstractBasics {
+
+    public enum Visibility {
+        /**
+         * All the authoritative name servers have the digest.
+         */
+        VISIBLE, //
+        /**
+         * At least one authoritative name server does not have the digest yet.
+         */
+        NOT_VISIBLE, //
+        /**
+         * The authoritative name servers could not be found or could not be asked.
+         */
+        UNKNOWN, //
+    }
+
+    public static final int DEFAULT_PARALLELISM = 10;
+
+    /**
+     * Get the TXT record name for the challenge of that domain.
+     *
+     * @param domain
+     *            the domain (can be a wildcard)
+     * @return the TXT record name
+     */
+    public static String getChallengeTxtName(String domain) {
+        if (domain.startsWith("*.")) {
+            domain = domain.substring(2);
+        }
+        return "_acme-challenge." + domain;
+    }
+
+    private DnsResolver dnsResolver;
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    public DnsPropagationVerifier(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
+    /**
+     * Check the visibility of the challenges.
+     *
+     * @param digestByDomain
+     *            the expected digest by domain name
+     * @return the visibility by domain name
+     */
+    public Map<String, Visibility> check(Map<String, String> digestByDomain) {
+
+        Map<String, Visibility> visibilityByDomain = new TreeMap<>();
+        if (digestByDomain.isEmpty()) {
+            return visibilityByDomain;
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, digestByDomain.size())), runnable -> {
+            Thread thread = new Thread(runnable, "letsencrypt-dns");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+
+            // Find the name servers of each TXT name
+            Set<String> txtNames = new HashSet<>();
+            digestByDomain.keySet().forEach(domain -> txtNames.add(getChallengeTxtName(domain)));
+            Map<String, Future<List<String>>> nameserversFutureByTxtName = new HashMap<>();
+            for (String txtName : txtNames) {
+                nameserversFutureByTxtName.put(txtName, executorService.submit(() -> dnsResolver.findAuthoritativeNameservers(txtName)));
+            }
+            Map<String, List<String>> nameserversByTxtName = new HashMap<>();
+            for (Entry<String, Future<List<String>>> entry : nameserversFutureByTxtName.entrySet()) {
+                try {
+                    nameserversByTxtName.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    logger.warn("Could not find the name servers of {} : {}", entry.getKey(), e.getCause().getMessage());
+                }
+            }
+
+            // Query the TXT on each name server
+            Map<Tuple2<String, String>, Future<Set<String>>> txtFutureByNameserverAndTxtName = new HashMap<>();
+            for (Entry<String, List<String>> entry : nameserversByTxtName.entrySet()) {
+                String txtName = entry.getKey();
+                for (String nameserver : entry.getValue()) {
+                    txtFutureByNameserverAndTxtName.put(new Tuple2<>(nameserver, txtName), executorService.submit(() -> dnsResolver.findTxt(nameserver, txtName)));
+                }
+            }
+            Map<String, List<Set<String>>> txtsByTxtName = new HashMap<>();
+            Set<String> txtNamesWithErrors = new HashSet<>();
+            for (Entry<Tuple2<String, String>, Future<Set<String>>> entry : txtFutureByNameserverAndTxtName.entrySet()) {
+                String nameserver = entry.getKey().getA();
+                String txtName = entry.getKey().getB();
+                try {
+                    txtsByTxtName.computeIfAbsent(txtName, it -> new ArrayList<>()).add(entry.getValue().get());
+                } catch (ExecutionException e) {
+                    logger.warn("Could not get the TXT of {} on {} : {}", txtName, nameserver, e.getCause().getMessage());
+                    txtNamesWithErrors.add(txtName);
+                }
+            }
+
+            // Check each domain
+            for (Entry<String, String> entry : digestByDomain.entrySet()) {
+                String domain = entry.getKey();
+                String digest = entry.getValue();
+                String txtName = getChallengeTxtName(domain);
+                List<String> nameservers = nameserversByTxtName.get(txtName);
+                List<Set<String>> txtsPerNameserver = txtsByTxtName.get(txtName);
+                Visibility visibility;
+                if (nameservers == null || nameservers.isEmpty()) {
+                    visibility = Visibility.UNKNOWN;
+                } else if (txtsPerNameserver != null && txtsPerNameserver.stream().anyMatch(txts -> !txts.contains(digest))) {
+                    visibility = Visibility.NOT_VISIBLE;
+                } else if (txtNamesWithErrors.contains(txtName)) {
+                    visibility = Visibility.UNKNOWN;
+                } else {
+                    visibility = Visibility.VISIBLE;
+                }
+                logger.debug("Challenge for {} is {} on {}", domain, visibility, nameservers);
+                visibilityByDomain.put(domain, visibility);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            digestByDomain.keySet().stream().filter(it -> !visibilityByDomain.containsKey(it)).forEach(it -> visibilityByDomain.put(it, Visibility.UNKNOWN));
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        return visibilityByDomain;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public DnsPropagationVerifier setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+}
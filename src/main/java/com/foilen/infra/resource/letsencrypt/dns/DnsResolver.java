@@ -0,0 +1,42 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.dns;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The DNS queries needed to check that the challenges are published.
+ */
+public interface DnsResolver {
+
+    /**
+     * Find the authoritative name servers of the zone that contains that name.
+     *
+     * @param name
+     *            any name in the zone
+     * @return the host names of the name servers (empty if none could be found)
+     */
+    List<String> findAuthoritativeNameservers(String name);
+
+    /**
+     * Ask a specific name server for the TXT records.
+     *
+     * @param nameserver
+     *            the name server to ask
+     * @param name
+     *            the full name
+     * @return the TXT values (empty if none)
+     * @throws DnsException
+     *             if the server could not be asked
+     */
+    Set<String> findTxt(String nameserver, String name);
+
+}
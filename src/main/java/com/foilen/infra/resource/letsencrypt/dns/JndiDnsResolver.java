@@ -0,0 +1,173 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.dns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.google.common.base.Strings;
+
+/**
+ * Queries the DNS servers directly with the JNDI DNS provider (no JVM or OS cache involved).
+ */
+public class JndiDnsResolver extends AbstractBasics implements DnsResolver {
+
+    public static final int DEFAULT_PORT = 53;
+    public static final int DEFAULT_TIMEOUT_MS = 2000;
+
+    private String recursiveNameserver;
+    private int port = DEFAULT_PORT;
+    private int timeoutMs = DEFAULT_TIMEOUT_MS;
+
+    // Cache
+    private Map<String, List<String>> nameserversByZone = new ConcurrentHashMap<>();
+
+    /**
+     * Use the system's name servers to find the authoritative ones.
+     */
+    public JndiDnsResolver() {
+    }
+
+    /**
+     * Use a specific name server to find the authoritative ones.
+     *
+     * @param recursiveNameserver
+     *            the host name or IP of the name server that answers the NS queries
+     * @param port
+     *            the port of all the name servers
+     */
+    public JndiDnsResolver(String recursiveNameserver, int port) {
+        this.recursiveNameserver = recursiveNameserver;
+        this.port = port;
+    }
+
+    private DirContext createContext(String nameserver) throws NamingException {
+        Hashtable<String, String> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+        if (Strings.isNullOrEmpty(nameserver)) {
+            env.put(Context.PROVIDER_URL, "dns:");
+        } else {
+            env.put(Context.PROVIDER_URL, "dns://" + nameserver + ":" + port);
+        }
+        env.put("com.sun.jndi.dns.timeout.initial", String.valueOf(timeoutMs));
+        env.put("com.sun.jndi.dns.timeout.retries", "1");
+        env.put("com.sun.jndi.dns.recursion", String.valueOf(Strings.isNullOrEmpty(nameserver) || nameserver.equals(recursiveNameserver)));
+        return new InitialDirContext(env);
+    }
+
+    @Override
+    public List<String> findAuthoritativeNameservers(String name) {
+
+        // Go up until a name has NS records
+        String zone = removeTrailingDot(name);
+        while (zone.contains(".")) {
+            List<String> nameservers = nameserversByZone.get(zone);
+            if (nameservers == null) {
+                nameservers = new ArrayList<>();
+                for (String value : query(recursiveNameserver, zone, "NS")) {
+                    nameservers.add(removeTrailingDot(value));
+                }
+                if (!nameservers.isEmpty()) {
+                    Collections.sort(nameservers);
+                    logger.debug("Zone {} has name servers {}", zone, nameservers);
+                    nameserversByZone.put(zone, nameservers);
+                }
+            }
+            if (!nameservers.isEmpty()) {
+                return nameservers;
+            }
+            zone = zone.substring(zone.indexOf('.') + 1);
+        }
+
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Set<String> findTxt(String nameserver, String name) {
+        Set<String> values = new HashSet<>();
+        for (String value : query(nameserver, name, "TXT")) {
+            // Remove the quotes
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            values.add(value);
+        }
+        return values;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getRecursiveNameserver() {
+        return recursiveNameserver;
+    }
+
+    public int getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    private List<String> query(String nameserver, String name, String type) {
+        List<String> values = new ArrayList<>();
+        DirContext context = null;
+        try {
+            context = createContext(nameserver);
+            Attributes attributes = context.getAttributes(removeTrailingDot(name) + ".", new String[] { type });
+            Attribute attribute = attributes.get(type);
+            if (attribute != null) {
+                NamingEnumeration<?> it = attribute.getAll();
+                while (it.hasMore()) {
+                    values.add(String.valueOf(it.next()));
+                }
+            }
+        } catch (NameNotFoundException e) {
+            // No record
+        } catch (NamingException e) {
+            throw new DnsException("Could not query " + type + " " + name + " on " + (nameserver == null ? "the system name servers" : nameserver), e);
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (NamingException e) {
+                }
+            }
+        }
+        return values;
+    }
+
+    private String removeTrailingDot(String name) {
+        if (name.endsWith(".")) {
+            return name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+
+    public JndiDnsResolver setTimeoutMs(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+}
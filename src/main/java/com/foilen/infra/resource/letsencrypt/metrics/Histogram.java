@@ -0,0 +1,87 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A histogram with fixed buckets that are good for durations in milliseconds (from 1 ms to 30 minutes) and for small amounts.
+ */
+public class Histogram {
+
+    private static final long[] BUCKET_UPPER_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 30000, 60000, 120000, 300000, 600000, 1200000, 1800000,
+            Long.MAX_VALUE };
+
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private long[] bucketCounts = new long[BUCKET_UPPER_BOUNDS.length];
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * Get an approximation of the percentile.
+     *
+     * @param percentile
+     *            the percentile (between 0 and 100)
+     * @return the upper bound of the bucket that contains the percentile (or the max if it is lower)
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < bucketCounts.length; ++i) {
+            seen += bucketCounts[i];
+            if (seen >= rank) {
+                return Math.min(BUCKET_UPPER_BOUNDS[i], max);
+            }
+        }
+        return max;
+    }
+
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    public synchronized void record(long value) {
+        ++count;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        int index = Arrays.binarySearch(BUCKET_UPPER_BOUNDS, value);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        ++bucketCounts[index];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + count + ", mean=" + (long) getMean() + ", p50=" + getPercentile(50) + ", p95=" + getPercentile(95) + ", max=" + getMax();
+    }
+
+}
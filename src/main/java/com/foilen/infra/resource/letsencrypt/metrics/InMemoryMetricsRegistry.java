@@ -0,0 +1,95 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the metrics in memory. Useful for the tests and to log a summary.
+ */
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Remove all the metrics.
+     */
+    public void clear() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    /**
+     * Get the value of a counter.
+     *
+     * @param name
+     *            the name of the counter
+     * @return the value (0 if never incremented)
+     */
+    public long getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Get all the counters.
+     *
+     * @return the value by name (sorted)
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> valueByName = new TreeMap<>();
+        counters.forEach((name, counter) -> valueByName.put(name, counter.get()));
+        return valueByName;
+    }
+
+    /**
+     * Get a histogram.
+     *
+     * @param name
+     *            the name of the histogram
+     * @return the histogram (empty if never recorded)
+     */
+    public Histogram getHistogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram == null ? new Histogram() : histogram;
+    }
+
+    /**
+     * Get all the histograms.
+     *
+     * @return the histogram by name (sorted)
+     */
+    public Map<String, Histogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    @Override
+    public void increment(String name, long amount) {
+        counters.computeIfAbsent(name, it -> new AtomicLong()).addAndGet(amount);
+    }
+
+    @Override
+    public void record(String name, long value) {
+        histograms.computeIfAbsent(name, it -> new Histogram()).record(value);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        getCounters().forEach((name, value) -> summary.append(name).append(": ").append(value).append('\n'));
+        getHistograms().forEach((name, histogram) -> summary.append(name).append(": ").append(histogram).append('\n'));
+        return summary.toString();
+    }
+
+}
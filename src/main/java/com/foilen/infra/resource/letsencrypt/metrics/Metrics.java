@@ -0,0 +1,167 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.metrics;
+
+import java.util.function.Supplier;
+
+/**
+ * The names of the metrics of the renewal pipeline and the {@link MetricsRegistry} to send them to. The times are in milliseconds.
+ */
+public abstract class Metrics {
+
+    /**
+     * Histogram: the time to create an order and get its challenges.
+     */
+    public static final String ACME_CHALLENGE_INIT_TIME = "acme.challengeInit.time";
+    /**
+     * Counter: the requests sent to the ACME server (without the nonce requests).
+     */
+    public static final String ACME_REQUESTS = "acme.requests";
+    /**
+     * Counter: the signed requests that took a nonce from the pool.
+     */
+    public static final String ACME_NONCE_HITS = "acme.nonce.hits";
+    /**
+     * Counter: the signed requests that had to ask the server for a nonce (an extra round-trip).
+     */
+    public static final String ACME_NONCE_MISSES = "acme.nonce.misses";
+    /**
+     * Counter: the ACME responses that had unread data that was read to let the HTTP connection be reused.
+     */
+    public static final String ACME_CONNECTIONS_DRAINED = "acme.connections.drained";
+    /**
+     * Histogram: the time to generate the keys of a certificate or an account.
+     */
+    public static final String KEY_GENERATION_TIME = "crypt.keyGeneration.time";
+    /**
+     * Counter: the RSA keys that were taken ready from the keys pool.
+     */
+    public static final String KEYS_POOL_HITS = "crypt.keysPool.hits";
+    /**
+     * Counter: the RSA keys that were generated inline since the keys pool was empty.
+     */
+    public static final String KEYS_POOL_MISSES = "crypt.keysPool.misses";
+    /**
+     * Histogram: the time to generate the keys and sign the CSR of a certificate.
+     */
+    public static final String CERTIFICATE_REQUEST_TIME = "crypt.certificateRequest.time";
+    /**
+     * Histogram: the time between the creation of the DNS challenges and their visibility on all the authoritative name servers.
+     */
+    public static final String DNS_PROPAGATION_TIME = "renewal.dnsPropagation.time";
+    /**
+     * Histogram: the amount of DNS checks before the challenges were visible.
+     */
+    public static final String DNS_PROPAGATION_CHECKS = "renewal.dnsPropagation.checks";
+    /**
+     * Histogram: the time between the trigger of the challenges and their validation.
+     */
+    public static final String CHALLENGE_COMPLETE_TIME = "renewal.challengeComplete.time";
+    /**
+     * Histogram: the amount of status updates before the challenges were validated.
+     */
+    public static final String CHALLENGE_COMPLETE_POLLS = "renewal.challengeComplete.polls";
+    /**
+     * Histogram: the time between the finalization of the order and the certificate being available.
+     */
+    public static final String ORDER_FINALIZE_TIME = "renewal.orderFinalize.time";
+    /**
+     * Histogram: the time the finalization waited for the CSR that was prepared in the background (0 when it was ready).
+     */
+    public static final String CERTIFICATE_REQUEST_WAIT_TIME = "renewal.certificateRequestWait.time";
+    /**
+     * Histogram: the time of a whole renewal.
+     */
+    public static final String RENEWAL_TIME = "renewal.total.time";
+    /**
+     * Counter: the renewals that succeeded.
+     */
+    public static final String RENEWAL_SUCCESSES = "renewal.successes";
+    /**
+     * Counter prefix: the renewals that failed, by cause (the stage where it failed).
+     */
+    public static final String RENEWAL_FAILURES_PREFIX = "renewal.failures.";
+    /**
+     * Counter: the queries done on the resources.
+     */
+    public static final String RESOURCE_QUERIES = "resource.queries";
+    /**
+     * Histogram suffix: the amount of queries on the resources in one run of a timer.
+     */
+    public static final String RESOURCE_QUERIES_PER_RUN_SUFFIX = ".resourceQueries";
+
+    private static final ThreadLocal<int[]> resourceQueriesInRun = ThreadLocal.withInitial(() -> new int[1]);
+
+    private static volatile MetricsRegistry registry = new InMemoryMetricsRegistry();
+
+    /**
+     * Count a failure.
+     *
+     * @param cause
+     *            the cause
+     */
+    public static void failure(String cause) {
+        registry.increment(RENEWAL_FAILURES_PREFIX + cause);
+    }
+
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Count a query on the resources (globally and in the current run).
+     */
+    public static void resourceQuery() {
+        registry.increment(RESOURCE_QUERIES);
+        ++resourceQueriesInRun.get()[0];
+    }
+
+    /**
+     * Record the amount of queries on the resources done in this thread since {@link #runStart()}.
+     *
+     * @param runName
+     *            the name of the run
+     */
+    public static void runEnd(String runName) {
+        registry.record(runName + RESOURCE_QUERIES_PER_RUN_SUFFIX, resourceQueriesInRun.get()[0]);
+    }
+
+    /**
+     * Start counting the queries on the resources done in this thread.
+     */
+    public static void runStart() {
+        resourceQueriesInRun.get()[0] = 0;
+    }
+
+    public static void setRegistry(MetricsRegistry registry) {
+        Metrics.registry = registry;
+    }
+
+    /**
+     * Execute and record the time it took (even if it fails).
+     *
+     * @param name
+     *            the name of the histogram
+     * @param supplier
+     *            what to execute
+     * @param <T>
+     *            the type of the result
+     * @return the result
+     */
+    public static <T> T time(String name, Supplier<T> supplier) {
+        long start = System.currentTimeMillis();
+        try {
+            return supplier.get();
+        } finally {
+            registry.record(name, System.currentTimeMillis() - start);
+        }
+    }
+
+}
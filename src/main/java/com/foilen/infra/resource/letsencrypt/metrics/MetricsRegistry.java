@@ -0,0 +1,47 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.metrics;
+
+/**
+ * Where the metrics are sent. The default one is the {@link InMemoryMetricsRegistry}, but it can be replaced with {@link Metrics#setRegistry(MetricsRegistry)} to send them to a monitoring system.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Increment a counter by 1.
+     *
+     * @param name
+     *            the name of the counter
+     */
+    default void increment(String name) {
+        increment(name, 1);
+    }
+
+    /**
+     * Increment a counter.
+     *
+     * @param name
+     *            the name of the counter
+     * @param amount
+     *            the amount to add
+     */
+    void increment(String name, long amount);
+
+    /**
+     * Record a value in a histogram.
+     *
+     * @param name
+     *            the name of the histogram
+     * @param value
+     *            the value (a duration in milliseconds or an amount)
+     */
+    void record(String name, long value);
+
+}
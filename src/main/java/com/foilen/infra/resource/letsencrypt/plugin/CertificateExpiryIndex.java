@@ -0,0 +1,237 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+import com.foilen.smalltools.tools.AbstractBasics;
+
+/**
+ * Keeps the ids of the Lets Encrypt certificates ordered by the time they can be renewed: the start of their renewal window or their next attempt after a failure (whichever is the latest).
+ * It is built from all the certificates once per day and kept up to date from the update events in between so that the begin timer only loads the certificates that are due.
+ * <p>
+ * The update events come before their changes are committed and the changes can still be rolled back. So between the rebuilds, the index is only a hint: an event can make a certificate
+ * due sooner (see {@link #hint(WebsiteCertificate)}), but never later nor remove it. The begin timer loads the certificates that the index says are due and checks them again with
+ * {@link #refresh(Collection, Collection)}. That check drops the ids that are not in the system anymore and moves the others to their real due time. A rolled back change can then only
+ * cause an extra load, never a missed renewal.
+ * </p>
+ */
+public class CertificateExpiryIndex extends AbstractBasics {
+
+    public static final long DEFAULT_REBUILD_INTERVAL_MS = RenewalScheduler.DAY_MS;
+
+    /**
+     * Get the time when the certificate can be renewed with another renewal window than the one of this index.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     * @param windowStartMs
+     *            how long before the end the renewal window starts
+     * @return the start of its renewal window or its next attempt after a failure (whichever is the latest)
+     */
+    public static long getDueTime(WebsiteCertificate websiteCertificate, long windowStartMs) {
+        return Math.max(websiteCertificate.getEnd().getTime() - windowStartMs, LetsencryptHelper.getNextAttemptTime(websiteCertificate));
+    }
+
+    private long windowStartMs = RenewalScheduler.DEFAULT_WINDOW_START_MS;
+    private long rebuildIntervalMs = DEFAULT_REBUILD_INTERVAL_MS;
+
+    private TreeMap<Long, Set<Long>> idsByDueTime = new TreeMap<>();
+    private Map<Long, Long> dueTimeById = new HashMap<>();
+    private long builtTime = -1;
+
+    /**
+     * Get the ids of the certificates that are due.
+     *
+     * @param now
+     *            the current time
+     * @return the ids
+     */
+    public synchronized List<Long> findDue(long now) {
+        List<Long> ids = new ArrayList<>();
+        idsByDueTime.headMap(now, true).values().forEach(ids::addAll);
+        return ids;
+    }
+
+    /**
+     * Get the time when the certificate can be renewed.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     * @return the start of its renewal window or its next attempt after a failure (whichever is the latest)
+     */
+    public long getDueTime(WebsiteCertificate websiteCertificate) {
+        return getDueTime(websiteCertificate, windowStartMs);
+    }
+
+    /**
+     * Get the first due time after now.
+     *
+     * @param now
+     *            the current time
+     * @return the time or -1 if none
+     */
+    public synchronized long getNextDueTime(long now) {
+        Long dueTime = idsByDueTime.higherKey(now);
+        return dueTime == null ? -1 : dueTime;
+    }
+
+    public long getRebuildIntervalMs() {
+        return rebuildIntervalMs;
+    }
+
+    public long getWindowStartMs() {
+        return windowStartMs;
+    }
+
+    /**
+     * Tell if the index must be rebuilt from all the certificates. That is when it was never built, when it is older than the rebuild interval or when an update could not be indexed.
+     *
+     * @param now
+     *            the current time
+     * @return true if must be rebuilt
+     */
+    public synchronized boolean isStale(long now) {
+        return builtTime == -1 || now - builtTime >= rebuildIntervalMs;
+    }
+
+    /**
+     * Mark the index as stale to rebuild it on the next use.
+     */
+    public synchronized void markStale() {
+        builtTime = -1;
+    }
+
+    /**
+     * Make the certificate due sooner if it changed that way. The certificates that are due later or that are not managed by Lets Encrypt anymore are left as they are until they are
+     * checked by {@link #refresh(Collection, Collection)} or until the next rebuild.
+     *
+     * @param websiteCertificate
+     *            the certificate that might not be committed yet
+     */
+    public synchronized void hint(WebsiteCertificate websiteCertificate) {
+        Long id = websiteCertificate.getInternalId();
+        if (id == null) {
+            // Cannot track it. Will get it on the next rebuild
+            markStale();
+            return;
+        }
+
+        if (!LetsEncryptWebsiteCertificateEditor.EDITOR_NAME.equals(websiteCertificate.getResourceEditorName()) || websiteCertificate.getEnd() == null) {
+            return;
+        }
+
+        Long currentDueTime = dueTimeById.get(id);
+        if (currentDueTime == null || getDueTime(websiteCertificate) < currentDueTime) {
+            update(websiteCertificate);
+        }
+    }
+
+    /**
+     * Replace the content of the index.
+     *
+     * @param websiteCertificates
+     *            all the Lets Encrypt certificates
+     * @param now
+     *            the current time
+     */
+    public synchronized void rebuild(Collection<WebsiteCertificate> websiteCertificates, long now) {
+        idsByDueTime.clear();
+        dueTimeById.clear();
+        builtTime = now;
+        websiteCertificates.forEach(this::update);
+        logger.info("Indexed {} certificates", dueTimeById.size());
+    }
+
+    /**
+     * Update the certificates that were loaded and remove the ones that are not there anymore.
+     *
+     * @param ids
+     *            the ids that were asked
+     * @param websiteCertificates
+     *            the certificates that were found
+     */
+    public synchronized void refresh(Collection<Long> ids, Collection<WebsiteCertificate> websiteCertificates) {
+        Set<Long> missingIds = new HashSet<>(ids);
+        for (WebsiteCertificate websiteCertificate : websiteCertificates) {
+            missingIds.remove(websiteCertificate.getInternalId());
+            update(websiteCertificate);
+        }
+        missingIds.forEach(this::remove);
+    }
+
+    public synchronized void remove(Long id) {
+        Long dueTime = dueTimeById.remove(id);
+        if (dueTime != null) {
+            Set<Long> ids = idsByDueTime.get(dueTime);
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                idsByDueTime.remove(dueTime);
+            }
+        }
+    }
+
+    public CertificateExpiryIndex setRebuildIntervalMs(long rebuildIntervalMs) {
+        this.rebuildIntervalMs = rebuildIntervalMs;
+        return this;
+    }
+
+    /**
+     * Change the start of the renewal window. The index is marked as stale when it changes.
+     *
+     * @param windowStartMs
+     *            the delay before the end when the renewal window starts
+     * @return this
+     */
+    public synchronized CertificateExpiryIndex setWindowStartMs(long windowStartMs) {
+        if (this.windowStartMs != windowStartMs) {
+            this.windowStartMs = windowStartMs;
+            markStale();
+        }
+        return this;
+    }
+
+    public synchronized int size() {
+        return dueTimeById.size();
+    }
+
+    /**
+     * Add or update a certificate. The ones that are not managed by Lets Encrypt are removed.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     */
+    public synchronized void update(WebsiteCertificate websiteCertificate) {
+        Long id = websiteCertificate.getInternalId();
+        if (id == null) {
+            // Cannot track it. Will get it on the next rebuild
+            markStale();
+            return;
+        }
+
+        remove(id);
+        if (!LetsEncryptWebsiteCertificateEditor.EDITOR_NAME.equals(websiteCertificate.getResourceEditorName()) || websiteCertificate.getEnd() == null) {
+            return;
+        }
+
+        long dueTime = getDueTime(websiteCertificate);
+        dueTimeById.put(id, dueTime);
+        idsByDueTime.computeIfAbsent(dueTime, it -> new HashSet<>()).add(id);
+    }
+
+}
@@ -0,0 +1,498 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.shredzone.acme4j.Status;
+import org.shredzone.acme4j.challenge.Dns01Challenge;
+
+import com.foilen.infra.resource.letsencrypt.acme.AcmeService;
+import com.foilen.infra.resource.letsencrypt.acme.CertificateChain;
+import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.foilen.infra.resource.letsencrypt.acme.OrderAndChallenges;
+import com.foilen.infra.resource.letsencrypt.acme.PollingStrategy;
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateRequest;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
+import com.foilen.infra.resource.letsencrypt.dns.DnsPropagationVerifier.Visibility;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tuple.Tuple2;
+
+/**
+ * The renewal of one certificate. It first waits for its own DNS challenges to be visible (see {@link #dnsChecked(Map, PollingStrategy)}) and then, each
+ * {@link #step(AcmeService, PollingStrategy, PollingStrategy)} advances as far as possible without waiting and tells when it needs to be called again.
+ */
+public class CertificateRenewal extends AbstractBasics {
+
+    public enum Stage {
+        WAIT_DNS, //
+        TRIGGER_CHALLENGES, //
+        WAIT_CHALLENGES, //
+        FINALIZE, //
+        WAIT_ORDER, //
+        COMPLETED, //
+        CHALLENGE_FAILED, //
+        FAILED, //
+    }
+
+    /**
+     * When the authoritative name servers cannot be asked, how long to wait before triggering the challenges anyway.
+     */
+    public static final long DNS_UNKNOWN_GRACE_MS = 2 * 60000;
+
+    /**
+     * Get back a renewal from its saved state.
+     *
+     * @param domain
+     *            the main domain of the certificate
+     * @param orderAndChallenges
+     *            the order and challenges bound again from the order url
+     * @param renewalState
+     *            the saved state
+     * @return the renewal
+     */
+    public static CertificateRenewal fromState(String domain, OrderAndChallenges orderAndChallenges, RenewalState renewalState) {
+        CertificateRenewal renewal = new CertificateRenewal(domain, orderAndChallenges);
+        renewal.startTime = renewalState.getStartTime();
+
+        Stage stage = Stage.valueOf(renewalState.getStage());
+        switch (stage) {
+        case WAIT_CHALLENGES:
+            // The VALID ones will be skipped
+            stage = Stage.TRIGGER_CHALLENGES;
+            break;
+        case COMPLETED:
+            // The certificate could be downloaded again, but not used without its keys
+            stage = Stage.WAIT_ORDER;
+            break;
+        default:
+            break;
+        }
+        renewal.changeStage(stage);
+        renewal.attempts = renewalState.getAttempts();
+        renewal.persistedStage = stage;
+
+        renewal.keyType = KeyType.fromValue(renewalState.getKeyType());
+        if (stage == Stage.WAIT_ORDER) {
+            renewal.fail(Stage.FAILED, "The order was finalized with keys that are not saved. A new order is needed");
+        }
+
+        return renewal;
+    }
+
+    private String domain;
+    private OrderAndChallenges orderAndChallenges;
+    private Long websiteCertificateId;
+    private long startTime = System.currentTimeMillis();
+    private Stage persistedStage;
+
+    private Stage stage = Stage.WAIT_DNS;
+    private long stageStartTime;
+    private long nextCheckTime;
+    private int attempts;
+    private Instant retryAfter;
+    private long finalizeStartTime;
+    private Set<String> pendingChallengeDomains = new LinkedHashSet<>();
+
+    private KeyType keyType = KeyType.DEFAULT;
+    private CompletableFuture<CertificateRequest> preparedCertificateRequest;
+    private CertificateKeys keys;
+    private CertificateChain certificateChain;
+    private String failure;
+    private Stage failedStage;
+
+    public CertificateRenewal(String domain, OrderAndChallenges orderAndChallenges) {
+        this.domain = domain;
+        this.orderAndChallenges = orderAndChallenges;
+        if (orderAndChallenges.getChallengeByDomain().isEmpty()) {
+            // All the authorizations are already valid
+            changeStage(Stage.FINALIZE);
+        } else {
+            changeStage(Stage.WAIT_DNS);
+        }
+    }
+
+    private void changeStage(Stage stage) {
+        this.stage = stage;
+        stageStartTime = System.currentTimeMillis();
+        nextCheckTime = stageStartTime;
+        attempts = 0;
+        retryAfter = null;
+    }
+
+    /**
+     * Give the result of the DNS check of the challenges. When they are all visible, the challenges can be triggered. When some are not visible yet, the next check is scheduled with the
+     * polling strategy (and it fails when it gives up). When some could not be checked, the challenges are triggered after {@link #DNS_UNKNOWN_GRACE_MS}.
+     *
+     * @param visibilityByDomain
+     *            the visibility of the challenges (can contain other domains)
+     * @param dnsPollingStrategy
+     *            how to wait for the DNS
+     */
+    public void dnsChecked(Map<String, Visibility> visibilityByDomain, PollingStrategy dnsPollingStrategy) {
+
+        if (stage != Stage.WAIT_DNS) {
+            return;
+        }
+
+        ++attempts;
+        boolean hasNotVisible = false;
+        boolean hasUnknown = false;
+        for (String challengeDomain : orderAndChallenges.getChallengeByDomain().keySet()) {
+            Visibility visibility = visibilityByDomain.get(challengeDomain);
+            if (visibility == Visibility.NOT_VISIBLE) {
+                hasNotVisible = true;
+            } else if (visibility != Visibility.VISIBLE) {
+                hasUnknown = true;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (hasNotVisible) {
+            logger.info("The challenges for certificate {} are not visible yet", domain);
+            scheduleNextCheck(dnsPollingStrategy, Stage.CHALLENGE_FAILED, "DNS");
+        } else if (hasUnknown && now - stageStartTime < DNS_UNKNOWN_GRACE_MS) {
+            logger.info("The challenges for certificate {} could not be checked. Will trigger them after the grace delay", domain);
+            nextCheckTime = stageStartTime + DNS_UNKNOWN_GRACE_MS;
+        } else {
+            logger.info("The challenges for certificate {} are ready", domain);
+            Metrics.getRegistry().record(Metrics.DNS_PROPAGATION_TIME, now - stageStartTime);
+            Metrics.getRegistry().record(Metrics.DNS_PROPAGATION_CHECKS, attempts);
+            changeStage(Stage.TRIGGER_CHALLENGES);
+        }
+
+    }
+
+    private void fail(Stage stage, String failure) {
+        logger.info("Failed the {} for certificate: {} ; reason: {}", stage == Stage.CHALLENGE_FAILED ? "challenge" : "certificate", domain, failure);
+        Metrics.failure(this.stage.name());
+        failedStage = this.stage;
+        this.stage = stage;
+        this.failure = failure;
+        if (preparedCertificateRequest != null) {
+            preparedCertificateRequest.cancel(false);
+            preparedCertificateRequest = null;
+        }
+    }
+
+    public X509Certificate getCertificate() {
+        return certificateChain == null ? null : certificateChain.getCertificate();
+    }
+
+    public CertificateChain getCertificateChain() {
+        return certificateChain;
+    }
+
+    /**
+     * Get the expected TXT value of each challenge.
+     *
+     * @return the digest by domain name
+     */
+    public Map<String, String> getDigestByDomain() {
+        Map<String, String> digestByDomain = new HashMap<>();
+        orderAndChallenges.getChallengeByDomain().forEach((challengeDomain, challenge) -> digestByDomain.put(challengeDomain, challenge.getDigest()));
+        return digestByDomain;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    public CertificateKeys getKeys() {
+        return keys;
+    }
+
+    public KeyType getKeyType() {
+        return keyType;
+    }
+
+    public long getNextCheckTime() {
+        return nextCheckTime;
+    }
+
+    public OrderAndChallenges getOrderAndChallenges() {
+        return orderAndChallenges;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public Long getWebsiteCertificateId() {
+        return websiteCertificateId;
+    }
+
+    public boolean isChallengeFailed() {
+        return stage == Stage.CHALLENGE_FAILED;
+    }
+
+    public boolean isDone() {
+        return stage == Stage.COMPLETED || stage == Stage.CHALLENGE_FAILED || stage == Stage.FAILED;
+    }
+
+    /**
+     * Tells if it needs to be advanced now.
+     *
+     * @return true if it is not done and the next check time is passed
+     */
+    public boolean isDue() {
+        return !isDone() && nextCheckTime <= System.currentTimeMillis();
+    }
+
+    /**
+     * Tells if the stage changed since the last time the state was saved.
+     *
+     * @return true if the state should be saved
+     */
+    public boolean isStateChanged() {
+        return stage != persistedStage;
+    }
+
+    /**
+     * Tells if the server refused the challenges (and not only that they were not visible in the DNS). These count in the failed validations rate limit.
+     *
+     * @return true if the challenges were triggered and failed
+     */
+    public boolean isValidationFailed() {
+        return stage == Stage.CHALLENGE_FAILED && (failedStage == Stage.TRIGGER_CHALLENGES || failedStage == Stage.WAIT_CHALLENGES);
+    }
+
+    public boolean isWaitingDns() {
+        return stage == Stage.WAIT_DNS;
+    }
+
+    /**
+     * Start generating the keys and signing the CSR in the background so they are ready when the order is finalized. Does nothing if the keys are already there.
+     *
+     * @return this
+     */
+    public CertificateRenewal prepareCertificateRequest() {
+        if (keys == null && preparedCertificateRequest == null && !isDone()) {
+            preparedCertificateRequest = CertificateRequest.prepareAsync(keyType, orderAndChallenges.getDomainNames());
+        }
+        return this;
+    }
+
+    private void scheduleNextCheck(PollingStrategy pollingStrategy, Stage failStage, String what) {
+        long now = System.currentTimeMillis();
+        long delay = pollingStrategy.nextDelay(attempts, now - stageStartTime, retryAfter);
+        if (delay < 0) {
+            fail(failStage, "The " + what + " status is still not valid after " + (now - stageStartTime) / 1000 + " seconds");
+        } else {
+            nextCheckTime = now + delay;
+        }
+    }
+
+    public CertificateRenewal setKeyType(KeyType keyType) {
+        this.keyType = keyType;
+        return this;
+    }
+
+    /**
+     * Keep the internal id of the certificate to renew to find it again without searching by domain names.
+     *
+     * @param websiteCertificateId
+     *            the internal id or null if it is not saved yet
+     * @return this
+     */
+    public CertificateRenewal setWebsiteCertificateId(Long websiteCertificateId) {
+        this.websiteCertificateId = websiteCertificateId;
+        return this;
+    }
+
+    /**
+     * Advance as far as possible without waiting. Does nothing if it is not due or if it is waiting for the DNS.
+     *
+     * @param acmeService
+     *            the service
+     * @param challengePollingStrategy
+     *            how to wait for the challenges
+     * @param orderPollingStrategy
+     *            how to wait for the order
+     */
+    public void step(AcmeService acmeService, PollingStrategy challengePollingStrategy, PollingStrategy orderPollingStrategy) {
+
+        try {
+            while (isDue()) {
+                switch (stage) {
+                case TRIGGER_CHALLENGES:
+                    stepTriggerChallenges(acmeService, challengePollingStrategy);
+                    break;
+                case WAIT_CHALLENGES:
+                    stepWaitChallenges(acmeService, challengePollingStrategy);
+                    break;
+                case FINALIZE:
+                    stepFinalize(acmeService, orderPollingStrategy);
+                    break;
+                case WAIT_ORDER:
+                    stepWaitOrder(acmeService, orderPollingStrategy);
+                    break;
+                default: // WAIT_DNS is advanced by dnsChecked
+                    return;
+                }
+            }
+        } catch (LetsencryptException e) {
+            boolean challengeStage = stage == Stage.TRIGGER_CHALLENGES || stage == Stage.WAIT_CHALLENGES;
+            fail(challengeStage ? Stage.CHALLENGE_FAILED : Stage.FAILED, e.getMessage());
+        } catch (Exception e) {
+            logger.error("Unexpected failure for certificate: {}", domain, e);
+            fail(Stage.FAILED, e.getMessage());
+        }
+
+    }
+
+    private void stepFinalize(AcmeService acmeService, PollingStrategy orderPollingStrategy) throws Exception {
+
+        logger.info("Getting certificate for: {}", domain);
+        finalizeStartTime = System.currentTimeMillis();
+        CertificateRequest certificateRequest = takeCertificateRequest();
+        keys = certificateRequest.getKeys();
+
+        acmeService.orderExecute(orderAndChallenges.getOrder(), certificateRequest.getEncoded());
+        changeStage(Stage.WAIT_ORDER);
+        checkOrderStatus(acmeService, orderAndChallenges.getOrder().getStatus(), null);
+        if (stage == Stage.WAIT_ORDER) {
+            scheduleNextCheck(orderPollingStrategy, Stage.FAILED, "order");
+        }
+    }
+
+    private void stepTriggerChallenges(AcmeService acmeService, PollingStrategy challengePollingStrategy) {
+
+        pendingChallengeDomains.clear();
+        for (String challengeDomain : orderAndChallenges.getChallengeByDomain().keySet()) {
+            Dns01Challenge challenge = orderAndChallenges.getChallengeByDomain().get(challengeDomain);
+            if (challenge.getStatus() == Status.VALID) {
+                continue;
+            }
+            logger.info("Complete the challenge for certificate: {} ; domain: {}", domain, challengeDomain);
+            acmeService.challengeTrigger(challenge);
+            pendingChallengeDomains.add(challengeDomain);
+        }
+
+        if (pendingChallengeDomains.isEmpty()) {
+            changeStage(Stage.FINALIZE);
+        } else {
+            changeStage(Stage.WAIT_CHALLENGES);
+            scheduleNextCheck(challengePollingStrategy, Stage.CHALLENGE_FAILED, "challenge");
+        }
+    }
+
+    private void stepWaitChallenges(AcmeService acmeService, PollingStrategy challengePollingStrategy) {
+
+        retryAfter = null;
+        for (String challengeDomain : new LinkedHashSet<>(pendingChallengeDomains)) {
+            Tuple2<Status, Instant> statusAndRetryAfter = acmeService.challengeUpdate(orderAndChallenges.getChallengeByDomain().get(challengeDomain));
+            Status status = statusAndRetryAfter.getA();
+            if (status == Status.INVALID) {
+                fail(Stage.CHALLENGE_FAILED, "The challenge failed for " + challengeDomain);
+                return;
+            }
+            if (status == Status.VALID) {
+                pendingChallengeDomains.remove(challengeDomain);
+            }
+            if (statusAndRetryAfter.getB() != null && (retryAfter == null || statusAndRetryAfter.getB().isAfter(retryAfter))) {
+                retryAfter = statusAndRetryAfter.getB();
+            }
+        }
+        ++attempts;
+
+        if (pendingChallengeDomains.isEmpty()) {
+            Metrics.getRegistry().record(Metrics.CHALLENGE_COMPLETE_TIME, System.currentTimeMillis() - stageStartTime);
+            Metrics.getRegistry().record(Metrics.CHALLENGE_COMPLETE_POLLS, attempts);
+            changeStage(Stage.FINALIZE);
+        } else {
+            scheduleNextCheck(challengePollingStrategy, Stage.CHALLENGE_FAILED, "challenge");
+        }
+    }
+
+    private void stepWaitOrder(AcmeService acmeService, PollingStrategy orderPollingStrategy) {
+        Tuple2<Status, Instant> statusAndRetryAfter = acmeService.orderUpdate(orderAndChallenges.getOrder());
+        ++attempts;
+        checkOrderStatus(acmeService, statusAndRetryAfter.getA(), statusAndRetryAfter.getB());
+        if (stage == Stage.WAIT_ORDER) {
+            scheduleNextCheck(orderPollingStrategy, Stage.FAILED, "order");
+        }
+    }
+
+    private void checkOrderStatus(AcmeService acmeService, Status status, Instant retryAfter) {
+        this.retryAfter = retryAfter;
+        if (status == Status.INVALID) {
+            fail(Stage.FAILED, "The order failed");
+        } else if (status == Status.VALID) {
+            certificateChain = acmeService.orderCertificate(orderAndChallenges.getOrder());
+            logger.info("Successfully updated certificate: {}", domain);
+            stage = Stage.COMPLETED;
+
+            long now = System.currentTimeMillis();
+            if (finalizeStartTime != 0) {
+                Metrics.getRegistry().record(Metrics.ORDER_FINALIZE_TIME, now - finalizeStartTime);
+            }
+            Metrics.getRegistry().record(Metrics.RENEWAL_TIME, now - startTime);
+            Metrics.getRegistry().increment(Metrics.RENEWAL_SUCCESSES);
+        }
+    }
+
+    private CertificateRequest takeCertificateRequest() {
+
+        CompletableFuture<CertificateRequest> future = preparedCertificateRequest;
+        preparedCertificateRequest = null;
+        if (future == null) {
+            return CertificateRequest.prepare(keyType, orderAndChallenges.getDomainNames());
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            return future.join();
+        } catch (Exception e) {
+            logger.warn("The certificate request prepared for {} failed. Preparing it again : {}", domain, e.getMessage());
+            return CertificateRequest.prepare(keyType, orderAndChallenges.getDomainNames());
+        } finally {
+            Metrics.getRegistry().record(Metrics.CERTIFICATE_REQUEST_WAIT_TIME, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Get the state to save and consider it saved. The keys are not in it.
+     *
+     * @return the state
+     */
+    public RenewalState toState() {
+        RenewalState renewalState = new RenewalState();
+        renewalState.setStartTime(startTime);
+        if (orderAndChallenges.getOrder() != null) {
+            renewalState.setOrderUrl(orderAndChallenges.getOrder().getLocation().toString());
+        }
+        renewalState.getAuthorizationUrlByDomain().putAll(orderAndChallenges.getAuthorizationUrlByDomain());
+        renewalState.getDigestByDomain().putAll(getDigestByDomain());
+        renewalState.setStage(stage.name());
+        renewalState.setAttempts(attempts);
+        renewalState.setKeyType(keyType.name());
+        persistedStage = stage;
+        return renewalState;
+    }
+
+    @Override
+    public String toString() {
+        return "CertificateRenewal [domain=" + domain + ", stage=" + stage + ", attempts=" + attempts + ", failure=" + failure + "]";
+    }
+
+}
@@ -16,6 +16,8 @@ import java.util.Collections;
 import com.foilen.infra.plugin.v1.core.context.CommonServicesContext;
 import com.foilen.infra.plugin.v1.core.plugin.IPPluginDefinitionProvider;
 import com.foilen.infra.plugin.v1.core.plugin.IPPluginDefinitionV1;
+import com.foilen.infra.plugin.v1.core.service.IPResourceService;
+import com.foilen.infra.resource.letsencrypt.crypt.AsymmetricKeysPool;
 
 public class FoilenLetsencryptPluginDefinitionProvider implements IPPluginDefinitionProvider {
 
@@ -27,12 +29,20 @@ public class FoilenLetsencryptPluginDefinitionProvider implements IPPluginDefini
                 Arrays.asList(LetsencryptConfig.PROPERTY_NAME), //
                 Collections.emptyList());
 
-        pluginDefinition.addTimer(new LetsEncryptRefreshOldCertsBeginTimer(), //
+        CertificateExpiryIndex expiryIndex = new CertificateExpiryIndex();
+        LetsEncryptRefreshOldCertsBeginTimer beginTimer = new LetsEncryptRefreshOldCertsBeginTimer().setExpiryIndex(expiryIndex);
+        pluginDefinition.addTimer(beginTimer, //
                 LetsEncryptRefreshOldCertsBeginTimer.TIMER_NAME, //
                 Calendar.DAY_OF_YEAR, //
                 1, //
                 false, //
                 true);
+        pluginDefinition.addTimer(new LetsEncryptRenewalPlanTimer(beginTimer), //
+                LetsEncryptRenewalPlanTimer.TIMER_NAME, //
+                Calendar.DAY_OF_YEAR, //
+                1, //
+                false, //
+                true);
 
         // Resource editors
         pluginDefinition.addTranslations("/com/foilen/infra/resource/letsencrypt/messages");
@@ -41,12 +51,17 @@ public class FoilenLetsencryptPluginDefinitionProvider implements IPPluginDefini
 
         // Updater
         pluginDefinition.addUpdateHandler(new LetsencryptConfigUpdateHandler());
+        pluginDefinition.addUpdateHandler(new WebsiteCertificateExpiryIndexUpdateHandler(expiryIndex));
 
         return pluginDefinition;
     }
 
     @Override
     public void initialize(CommonServicesContext commonServicesContext) {
+        // Start filling the keys pools in the background (the default one is used for the temporary certificates)
+        AsymmetricKeysPool.getDefaultPool();
+        IPResourceService resourceService = commonServicesContext.getResourceService();
+        resourceService.resourceFindAll(resourceService.createResourceQuery(LetsencryptConfig.class)).forEach(LetsencryptHelper::configureKeysPool);
     }
 
 }
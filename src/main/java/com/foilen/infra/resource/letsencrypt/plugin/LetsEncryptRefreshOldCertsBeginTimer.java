@@ -9,85 +9,388 @@
  */
 package com.foilen.infra.resource.letsencrypt.plugin;
 
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 import com.foilen.infra.plugin.v1.core.context.ChangesContext;
 import com.foilen.infra.plugin.v1.core.context.CommonServicesContext;
 import com.foilen.infra.plugin.v1.core.context.TimerEventContext;
 import com.foilen.infra.plugin.v1.core.eventhandler.TimerEventHandler;
+import com.foilen.infra.plugin.v1.core.resource.IPResourceQuery;
 import com.foilen.infra.plugin.v1.core.service.IPResourceService;
 import com.foilen.infra.resource.dns.DnsEntry;
+import com.foilen.infra.resource.letsencrypt.dns.DnsPropagationVerifier;
+import com.foilen.infra.resource.letsencrypt.metrics.Histogram;
+import com.foilen.infra.resource.letsencrypt.metrics.InMemoryMetricsRegistry;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+import com.foilen.infra.resource.letsencrypt.metrics.MetricsRegistry;
 import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
 import com.foilen.smalltools.tools.AbstractBasics;
-import com.foilen.smalltools.tools.DateTools;
 import com.google.common.base.Strings;
 
 /**
- * Checks the certificates that will expire in 3 weeks and refresh them.
+ * Checks the certificates that will expire in 3 weeks and refresh them when they reach their renewal slot (see {@link RenewalScheduler}). When some are left, a wave is planned later on the
+ * same day.
  */
 public class LetsEncryptRefreshOldCertsBeginTimer extends AbstractBasics implements TimerEventHandler {
 
     public static final String TIMER_NAME = "Lets Encrypt";
+    public static final String WAVE_TIMER_NAME = "Lets Encrypt - Wave";
 
-    @Override
-    public void timerHandler(CommonServicesContext services, ChangesContext changes, TimerEventContext event) {
+    public static final int DEFAULT_MAX_CLEANED_PER_RUN = 100;
 
-        IPResourceService resourceService = services.getResourceService();
+    /**
+     * How far {@link #plan(IPResourceService, long, long)} looks ahead by default.
+     */
+    public static final long DEFAULT_PLAN_HORIZON_MS = 7 * RenewalScheduler.DAY_MS;
+    /**
+     * How long a renewal takes when none was measured yet (waiting for the DNS, validating and issuing).
+     */
+    public static final long DEFAULT_RENEWAL_DURATION_MS = 3 * 60000L;
+
+    /**
+     * The limits between the pages of names when looking for stale challenges (e.g. the first page has the names up to "_acme-challenge.1" and the second, from there up to
+     * "_acme-challenge.2").
+     */
+    private static final String[] CHALLENGE_NAME_PAGE_STARTS = "123456789abcdefghijklmnopqrstuvwxyz".chars() //
+            .mapToObj(it -> DnsPropagationVerifier.getChallengeTxtName(String.valueOf((char) it))) //
+            .toArray(String[]::new);
+
+    private RenewalScheduler renewalScheduler = new RenewalScheduler();
+    private CertificateExpiryIndex expiryIndex = new CertificateExpiryIndex();
+    private int maxCleanedPerRun = DEFAULT_MAX_CLEANED_PER_RUN;
+    private boolean resumed = false;
 
-        // Remove any pending check (would have if the application is restarted while waiting)
-        logger.info("Cleaning pending checks");
-        Set<String> tagNames = resourceService.resourceFindAll(resourceService.createResourceQuery(LetsencryptConfig.class)).stream() //
+    /**
+     * Delete the challenge DnsEntries that are not used by a renewal in progress. The renewals in progress are those that have a state in their certificate since the challenges are added
+     * with it. At most {@link #getMaxCleanedPerRun()} are deleted on each run and the others will be on the next runs. The DnsEntries are loaded by pages of names (by the first
+     * character of their domain) and the pages after the one that has enough stale DnsEntries are not loaded.
+     *
+     * @param resourceService
+     *            the resource service
+     * @param changes
+     *            the changes to make
+     * @param certificatesToUpdate
+     *            the certificates that will expire (includes the ones in progress)
+     * @param now
+     *            the current time
+     * @return the number of deleted DnsEntries
+     */
+    protected long cleanStaleChallenges(IPResourceService resourceService, ChangesContext changes, List<WebsiteCertificate> certificatesToUpdate, long now) {
+
+        Set<String> inProgressDnsEntries = new HashSet<>();
+        certificatesToUpdate.stream() //
+                .filter(it -> RenewalState.isInProgress(it, now)) //
+                .map(RenewalState::fromMeta) //
+                .forEach(renewalState -> renewalState.getDigestByDomain().forEach((domain, digest) -> inProgressDnsEntries.add(DnsPropagationVerifier.getChallengeTxtName(domain) + "|" + digest)));
+
+        Metrics.resourceQuery();
+        String[] tagNames = resourceService.resourceFindAll(resourceService.createResourceQuery(LetsencryptConfig.class)).stream() //
                 .map(LetsencryptConfig::getTagName) //
                 .filter(it -> !Strings.isNullOrEmpty(it)) //
-                .collect(Collectors.toSet());
-        List<DnsEntry> oldDnsEntries = resourceService.resourceFindAll( //
-                resourceService.createResourceQuery(DnsEntry.class) //
-                        .tagAddOr(tagNames.toArray(new String[tagNames.size()])));
-        long cleaned = 0;
-        for (DnsEntry dnsEntry : oldDnsEntries) {
-            changes.resourceDelete(dnsEntry);
-            ++cleaned;
+                .distinct() //
+                .toArray(String[]::new);
+        if (tagNames.length == 0) {
+            return 0;
         }
-        logger.info("Cleaned {} old DnsEntries", cleaned);
 
-        // Check the certs that will expire in 3 weeks
-        logger.info("Getting lets encrypt certificates that expire in 3 weeks");
-        List<WebsiteCertificate> certificatesToUpdate = resourceService.resourceFindAll( //
+        // Go through the DnsEntries by pages of names and stop when there are enough to delete
+        List<DnsEntry> staleDnsEntries = new ArrayList<>();
+        Set<Long> seenIds = new HashSet<>();
+        for (int page = 0; page <= CHALLENGE_NAME_PAGE_STARTS.length && staleDnsEntries.size() <= maxCleanedPerRun; ++page) {
+            IPResourceQuery<DnsEntry> query = resourceService.createResourceQuery(DnsEntry.class) //
+                    .tagAddOr(tagNames);
+            if (page > 0) {
+                query.propertyGreaterAndEquals(DnsEntry.PROPERTY_NAME, CHALLENGE_NAME_PAGE_STARTS[page - 1]);
+            }
+            if (page < CHALLENGE_NAME_PAGE_STARTS.length) {
+                query.propertyLesserAndEquals(DnsEntry.PROPERTY_NAME, CHALLENGE_NAME_PAGE_STARTS[page]);
+            }
+            Metrics.resourceQuery();
+            resourceService.resourceFindAll(query).stream() //
+                    .filter(dnsEntry -> seenIds.add(dnsEntry.getInternalId())) //
+                    .filter(dnsEntry -> !inProgressDnsEntries.contains(dnsEntry.getName() + "|" + dnsEntry.getDetails())) //
+                    .limit(maxCleanedPerRun + 1 - staleDnsEntries.size()) //
+                    .forEach(staleDnsEntries::add);
+        }
+        if (staleDnsEntries.isEmpty()) {
+            return 0;
+        }
+
+        boolean hasMore = staleDnsEntries.size() > maxCleanedPerRun;
+        staleDnsEntries.stream() //
+                .limit(maxCleanedPerRun) //
+                .forEach(changes::resourceDelete);
+        long cleaned = Math.min(staleDnsEntries.size(), maxCleanedPerRun);
+        if (hasMore) {
+            logger.info("Cleaned {} stale challenge DnsEntries. The others will be on the next runs", cleaned);
+        } else {
+            logger.info("Cleaned {} stale challenge DnsEntries", cleaned);
+        }
+        return cleaned;
+    }
+
+    /**
+     * Get the certificates that are in their renewal window and that are not waiting after a failure. The ids come from the {@link CertificateExpiryIndex} that is rebuilt from all the
+     * certificates when it is stale.
+     *
+     * @param resourceService
+     *            the resource service
+     * @param now
+     *            the current time
+     * @return the certificates (includes the ones in progress)
+     */
+    protected List<WebsiteCertificate> findDueCertificates(IPResourceService resourceService, long now) {
+
+        expiryIndex.setWindowStartMs(renewalScheduler.getWindowStartMs());
+        if (expiryIndex.isStale(now)) {
+            logger.info("Indexing all the lets encrypt certificates");
+            Metrics.resourceQuery();
+            expiryIndex.rebuild(resourceService.resourceFindAll( //
+                    resourceService.createResourceQuery(WebsiteCertificate.class) //
+                            .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME)), //
+                    now);
+        }
+
+        List<Long> dueIds = expiryIndex.findDue(now);
+        logger.info("Got {} certificates that are due out of {}", dueIds.size(), expiryIndex.size());
+        if (dueIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // Load them and check again since the index is only a hint between the rebuilds (drops the ones that are not there anymore)
+        Metrics.resourceQuery();
+        List<WebsiteCertificate> certificates = resourceService.resourceFindAll( //
                 resourceService.createResourceQuery(WebsiteCertificate.class) //
                         .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME) //
-                        .propertyLesserAndEquals(WebsiteCertificate.PROPERTY_END, DateTools.addDate(new Date(), Calendar.WEEK_OF_YEAR, 3) //
-                        ));
-
-        logger.info("Got {} certificates that will expire", certificatesToUpdate.size());
-        // Remove those that failed in the last day
-        long beforeTime = System.currentTimeMillis() - 23 * 60 * 60000;
-        certificatesToUpdate.removeIf(websiteCertificate -> {
-            String value = websiteCertificate.getMeta().get(LetsencryptHelper.LAST_FAILURE);
-            if (value != null) {
-                try {
-                    long lastFailure = Long.valueOf(value);
-                    return lastFailure > beforeTime;
-                } catch (Exception e) {
-                }
+                        .addIdEquals(dueIds.toArray(new Long[dueIds.size()])));
+        expiryIndex.refresh(dueIds, certificates);
+        certificates.removeIf(it -> expiryIndex.getDueTime(it) > now);
+        return certificates;
+    }
+
+    public CertificateExpiryIndex getExpiryIndex() {
+        return expiryIndex;
+    }
+
+    public int getMaxCleanedPerRun() {
+        return maxCleanedPerRun;
+    }
+
+    public RenewalScheduler getRenewalScheduler() {
+        return renewalScheduler;
+    }
+
+    /**
+     * Get how long a renewal takes. That is the mean of the ones that were measured when the metrics are kept in memory.
+     *
+     * @return the duration
+     */
+    protected long getRenewalDurationMs() {
+        MetricsRegistry registry = Metrics.getRegistry();
+        if (registry instanceof InMemoryMetricsRegistry) {
+            Histogram histogram = ((InMemoryMetricsRegistry) registry).getHistogram(Metrics.RENEWAL_TIME);
+            if (histogram != null && histogram.getCount() > 0) {
+                return (long) histogram.getMean();
+            }
+        }
+        return DEFAULT_RENEWAL_DURATION_MS;
+    }
+
+    /**
+     * Tell what the next waves would do without any ACME call and without any change: the same selection is made on copies of the scheduler and of the rate limits budget.
+     *
+     * @param resourceService
+     *            the resource service
+     * @param now
+     *            the current time
+     * @param horizonMs
+     *            how far to look ahead
+     * @return the plan
+     */
+    public RenewalPlan plan(IPResourceService resourceService, long now, long horizonMs) {
+
+        Metrics.resourceQuery();
+        List<WebsiteCertificate> certificates = resourceService.resourceFindAll( //
+                resourceService.createResourceQuery(WebsiteCertificate.class) //
+                        .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME));
+
+        // Nothing to plan (e.g. Lets Encrypt is not configured on this system)
+        if (certificates.isEmpty()) {
+            return plan(certificates, new RateLimitGovernor(), now, horizonMs);
+        }
+
+        LetsencryptConfig config = LetsencryptHelper.getConfig(resourceService);
+        return plan(certificates, RateLimitGovernor.getGovernor(config), now, horizonMs);
+    }
+
+    /**
+     * Simulate the next waves.
+     *
+     * @param certificates
+     *            all the Lets Encrypt certificates
+     * @param rateLimitGovernor
+     *            the governor of the account (it is not changed)
+     * @param now
+     *            the current time
+     * @param horizonMs
+     *            how far to look ahead
+     * @return the plan
+     */
+    protected RenewalPlan plan(List<WebsiteCertificate> certificates, RateLimitGovernor rateLimitGovernor, long now, long horizonMs) {
+
+        RenewalScheduler simulatedScheduler = renewalScheduler.copy();
+        RateLimitGovernor simulatedGovernor = rateLimitGovernor.copy();
+        long windowStartMs = renewalScheduler.getWindowStartMs();
+        ToLongFunction<WebsiteCertificate> dueTime = it -> CertificateExpiryIndex.getDueTime(it, windowStartMs);
+
+        long end = now + horizonMs;
+        List<WebsiteCertificate> pending = certificates.stream() //
+                .filter(it -> it.getEnd() != null) //
+                .filter(it -> !RenewalState.isInProgress(it, now)) //
+                .filter(it -> dueTime.applyAsLong(it) <= end) //
+                .collect(Collectors.toList());
+        RenewalPlan plan = new RenewalPlan(now, horizonMs, getRenewalDurationMs()) //
+                .setCertificates(certificates.size()) //
+                .setInProgress((int) certificates.stream().filter(it -> RenewalState.isInProgress(it, now)).count()) //
+                .setDue(pending.size()) //
+                .setNewOrdersLeftBefore(simulatedGovernor.getNewOrdersLeft(now));
+
+        // Same as the runs and the waves of the timer (they are in minutes)
+        long waveTime = now;
+        while (!pending.isEmpty() && waveTime <= end) {
+            long time = waveTime;
+            List<WebsiteCertificate> dueCertificates = pending.stream() //
+                    .filter(it -> dueTime.applyAsLong(it) <= time) //
+                    .collect(Collectors.toList());
+            List<WebsiteCertificate> started = simulatedScheduler.selectDue(dueCertificates, time, it -> simulatedGovernor.tryAcquire(it, time));
+            if (!started.isEmpty()) {
+                plan.addWave(time, started);
+                pending.removeAll(started);
+                dueCertificates.removeAll(started);
             }
-            return false;
-        });
 
-        logger.info("Got {} certificates to update", certificatesToUpdate.size());
-        if (certificatesToUpdate.isEmpty()) {
-            return;
+            long nextWaveDelay = simulatedScheduler.planNextWave(dueCertificates, time, horizonMs);
+            if (nextWaveDelay < 0) {
+                long nextDueTime = pending.stream() //
+                        .mapToLong(dueTime) //
+                        .filter(it -> it > time) //
+                        .min().orElse(-1);
+                nextWaveDelay = simulatedScheduler.planWave(nextDueTime, time, horizonMs);
+            }
+            if (nextWaveDelay < 0) {
+                break;
+            }
+            waveTime = time + Math.max(1, nextWaveDelay / 60000) * 60000;
         }
 
-        certificatesToUpdate.forEach(it -> {
+        long lastWaveTime = plan.getWaves().isEmpty() ? now : plan.getWaves().get(plan.getWaves().size() - 1).getTime();
+        plan.setNewOrdersLeftAfter(simulatedGovernor.getNewOrdersLeft(lastWaveTime));
+        return plan;
+    }
+
+    public LetsEncryptRefreshOldCertsBeginTimer setExpiryIndex(CertificateExpiryIndex expiryIndex) {
+        this.expiryIndex = expiryIndex;
+        return this;
+    }
+
+    public LetsEncryptRefreshOldCertsBeginTimer setMaxCleanedPerRun(int maxCleanedPerRun) {
+        this.maxCleanedPerRun = maxCleanedPerRun;
+        return this;
+    }
+
+    public LetsEncryptRefreshOldCertsBeginTimer setRenewalScheduler(RenewalScheduler renewalScheduler) {
+        this.renewalScheduler = renewalScheduler;
+        return this;
+    }
+
+    /**
+     * Start the renewals of the certificates that are due.
+     *
+     * @param services
+     *            all services
+     * @param changes
+     *            the changes to make
+     * @return the timer that will complete the renewals or null if none was started
+     */
+    protected LetsEncryptRefreshOldCertsWaitDnsTimer renewDueCertificates(CommonServicesContext services, ChangesContext changes) {
+
+        IPResourceService resourceService = services.getResourceService();
+        long now = System.currentTimeMillis();
+
+        // Resume the renewals that were in progress before the restart
+        if (!resumed) {
+            resumed = true;
+            List<CertificateRenewal> resumedRenewals = LetsencryptHelper.resumeRenewalsAndCreateTimer(services, changes);
+            renewalScheduler.recordStarted(now, resumedRenewals.size());
+        }
+
+        // Get the certs that are in their renewal window (will expire in 3 weeks) and that are not waiting after a failure
+        List<WebsiteCertificate> certificatesToUpdate = findDueCertificates(resourceService, now);
+
+        // Remove the pending checks (would have if the application is restarted while waiting) that are not used by a renewal in progress
+        cleanStaleChallenges(resourceService, changes, certificatesToUpdate, now);
+
+        // Remove the states of the renewals that were abandoned
+        certificatesToUpdate.stream() //
+                .filter(websiteCertificate -> RenewalState.clearIfAbandoned(websiteCertificate, now)) //
+                .forEach(changes::resourceUpdate);
+
+        // Remove those that are already in progress
+        certificatesToUpdate.removeIf(websiteCertificate -> RenewalState.isInProgress(websiteCertificate, now));
+
+        // Keep those that reached their slot and that are within the rate limits
+        List<WebsiteCertificate> dueCertificates = new ArrayList<>();
+        if (!certificatesToUpdate.isEmpty()) {
+            LetsencryptConfig config = LetsencryptHelper.getConfig(resourceService);
+            RateLimitGovernor rateLimitGovernor = RateLimitGovernor.getGovernor(config);
+            dueCertificates = renewalScheduler.selectDue(certificatesToUpdate, now, it -> rateLimitGovernor.tryAcquire(it, now));
+            rateLimitGovernor.saveIfChanged(config, changes, now);
+        }
+        certificatesToUpdate.removeAll(dueCertificates);
+
+        // Plan the next wave for the others or for the next ones that will be due (e.g. the next attempt after a failure)
+        long nextWaveDelay = renewalScheduler.planNextWave(certificatesToUpdate, now, RenewalScheduler.DAY_MS);
+        if (nextWaveDelay < 0) {
+            nextWaveDelay = renewalScheduler.planWave(expiryIndex.getNextDueTime(now), now, RenewalScheduler.DAY_MS);
+        }
+        if (nextWaveDelay >= 0) {
+            int nextWaveMinutes = (int) Math.max(1, nextWaveDelay / 60000);
+            logger.info("{} certificates are waiting for their slot or for the limits. Next wave in {} minutes", certificatesToUpdate.size(), nextWaveMinutes);
+            services.getTimerService().timerAdd(new TimerEventContext(this, //
+                    WAVE_TIMER_NAME, //
+                    Calendar.MINUTE, //
+                    nextWaveMinutes, //
+                    true, //
+                    false));
+        }
+
+        logger.info("Got {} certificates to update", dueCertificates.size());
+        if (dueCertificates.isEmpty()) {
+            return null;
+        }
+
+        dueCertificates.forEach(it -> {
             logger.info("Updating certificates: {}", it.getDomainNames());
         });
 
-        LetsencryptHelper.createChallengesAndCreateTimer(services, changes, certificatesToUpdate);
+        return LetsencryptHelper.createChallengesAndCreateTimer(services, changes, dueCertificates, true);
 
     }
 
+    @Override
+    public void timerHandler(CommonServicesContext services, ChangesContext changes, TimerEventContext event) {
+        Metrics.runStart();
+        try {
+            renewDueCertificates(services, changes);
+        } finally {
+            Metrics.runEnd(getClass().getSimpleName());
+        }
+    }
+
 }
@@ -9,20 +9,20 @@
  */
 package com.foilen.infra.resource.letsencrypt.plugin;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-
-import org.shredzone.acme4j.Order;
-import org.shredzone.acme4j.challenge.Dns01Challenge;
-import org.shredzone.acme4j.util.CSRBuilder;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import com.foilen.infra.plugin.v1.core.context.ChangesContext;
 import com.foilen.infra.plugin.v1.core.context.CommonServicesContext;
@@ -33,176 +33,547 @@ import com.foilen.infra.plugin.v1.model.resource.LinkTypeConstants;
 import com.foilen.infra.resource.dns.DnsEntry;
 import com.foilen.infra.resource.dns.model.DnsEntryType;
 import com.foilen.infra.resource.letsencrypt.acme.AcmeService;
-import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.foilen.infra.resource.letsencrypt.acme.AsyncAcmeService;
+import com.foilen.infra.resource.letsencrypt.acme.CertificateChain;
+import com.foilen.infra.resource.letsencrypt.acme.ExponentialBackoffPollingStrategy;
+import com.foilen.infra.resource.letsencrypt.acme.PollingStrategy;
+import com.foilen.infra.resource.letsencrypt.dns.DnsPropagationVerifier;
+import com.foilen.infra.resource.letsencrypt.dns.DnsPropagationVerifier.Visibility;
+import com.foilen.infra.resource.letsencrypt.dns.JndiDnsResolver;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
 import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
-import com.foilen.infra.resource.webcertificate.helper.CertificateHelper;
-import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
-import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
-import com.foilen.smalltools.crypt.spongycastle.cert.RSACertificate;
-import com.foilen.smalltools.crypt.spongycastle.cert.RSATools;
 import com.foilen.smalltools.tools.AbstractBasics;
-import com.foilen.smalltools.tools.ResourceTools;
-import com.foilen.smalltools.tuple.Tuple2;
 import com.google.common.base.Joiner;
 
 public class LetsEncryptRefreshOldCertsWaitDnsTimer extends AbstractBasics implements TimerEventHandler {
 
-    private static final String CA_CERTIFICATE_TEXT = ResourceTools.getResourceAsString("/com/foilen/infra/resource/letsencrypt/lets-encrypt-x3-cross-signed.pem");
+    /**
+     * The maximum amount of domains that are completed and requested at the same time.
+     */
+    public static final int DEFAULT_PARALLELISM = 10;
+
+    /**
+     * The maximum amount of certificates that are updated in one run for each kind of change (challenges added, states saved and renewals completed). The others are done in the next runs
+     * that are scheduled right away.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /**
+     * Get the certificates of these renewals. The ones with a known internal id are found with one query. The others (not saved yet when the renewal started) are found by their domain
+     * names and their id is kept for the next times. The certificates that do not have the same domain names anymore are skipped.
+     *
+     * @param resourceService
+     *            the resource service
+     * @param renewals
+     *            the renewals
+     * @return the certificates by the main domain of their renewal
+     */
+    protected static Map<String, WebsiteCertificate> findCertificates(IPResourceService resourceService, Collection<CertificateRenewal> renewals) {
+
+        Map<String, WebsiteCertificate> websiteCertificateByDomain = new HashMap<>();
+        Map<Long, CertificateRenewal> renewalById = new HashMap<>();
+        for (CertificateRenewal renewal : renewals) {
+            if (renewal.getWebsiteCertificateId() != null) {
+                renewalById.put(renewal.getWebsiteCertificateId(), renewal);
+                continue;
+            }
 
-    private AcmeService acmeService;
+            Set<String> domainNames = new TreeSet<>(renewal.getOrderAndChallenges().getDomainNames());
+            Metrics.resourceQuery();
+            resourceService.resourceFindAll( //
+                    resourceService.createResourceQuery(WebsiteCertificate.class) //
+                            .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME) //
+                            .propertyEquals(WebsiteCertificate.PROPERTY_DOMAIN_NAMES, domainNames)) //
+                    .stream() //
+                    .filter(it -> domainNames.equals(new TreeSet<>(it.getDomainNames()))) //
+                    .findFirst() //
+                    .ifPresent(websiteCertificate -> {
+                        renewal.setWebsiteCertificateId(websiteCertificate.getInternalId());
+                        websiteCertificateByDomain.put(renewal.getDomain(), websiteCertificate);
+                    });
+        }
 
-    private String dnsWaitDomain;
-    private Map<String, Tuple2<Order, Dns01Challenge>> challengeByDomain;
+        if (!renewalById.isEmpty()) {
+            Metrics.resourceQuery();
+            resourceService.resourceFindAll( //
+                    resourceService.createResourceQuery(WebsiteCertificate.class) //
+                            .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME) //
+                            .addIdEquals(renewalById.keySet().toArray(new Long[renewalById.size()]))) //
+                    .forEach(websiteCertificate -> {
+                        CertificateRenewal renewal = renewalById.get(websiteCertificate.getInternalId());
+                        if (renewal != null && new TreeSet<>(renewal.getOrderAndChallenges().getDomainNames()).equals(new TreeSet<>(websiteCertificate.getDomainNames()))) {
+                            websiteCertificateByDomain.put(renewal.getDomain(), websiteCertificate);
+                        }
+                    });
+        }
 
-    private boolean foundOnLastCheck = false;
+        return websiteCertificateByDomain;
+    }
 
-    public LetsEncryptRefreshOldCertsWaitDnsTimer(AcmeService acmeService, String dnsWaitDomain, Map<String, Tuple2<Order, Dns01Challenge>> challengeByDomain) {
+    /**
+     * Get the challenges TXT DNS entries added by this plugin with one query.
+     *
+     * @param resourceService
+     *            the resource service
+     * @param tagName
+     *            the tag that is on all the DNS entries added by this plugin
+     * @param challengeTxtNames
+     *            the names of the TXT entries to keep
+     * @return the DNS entries
+     */
+    protected static List<DnsEntry> findChallengeDnsEntries(IPResourceService resourceService, String tagName, Set<String> challengeTxtNames) {
+        if (challengeTxtNames.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Metrics.resourceQuery();
+        return resourceService.resourceFindAll( //
+                resourceService.createResourceQuery(DnsEntry.class) //
+                        .tagAddAnd(tagName)) //
+                .stream() //
+                .filter(it -> it.getType() == DnsEntryType.TXT && challengeTxtNames.contains(it.getName())) //
+                .collect(Collectors.toList());
+    }
+
+    private AcmeService acmeService;
+    private String tagName;
+
+    private int parallelism = DEFAULT_PARALLELISM;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean nonBlocking = true;
+    private PollingStrategy dnsPollingStrategy = ExponentialBackoffPollingStrategy.DEFAULT_DNS;
+    private PollingStrategy challengePollingStrategy = ExponentialBackoffPollingStrategy.DEFAULT_CHALLENGE;
+    private PollingStrategy orderPollingStrategy = ExponentialBackoffPollingStrategy.DEFAULT_ORDER;
+    private DnsPropagationVerifier dnsPropagationVerifier = new DnsPropagationVerifier(new JndiDnsResolver());
+    private RateLimitGovernor rateLimitGovernor;
+
+    private Map<String, CertificateRenewal> renewalByDomain;
+    private Set<String> unpublishedDomains = new LinkedHashSet<>();
+    private Set<String> persistedDomains = new HashSet<>();
+    private List<String> failures = new ArrayList<>();
+
+    public LetsEncryptRefreshOldCertsWaitDnsTimer(AcmeService acmeService, String tagName, Collection<CertificateRenewal> renewals) {
         this.acmeService = acmeService;
-        this.dnsWaitDomain = dnsWaitDomain;
-        this.challengeByDomain = challengeByDomain;
+        this.tagName = tagName;
+        this.renewalByDomain = new TreeMap<>();
+        renewals.forEach(renewal -> renewalByDomain.put(renewal.getDomain(), renewal));
+    }
+
+    /**
+     * Tell that the challenges DNS entries of these renewals are not in the system yet. They will be added by chunks and the renewals will wait for them.
+     *
+     * @param renewals
+     *            the renewals
+     * @return this
+     */
+    public LetsEncryptRefreshOldCertsWaitDnsTimer addChallengesToPublish(Collection<CertificateRenewal> renewals) {
+        renewals.forEach(renewal -> unpublishedDomains.add(renewal.getDomain()));
+        return this;
+    }
+
+    public PollingStrategy getChallengePollingStrategy() {
+        return challengePollingStrategy;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public DnsPropagationVerifier getDnsPropagationVerifier() {
+        return dnsPropagationVerifier;
+    }
+
+    public PollingStrategy getDnsPollingStrategy() {
+        return dnsPollingStrategy;
+    }
+
+    public PollingStrategy getOrderPollingStrategy() {
+        return orderPollingStrategy;
+    }
+
+    public RateLimitGovernor getRateLimitGovernor() {
+        return rateLimitGovernor;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Tells if a renewal can advance (its challenges are in the system).
+     *
+     * @param renewal
+     *            the renewal
+     * @return true if active
+     */
+    private boolean isActive(CertificateRenewal renewal) {
+        return !unpublishedDomains.contains(renewal.getDomain());
+    }
+
+    /**
+     * Tells if all the renewals are done (successful or not) and their result is saved in the system.
+     *
+     * @return true if done
+     */
+    public boolean isDone() {
+        return unpublishedDomains.isEmpty() && persistedDomains.size() == renewalByDomain.size();
+    }
+
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    public LetsEncryptRefreshOldCertsWaitDnsTimer setChallengePollingStrategy(PollingStrategy challengePollingStrategy) {
+        this.challengePollingStrategy = challengePollingStrategy;
+        return this;
+    }
+
+    public LetsEncryptRefreshOldCertsWaitDnsTimer setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public LetsEncryptRefreshOldCertsWaitDnsTimer setDnsPropagationVerifier(DnsPropagationVerifier dnsPropagationVerifier) {
+        this.dnsPropagationVerifier = dnsPropagationVerifier;
+        return this;
+    }
+
+    public LetsEncryptRefreshOldCertsWaitDnsTimer setDnsPollingStrategy(PollingStrategy dnsPollingStrategy) {
+        this.dnsPollingStrategy = dnsPollingStrategy;
+        return this;
+    }
+
+    /**
+     * Choose how to wait for the ACME server.
+     *
+     * @param nonBlocking
+     *            true (default) to ask the status once and reschedule this timer when the polling strategy says to check again; false to keep advancing each renewal in its lane until all the
+     *            certificates are done
+     * @return this
+     */
+    public LetsEncryptRefreshOldCertsWaitDnsTimer setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+        return this;
+    }
+
+    public LetsEncryptRefreshOldCertsWaitDnsTimer setOrderPollingStrategy(PollingStrategy orderPollingStrategy) {
+        this.orderPollingStrategy = orderPollingStrategy;
+        return this;
+    }
+
+    /**
+     * Count the failed validations in that governor.
+     *
+     * @param rateLimitGovernor
+     *            the governor of the account
+     * @return this
+     */
+    public LetsEncryptRefreshOldCertsWaitDnsTimer setRateLimitGovernor(RateLimitGovernor rateLimitGovernor) {
+        this.rateLimitGovernor = rateLimitGovernor;
+        return this;
+    }
+
+    public LetsEncryptRefreshOldCertsWaitDnsTimer setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
     }
 
     @Override
     public void timerHandler(CommonServicesContext services, ChangesContext changes, TimerEventContext event) {
 
+        Metrics.runStart();
         try {
 
-            // Wait for the domain + 30s
-            try {
-                logger.info("Checking for domain {}", dnsWaitDomain);
-                InetAddress.getByName(dnsWaitDomain);
-            } catch (UnknownHostException e) {
-                // Wait 2 more minutes
-                logger.info("Domain {} not present. Waiting 2 more minutes", dnsWaitDomain);
+            // Add the next chunk of challenges in the DNS
+            IPResourceService resourceService = services.getResourceService();
+            publishChallenges(resourceService, changes);
+
+            // Check the DNS of the ones that are waiting for it
+            checkDns();
+
+            // Complete the challenges and get the certificates of the ones that are ready
+            logger.info("Complete challenges and get the certificates from Lets Encrypt with {} parallel lanes", parallelism);
+            stepRenewals();
+
+            // Save the next chunk of the completed ones and of the states
+            persistDoneRenewals(resourceService, changes);
+            saveStates(resourceService, changes);
+
+            // Check again later if some are not done
+            if (!isDone()) {
+                long waitingDns = renewalByDomain.values().stream().filter(CertificateRenewal::isWaitingDns).count();
+                long waitingAcme = renewalByDomain.values().stream().filter(it -> !it.isDone() && !it.isWaitingDns()).count();
+                String timerName;
+                long nextCheckTime;
+                if (hasBacklog()) {
+                    timerName = "Let Encrypt - Complete - Next Chunk";
+                    nextCheckTime = System.currentTimeMillis();
+                } else {
+                    CertificateRenewal nextRenewal = renewalByDomain.values().stream() //
+                            .filter(it -> !it.isDone()) //
+                            .min(Comparator.comparingLong(CertificateRenewal::getNextCheckTime)) //
+                            .get();
+                    timerName = nextRenewal.isWaitingDns() ? "Let Encrypt - Complete - Wait DNS" : "Let Encrypt - Complete - Wait ACME";
+                    nextCheckTime = nextRenewal.getNextCheckTime();
+                }
+                int delaySeconds = (int) Math.max(1, (nextCheckTime - System.currentTimeMillis() + 999) / 1000);
+                logger.info("{} certificates are waiting for the DNS and {} for Lets Encrypt. Checking again in {} seconds", waitingDns, waitingAcme, delaySeconds);
                 services.getTimerService().timerAdd(new TimerEventContext(this, //
-                        "Let Encrypt - Complete - Wait DNS", //
-                        Calendar.MINUTE, //
-                        2, //
+                        timerName, //
+                        Calendar.SECOND, //
+                        delaySeconds, //
                         true, //
                         false));
                 return;
             }
 
-            logger.info("Domain {} found", dnsWaitDomain);
-            if (!foundOnLastCheck) {
-                // Wait just 30 seconds more
-                logger.info("Wait 30 more seconds");
-                foundOnLastCheck = true;
-                services.getTimerService().timerAdd(new TimerEventContext(this, //
-                        "Let Encrypt - Complete - Wait last", //
-                        Calendar.SECOND, //
-                        30, //
-                        true, //
-                        false));
-                return;
+            if (!failures.isEmpty()) {
+                services.getMessagingService().alertingWarn("Let's Encrypt - Domains Couldn't get certificate", Joiner.on('\n').join(failures));
             }
 
-            // Complete the challenges
-            logger.info("Complete challenges");
-            IPResourceService resourceService = services.getResourceService();
-            Iterator<Entry<String, Tuple2<Order, Dns01Challenge>>> it = challengeByDomain.entrySet().iterator();
-            while (it.hasNext()) {
-                Entry<String, Tuple2<Order, Dns01Challenge>> entry = it.next();
-                try {
-                    logger.info("Complete the challenge for certificate: {}", entry.getKey());
-                    acmeService.challengeComplete(entry.getValue().getB());
-                } catch (LetsencryptException e) {
-                    // Challenge failed
-                    logger.info("Failed the challenge for certificate: {}", entry.getKey());
-
-                    // Update meta as failure
-                    resourceService.resourceFindAll( //
-                            resourceService.createResourceQuery(WebsiteCertificate.class) //
-                                    .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME) //
-                                    .propertyEquals(WebsiteCertificate.PROPERTY_DOMAIN_NAMES, Collections.singleton(entry.getKey()))) //
-                            .forEach(websiteCertificate -> {
-                                websiteCertificate.getMeta().put(LetsencryptHelper.LAST_FAILURE, String.valueOf(System.currentTimeMillis()));
-                                changes.resourceUpdate(websiteCertificate);
-                            });
-
-                    it.remove();
+            logger.info("Metrics:\n{}", Metrics.getRegistry());
+
+        } catch (Exception e) {
+            logger.error("Problem while managing Lets Encrypt", e);
+            services.getMessagingService().alertingError("Problem while managing Lets Encrypt", e.getMessage());
+        } finally {
+            Metrics.runEnd(getClass().getSimpleName());
+            logger.info("Timer completed");
+        }
+
+    }
+
+    /**
+     * Check the challenges of all the renewals that are waiting for the DNS and that are due in one batch on the authoritative name servers. Each renewal then moves on as soon as its own
+     * challenges are visible.
+     */
+    protected void checkDns() {
+
+        List<CertificateRenewal> dueRenewals = renewalByDomain.values().stream() //
+                .filter(it -> it.isWaitingDns() && it.isDue() && isActive(it)) //
+                .collect(Collectors.toList());
+        if (dueRenewals.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> digestByDomain = new HashMap<>();
+        dueRenewals.forEach(renewal -> digestByDomain.putAll(renewal.getDigestByDomain()));
+        logger.info("Checking the challenges of {} domains on their authoritative name servers", digestByDomain.size());
+        Map<String, Visibility> visibilityByDomain = dnsPropagationVerifier.check(digestByDomain);
+        dueRenewals.forEach(renewal -> renewal.dnsChecked(visibilityByDomain, dnsPollingStrategy));
+
+    }
+
+    /**
+     * Tells if some renewals are still waiting for their challenges to be added in the system.
+     *
+     * @return true if some are waiting
+     */
+    public boolean hasChallengesToPublish() {
+        return !unpublishedDomains.isEmpty();
+    }
+
+    /**
+     * Tells if some work is left for the next chunks.
+     *
+     * @return true if some challenges are not added, some results or some states are not saved
+     */
+    private boolean hasBacklog() {
+        return hasChallengesToPublish() //
+                || renewalByDomain.values().stream().anyMatch(it -> (it.isDone() && !persistedDomains.contains(it.getDomain())) || (!it.isDone() && isActive(it) && it.isStateChanged()));
+    }
+
+    /**
+     * Save the next chunk of the renewals that are done: the new certificate for the successful ones, the time of the failure for the failed ones and the removal of their challenges DNS
+     * entries.
+     */
+    protected void persistDoneRenewals(IPResourceService resourceService, ChangesContext changes) {
+
+        List<CertificateRenewal> doneRenewals = renewalByDomain.values().stream() //
+                .filter(it -> it.isDone() && !persistedDomains.contains(it.getDomain())) //
+                .limit(chunkSize) //
+                .collect(Collectors.toList());
+        if (doneRenewals.isEmpty()) {
+            return;
+        }
+
+        logger.info("Saving the result of {} renewals", doneRenewals.size());
+        long now = System.currentTimeMillis();
+        Map<String, WebsiteCertificate> websiteCertificateByDomain = findCertificates(resourceService, doneRenewals);
+        Set<String> challengeTxtNames = new HashSet<>();
+        Set<String> challengeDnsEntries = new HashSet<>();
+        for (CertificateRenewal renewal : doneRenewals) {
+            persistedDomains.add(renewal.getDomain());
+            WebsiteCertificate websiteCertificate = websiteCertificateByDomain.get(renewal.getDomain());
+
+            if (!renewal.isChallengeFailed()) {
+                renewal.getDigestByDomain().forEach((domain, digest) -> {
+                    String challengeTxtName = DnsPropagationVerifier.getChallengeTxtName(domain);
+                    challengeTxtNames.add(challengeTxtName);
+                    challengeDnsEntries.add(challengeTxtName + "|" + digest);
+                });
+                if (renewal.getCertificate() == null) {
+                    failures.add(renewal.getDomain() + " : " + renewal.getFailure());
                 }
             }
+            if (renewal.isValidationFailed() && rateLimitGovernor != null) {
+                rateLimitGovernor.recordFailedValidations(renewal.getOrderAndChallenges().getChallengeByDomain().keySet(), now);
+            }
 
-            // Get all the certificates
-            logger.info("Get all the certificates currently in the system");
-            List<WebsiteCertificate> websiteCertificates = new ArrayList<>();
-            for (String domain : challengeByDomain.keySet()) {
-                websiteCertificates.addAll(resourceService.resourceFindAll( //
-                        resourceService.createResourceQuery(WebsiteCertificate.class) //
-                                .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME) //
-                                .propertyEquals(WebsiteCertificate.PROPERTY_DOMAIN_NAMES, Collections.singleton(domain)) //
-                ));
+            if (websiteCertificate == null) {
+                logger.warn("The certificate for {} is not in the system anymore. Skipping", renewal.getDomain());
+                continue;
             }
-            Map<String, WebsiteCertificate> websiteCertificateByDomain = new HashMap<>();
-            websiteCertificates.forEach(websiteCertificate -> {
-                String domain = websiteCertificate.getDomainNames().stream().findFirst().get();
-                websiteCertificateByDomain.put(domain, websiteCertificate);
-            });
 
-            // Get the certificates for the successful ones
-            logger.info("Get all the certificates from Lets Encrypt");
-            List<String> failures = new ArrayList<>();
-            List<Tuple2<AsymmetricKeys, RSACertificate>> keysAndCerts = new ArrayList<>();
-            for (String domain : challengeByDomain.keySet()) {
-                AsymmetricKeys asymmetricKeys = RSACrypt.RSA_CRYPT.generateKeyPair(4096);
-
-                CSRBuilder csrb = new CSRBuilder();
-                csrb.addDomain(domain);
-
-                try {
-                    logger.info("Getting certificate for: {}", domain);
-                    csrb.sign(RSATools.createKeyPair(asymmetricKeys));
-                    byte[] csr = csrb.getEncoded();
-                    RSACertificate certificate = acmeService.requestCertificate(challengeByDomain.get(domain).getA(), csr);
-                    certificate.setKeysForSigning(asymmetricKeys);
-                    keysAndCerts.add(new Tuple2<>(asymmetricKeys, certificate));
-
-                    logger.info("Successfully updated certificate: {}", domain);
-                } catch (Exception e) {
-                    // Cert creation failed
-                    logger.info("Failed to retrieve the certificate for: {}", domain);
-                    failures.add(domain + " : " + e.getMessage());
+            if (renewal.getCertificate() == null) {
+                // Remove the saved state and plan the next attempt for the failed challenges
+                websiteCertificate.getMeta().remove(RenewalState.META_KEY);
+                if (renewal.isChallengeFailed()) {
+                    LetsencryptHelper.recordFailure(websiteCertificate, System.currentTimeMillis());
                 }
+                changes.resourceUpdate(websiteCertificate);
+            } else {
+                // Update the certificate with the intermediates that the server returned
+                CertificateChain certificateChain = renewal.getCertificateChain();
+                WebsiteCertificate newCert = renewal.getKeys().toWebsiteCertificate(certificateChain.getIntermediatesPem(), certificateChain.getCertificate());
+                newCert.setResourceEditorName(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME);
+                changes.resourceUpdate(websiteCertificate, newCert);
             }
+        }
 
-            if (!failures.isEmpty()) {
-                services.getMessagingService().alertingWarn("Let's Encrypt - Domains Couldn't get certificate", Joiner.on('\n').join(failures));
+        // Delete the DNS entries for challenges (only theirs since another renewal can use the same name with another digest)
+        for (DnsEntry dnsEntry : findChallengeDnsEntries(resourceService, tagName, challengeTxtNames)) {
+            if (challengeDnsEntries.contains(dnsEntry.getName() + "|" + dnsEntry.getDetails())) {
+                changes.resourceDelete(dnsEntry);
             }
+        }
 
-            // Delete the DNS wait entry
-            logger.info("Delete the DNS Wait entry: {}", dnsWaitDomain);
-            changes.resourceDelete(new DnsEntry(dnsWaitDomain, DnsEntryType.A, "127.0.0.1"));
+        // Save the failed validations with the rest
+        if (rateLimitGovernor != null && rateLimitGovernor.isChanged()) {
+            rateLimitGovernor.saveIfChanged(LetsencryptHelper.getConfig(resourceService), changes, now);
+        }
 
-            // Update the certificates
-            logger.info("Update the certificates in the system");
-            for (Tuple2<AsymmetricKeys, RSACertificate> entry : keysAndCerts) {
-                RSACertificate rsaCertificate = entry.getB();
-                WebsiteCertificate newCert = CertificateHelper.toWebsiteCertificate(CA_CERTIFICATE_TEXT, rsaCertificate);
-                newCert.setResourceEditorName(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME);
+    }
+
+    /**
+     * Add the challenges DNS entries of the next chunk of renewals in the system and save their state. These renewals can then start to wait for the DNS.
+     */
+    protected void publishChallenges(IPResourceService resourceService, ChangesContext changes) {
 
-                String commonName = newCert.getDomainNames().stream().findFirst().get();
-                WebsiteCertificate previousCert = websiteCertificateByDomain.get(commonName);
+        if (unpublishedDomains.isEmpty()) {
+            return;
+        }
 
-                changes.resourceUpdate(previousCert, newCert);
+        List<CertificateRenewal> renewals = unpublishedDomains.stream() //
+                .limit(chunkSize) //
+                .map(renewalByDomain::get) //
+                .collect(Collectors.toList());
+        renewals.forEach(renewal -> unpublishedDomains.remove(renewal.getDomain()));
+        logger.info("Adding the challenges of {} renewals. {} are left for the next chunks", renewals.size(), unpublishedDomains.size());
+
+        // Get their certificates and the challenges that are already there
+        Map<String, WebsiteCertificate> websiteCertificateByDomain = findCertificates(resourceService, renewals);
+        Set<String> challengeTxtNames = new HashSet<>();
+        renewals.forEach(renewal -> renewal.getOrderAndChallenges().getChallengeByDomain().keySet().forEach(domain -> challengeTxtNames.add(DnsPropagationVerifier.getChallengeTxtName(domain))));
+        Set<String> existingDnsEntries = findChallengeDnsEntries(resourceService, tagName, challengeTxtNames).stream() //
+                .map(it -> it.getName() + "|" + it.getDetails()) //
+                .collect(Collectors.toSet());
+
+        for (CertificateRenewal renewal : renewals) {
+            WebsiteCertificate websiteCertificate = websiteCertificateByDomain.get(renewal.getDomain());
+            if (websiteCertificate == null) {
+                logger.warn("The certificate for {} is not in the system anymore. Skipping", renewal.getDomain());
+                renewalByDomain.remove(renewal.getDomain());
+                continue;
             }
 
-            // Delete the DNS entries for challenges
-            logger.info("Delete the DNS entries for challenges");
-            for (WebsiteCertificate websiteCertificate : websiteCertificates) {
-                List<DnsEntry> dnsEntries = resourceService.linkFindAllByFromResourceAndLinkTypeAndToResourceClass(websiteCertificate, LinkTypeConstants.MANAGES, DnsEntry.class);
-                for (DnsEntry dnsEntry : dnsEntries) {
-                    changes.resourceDelete(dnsEntry);
+            // Add DnsEntries if does not already exist
+            renewal.getDigestByDomain().forEach((domain, digest) -> {
+                DnsEntry dnsEntry = new DnsEntry(DnsPropagationVerifier.getChallengeTxtName(domain), DnsEntryType.TXT, digest);
+                if (!existingDnsEntries.contains(dnsEntry.getName() + "|" + digest)) {
+                    changes.resourceAdd(dnsEntry);
+                    changes.linkAdd(websiteCertificate, LinkTypeConstants.MANAGES, dnsEntry);
+                    changes.tagAdd(dnsEntry, tagName);
                 }
+            });
+
+            // Save the state to be able to resume after a restart
+            renewal.toState().toMeta(websiteCertificate);
+            changes.resourceUpdate(websiteCertificate);
+        }
+
+    }
+
+    /**
+     * Save the state of the next chunk of renewals that changed stage in their certificate to be able to resume them after a restart.
+     */
+    protected void saveStates(IPResourceService resourceService, ChangesContext changes) {
+
+        List<CertificateRenewal> changedRenewals = renewalByDomain.values().stream() //
+                .filter(it -> !it.isDone() && isActive(it) && it.isStateChanged()) //
+                .limit(chunkSize) //
+                .collect(Collectors.toList());
+        if (changedRenewals.isEmpty()) {
+            return;
+        }
+
+        logger.info("Saving the state of {} renewals", changedRenewals.size());
+        LetsencryptHelper.saveStates(findCertificates(resourceService, changedRenewals), changes, changedRenewals);
+
+    }
+
+    /**
+     * Advance one renewal on the executor of the {@link AsyncAcmeService}, after its next check time. In blocking mode, keep advancing it until it is done.
+     *
+     * @param asyncAcmeService
+     *            the async service
+     * @param renewal
+     *            the renewal
+     * @return when this renewal stopped advancing
+     */
+    private CompletableFuture<Void> advance(AsyncAcmeService asyncAcmeService, CertificateRenewal renewal) {
+        long delay = Math.max(0, renewal.getNextCheckTime() - System.currentTimeMillis());
+        return asyncAcmeService.schedule(service -> {
+            renewal.step(service, challengePollingStrategy, orderPollingStrategy);
+            return renewal;
+        }, delay).thenCompose(it -> {
+            if (nonBlocking || it.isDone() || it.isWaitingDns()) {
+                return CompletableFuture.completedFuture(null);
             }
+            return advance(asyncAcmeService, it);
+        });
+    }
 
-        } catch (Exception e) {
-            logger.error("Problem while managing Lets Encrypt", e);
-            services.getMessagingService().alertingError("Problem while managing Lets Encrypt", e.getMessage());
-        } finally {
-            logger.info("Timer completed");
+    /**
+     * Advance all the renewals that are due in {@link #getParallelism()} lanes on {@link AcmeService#async()}. Each lane advances its renewals one after the other. In non-blocking mode,
+     * each renewal is advanced as far as possible without waiting. In blocking mode, each renewal is advanced until it is done and the waits between the steps do not hold a thread.
+     * The ACME calls are the only ones done in the lanes; all the changes are done by the caller.
+     */
+    protected void stepRenewals() {
+
+        List<CertificateRenewal> dueRenewals = new ArrayList<>();
+        renewalByDomain.values().stream().filter(it -> !it.isWaitingDns() && it.isDue() && isActive(it)).forEach(dueRenewals::add);
+        if (dueRenewals.isEmpty()) {
+            return;
         }
 
+        AsyncAcmeService asyncAcmeService = acmeService.async();
+        int lanes = Math.max(1, Math.min(parallelism, dueRenewals.size()));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int lane = 0; lane < lanes; ++lane) {
+            CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+            for (int i = lane; i < dueRenewals.size(); i += lanes) {
+                CertificateRenewal renewal = dueRenewals.get(i);
+                future = future.thenCompose(it -> advance(asyncAcmeService, renewal)) //
+                        .exceptionally(e -> {
+                            logger.error("Unexpected failure while advancing a renewal", e);
+                            return null;
+                        });
+            }
+            futures.add(future);
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+
     }
 
 }
@@ -0,0 +1,74 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import com.foilen.infra.plugin.v1.core.context.ChangesContext;
+import com.foilen.infra.plugin.v1.core.context.CommonServicesContext;
+import com.foilen.infra.plugin.v1.core.context.TimerEventContext;
+import com.foilen.infra.plugin.v1.core.eventhandler.TimerEventHandler;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+import com.foilen.smalltools.tools.AbstractBasics;
+
+/**
+ * A dry run of the {@link LetsEncryptRefreshOldCertsBeginTimer}: logs what the next waves would do with the estimated costs (see {@link RenewalPlan}). It does not call the ACME server and
+ * does not change anything. When a big wave is coming, the plan is also sent as an alert.
+ */
+public class LetsEncryptRenewalPlanTimer extends AbstractBasics implements TimerEventHandler {
+
+    public static final String TIMER_NAME = "Lets Encrypt - Plan";
+
+    private LetsEncryptRefreshOldCertsBeginTimer beginTimer;
+    private long horizonMs = LetsEncryptRefreshOldCertsBeginTimer.DEFAULT_PLAN_HORIZON_MS;
+    private int alertMinRenewals;
+
+    /**
+     * Plan with the settings of that timer. By default, alerts when more renewals are planned than the timer can start in one run.
+     *
+     * @param beginTimer
+     *            the timer that will do the renewals
+     */
+    public LetsEncryptRenewalPlanTimer(LetsEncryptRefreshOldCertsBeginTimer beginTimer) {
+        this.beginTimer = beginTimer;
+        this.alertMinRenewals = beginTimer.getRenewalScheduler().getMaxPerRun() + 1;
+    }
+
+    public int getAlertMinRenewals() {
+        return alertMinRenewals;
+    }
+
+    public long getHorizonMs() {
+        return horizonMs;
+    }
+
+    public LetsEncryptRenewalPlanTimer setAlertMinRenewals(int alertMinRenewals) {
+        this.alertMinRenewals = alertMinRenewals;
+        return this;
+    }
+
+    public LetsEncryptRenewalPlanTimer setHorizonMs(long horizonMs) {
+        this.horizonMs = horizonMs;
+        return this;
+    }
+
+    @Override
+    public void timerHandler(CommonServicesContext services, ChangesContext changes, TimerEventContext event) {
+        Metrics.runStart();
+        try {
+            RenewalPlan plan = beginTimer.plan(services.getResourceService(), System.currentTimeMillis(), horizonMs);
+            logger.info("Renewal plan:\n{}", plan);
+            if (plan.getPlanned() >= alertMinRenewals) {
+                services.getMessagingService().alertingInfo("Let's Encrypt - Renewal Plan", plan.toString());
+            }
+        } finally {
+            Metrics.runEnd(getClass().getSimpleName());
+        }
+    }
+
+}
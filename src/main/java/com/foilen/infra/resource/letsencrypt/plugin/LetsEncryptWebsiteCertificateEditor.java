@@ -11,9 +11,12 @@ package com.foilen.infra.resource.letsencrypt.plugin;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
+import java.util.Set;
 
 import com.foilen.infra.plugin.v1.core.context.ChangesContext;
 import com.foilen.infra.plugin.v1.core.context.CommonServicesContext;
@@ -25,25 +28,52 @@ import com.foilen.infra.plugin.v1.core.visual.helper.CommonPageItem;
 import com.foilen.infra.plugin.v1.core.visual.helper.CommonValidation;
 import com.foilen.infra.plugin.v1.core.visual.pageItem.LabelPageItem;
 import com.foilen.infra.plugin.v1.core.visual.pageItem.field.InputTextFieldPageItem;
+import com.foilen.infra.resource.letsencrypt.acme.AcmeService;
+import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.foilen.infra.resource.letsencrypt.crypt.AsymmetricKeysPool;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
 import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
 import com.foilen.infra.resource.webcertificate.helper.CertificateHelper;
 import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
-import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
 import com.foilen.smalltools.crypt.spongycastle.cert.CertificateDetails;
 import com.foilen.smalltools.crypt.spongycastle.cert.RSACertificate;
 import com.foilen.smalltools.tools.DateTools;
 import com.foilen.smalltools.tuple.Tuple2;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 
 public class LetsEncryptWebsiteCertificateEditor implements ResourceEditor<WebsiteCertificate> {
 
     public static final String EDITOR_NAME = "Let's Encrypt WebsiteCertificate";
 
     private static final String FIELD_NAME_DOMAIN = "domain";
+    private static final String FIELD_NAME_KEY_TYPE = "keyType";
+
+    private static final Splitter DOMAINS_SPLITTER = Splitter.on(CharMatcher.anyOf(", \n\r\t")).trimResults().omitEmptyStrings();
+
+    /**
+     * Get the distinct domain names in the field in the order they were entered. The first one is only the common name of the temporary self-signed certificate: the domain names are then
+     * kept in a sorted set, so the common name of the issued certificate is the first one alphabetically.
+     *
+     * @param fieldValue
+     *            the domain names separated by commas, spaces or new lines
+     * @return the domain names
+     */
+    protected static Set<String> splitDomains(String fieldValue) {
+        Set<String> domains = new LinkedHashSet<>();
+        if (fieldValue != null) {
+            DOMAINS_SPLITTER.split(fieldValue.toLowerCase()).forEach(domains::add);
+        }
+        return domains;
+    }
 
     @Override
     public void fillResource(CommonServicesContext servicesCtx, ChangesContext changesContext, Map<String, String> validFormValues, WebsiteCertificate resource) {
 
-        String domain = validFormValues.get(FIELD_NAME_DOMAIN);
+        Set<String> domains = splitDomains(validFormValues.get(FIELD_NAME_DOMAIN));
+        String domain = domains.iterator().next();
 
         boolean gen = false;
         // Not gen
@@ -54,28 +84,39 @@ public class LetsEncryptWebsiteCertificateEditor implements ResourceEditor<Websi
         } else {
             gen |= resource.getEnd().getTime() < System.currentTimeMillis();
         }
-        // Not the same domain
-        Optional<String> currentDomainOptional = resource.getDomainNames().stream().findFirst();
-        if (currentDomainOptional.isPresent()) {
-            gen |= !currentDomainOptional.get().equals(domain);
+        // Not the same domains
+        gen |= !new HashSet<>(resource.getDomainNames()).equals(domains);
+        // Not the same key type
+        String keyType = validFormValues.get(FIELD_NAME_KEY_TYPE);
+        if (Strings.isNullOrEmpty(keyType)) {
+            keyType = null;
         } else {
-            gen = true;
+            keyType = KeyType.fromValue(keyType).name();
+        }
+        gen |= !Objects.equals(resource.getMeta().get(LetsencryptHelper.KEY_TYPE), keyType);
+        if (keyType == null) {
+            resource.getMeta().remove(LetsencryptHelper.KEY_TYPE);
+        } else {
+            resource.getMeta().put(LetsencryptHelper.KEY_TYPE, keyType);
         }
 
         if (gen) {
 
-            AsymmetricKeys keys = RSACrypt.RSA_CRYPT.generateKeyPair(4096);
-            RSACertificate rsaCertificate = new RSACertificate(keys).selfSign( //
-                    new CertificateDetails().setCommonName(domain) //
-                            .addSanDns(domain) //
-                            .setEndDate(DateTools.addDate(Calendar.DAY_OF_YEAR, 1)));
+            // The temporary self-signed certificate is always RSA
+            AsymmetricKeys keys = AsymmetricKeysPool.getDefaultPool().take();
+            CertificateDetails certificateDetails = new CertificateDetails().setCommonName(domain) //
+                    .setEndDate(DateTools.addDate(Calendar.DAY_OF_YEAR, 1));
+            domains.forEach(it -> certificateDetails.addSanDns(it));
+            RSACertificate rsaCertificate = new RSACertificate(keys).selfSign(certificateDetails);
             CertificateHelper.toWebsiteCertificate(null, rsaCertificate, resource);
 
             // Request an official cert
             servicesCtx.getTimerService().executeLater((services, changes, event) -> {
+
+                // When the rate limits are reached, the begin timer will take it later since the temporary certificate expires soon
                 List<WebsiteCertificate> certificatesToUpdate = new ArrayList<>();
                 certificatesToUpdate.add(resource);
-                LetsencryptHelper.createChallengesAndCreateTimer(servicesCtx, changes, certificatesToUpdate);
+                LetsencryptHelper.createChallengesAndCreateTimer(servicesCtx, changes, certificatesToUpdate, false);
             });
 
         }
@@ -104,6 +145,7 @@ public class LetsEncryptWebsiteCertificateEditor implements ResourceEditor<Websi
         ));
 
         InputTextFieldPageItem domainPageItem = CommonPageItem.createInputTextField(servicesCtx, pageDefinition, "LetsEncryptWebsiteCertificateEditor.domain", FIELD_NAME_DOMAIN);
+        InputTextFieldPageItem keyTypePageItem = CommonPageItem.createInputTextField(servicesCtx, pageDefinition, "LetsEncryptWebsiteCertificateEditor.keyType", FIELD_NAME_KEY_TYPE);
 
         if (editedResource != null) {
 
@@ -119,8 +161,8 @@ public class LetsEncryptWebsiteCertificateEditor implements ResourceEditor<Websi
                     translationService.translate("LetsEncryptWebsiteCertificateEditor.end", DateTools.formatFull(editedResource.getEnd())) //
             ));
 
-            Optional<String> domain = editedResource.getDomainNames().stream().findFirst();
-            domainPageItem.setFieldValue(domain.isPresent() ? domain.get() : null);
+            domainPageItem.setFieldValue(editedResource.getDomainNames().isEmpty() ? null : Joiner.on(", ").join(editedResource.getDomainNames()));
+            keyTypePageItem.setFieldValue(editedResource.getMeta().get(LetsencryptHelper.KEY_TYPE));
 
         }
 
@@ -131,7 +173,24 @@ public class LetsEncryptWebsiteCertificateEditor implements ResourceEditor<Websi
     @Override
     public List<Tuple2<String, String>> validateForm(CommonServicesContext servicesCtx, Map<String, String> rawFormValues) {
         List<Tuple2<String, String>> errors = CommonValidation.validateNotNullOrEmpty(rawFormValues, FIELD_NAME_DOMAIN);
-        errors.addAll(CommonValidation.validateDomainName(rawFormValues, FIELD_NAME_DOMAIN));
+        if (!errors.isEmpty()) {
+            return errors;
+        }
+
+        Set<String> domains = splitDomains(rawFormValues.get(FIELD_NAME_DOMAIN));
+        if (domains.isEmpty()) {
+            errors.add(new Tuple2<>(FIELD_NAME_DOMAIN, "error.noDomain"));
+        } else if (domains.size() > AcmeService.MAX_DOMAINS_PER_ORDER) {
+            errors.add(new Tuple2<>(FIELD_NAME_DOMAIN, "error.tooManyDomains"));
+        }
+        for (String domain : domains) {
+            errors.addAll(CommonValidation.validateDomainName(FIELD_NAME_DOMAIN, domain));
+        }
+        try {
+            KeyType.fromValue(rawFormValues.get(FIELD_NAME_KEY_TYPE));
+        } catch (LetsencryptException e) {
+            errors.add(new Tuple2<>(FIELD_NAME_KEY_TYPE, "error.invalidKeyType"));
+        }
         return errors;
 
     }
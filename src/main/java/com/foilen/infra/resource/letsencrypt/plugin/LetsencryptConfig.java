@@ -12,6 +12,7 @@ package com.foilen.infra.resource.letsencrypt.plugin;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.foilen.infra.plugin.v1.model.resource.AbstractIPResource;
 import com.foilen.infra.plugin.v1.model.resource.InfraPluginResourceCategory;
+import com.foilen.infra.resource.letsencrypt.crypt.AsymmetricKeysPool;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class LetsencryptConfig extends AbstractIPResource {
@@ -24,6 +25,8 @@ public class LetsencryptConfig extends AbstractIPResource {
     public static final String PROPERTY_DNS_UPDATED_SUB_DOMAIN = "dnsUpdatedSubDomain";
     public static final String PROPERTY_TAG_NAME = "tagName";
     public static final String PROPERTY_IS_STAGING = "staging";
+    public static final String PROPERTY_KEY_TYPE = "keyType";
+    public static final String PROPERTY_KEYS_POOL_SIZE = "keysPoolSize";
 
     private String name;
     private String contactEmail;
@@ -31,6 +34,8 @@ public class LetsencryptConfig extends AbstractIPResource {
     private String dnsUpdatedSubDomain;
     private String tagName;
     private boolean isStaging;
+    private String keyType;
+    private int keysPoolSize = AsymmetricKeysPool.DEFAULT_POOL_SIZE;
 
     public LetsencryptConfig() {
     }
@@ -56,6 +61,14 @@ public class LetsencryptConfig extends AbstractIPResource {
         return dnsUpdatedSubDomain;
     }
 
+    public String getKeyType() {
+        return keyType;
+    }
+
+    public int getKeysPoolSize() {
+        return keysPoolSize;
+    }
+
     public String getName() {
         return name;
     }
@@ -104,6 +117,14 @@ public class LetsencryptConfig extends AbstractIPResource {
         this.dnsUpdatedSubDomain = dnsUpdatedSubDomain;
     }
 
+    public void setKeyType(String keyType) {
+        this.keyType = keyType;
+    }
+
+    public void setKeysPoolSize(int keysPoolSize) {
+        this.keysPoolSize = keysPoolSize;
+    }
+
     public void setName(String name) {
         this.name = name;
     }
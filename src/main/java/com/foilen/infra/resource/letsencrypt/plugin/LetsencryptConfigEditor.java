@@ -18,8 +18,10 @@ import com.foilen.infra.plugin.v1.core.visual.editor.simpleresourceditor.SimpleR
 import com.foilen.infra.plugin.v1.core.visual.editor.simpleresourceditor.SimpleResourceEditorDefinition;
 import com.foilen.infra.plugin.v1.core.visual.helper.CommonFormatting;
 import com.foilen.infra.plugin.v1.core.visual.helper.CommonValidation;
-import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
-import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
+import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.foilen.infra.resource.letsencrypt.crypt.AsymmetricKeysPool;
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
 import com.foilen.smalltools.tuple.Tuple2;
 import com.google.common.base.Strings;
 
@@ -31,16 +33,34 @@ public class LetsencryptConfigEditor extends SimpleResourceEditor<LetsencryptCon
         List<Tuple2<String, String>> errors = new ArrayList<>();
         if (!Strings.isNullOrEmpty(fieldValue)) {
             try {
-                AsymmetricKeys a = RSACrypt.RSA_CRYPT.loadKeysPemFromString(fieldValue);
-                if (a == null) {
-                    errors.add(new Tuple2<String, String>(fieldName, "error.invalidKeyPairPem"));
-                }
+                CertificateKeys.fromPem(fieldValue);
             } catch (Exception e) {
                 errors.add(new Tuple2<String, String>(fieldName, "error.invalidKeyPairPem"));
             }
         }
         return errors;
     };
+    private BiFunction<String, String, List<Tuple2<String, String>>> validateKeyType = (fieldName, fieldValue) -> {
+        List<Tuple2<String, String>> errors = new ArrayList<>();
+        try {
+            KeyType.fromValue(fieldValue);
+        } catch (LetsencryptException e) {
+            errors.add(new Tuple2<String, String>(fieldName, "error.invalidKeyType"));
+        }
+        return errors;
+    };
+    private BiFunction<String, String, List<Tuple2<String, String>>> validateKeysPoolSize = (fieldName, fieldValue) -> {
+        List<Tuple2<String, String>> errors = new ArrayList<>();
+        try {
+            int keysPoolSize = Integer.parseInt(fieldValue);
+            if (keysPoolSize < 0 || keysPoolSize > AsymmetricKeysPool.MAX_POOL_SIZE) {
+                errors.add(new Tuple2<String, String>(fieldName, "error.invalidKeysPoolSize"));
+            }
+        } catch (NumberFormatException e) {
+            errors.add(new Tuple2<String, String>(fieldName, "error.invalidKeysPoolSize"));
+        }
+        return errors;
+    };
     private BiFunction<String, String, List<Tuple2<String, String>>> validateboolean = (fieldName, fieldValue) -> {
         List<Tuple2<String, String>> errors = new ArrayList<>();
         if (!Strings.isNullOrEmpty(fieldValue)) {
@@ -91,6 +111,18 @@ public class LetsencryptConfigEditor extends SimpleResourceEditor<LetsencryptCon
             fieldConfigConsumer.addValidator(validateboolean);
         });
 
+        simpleResourceEditorDefinition.addInputText(LetsencryptConfig.PROPERTY_KEY_TYPE, fieldConfigConsumer -> {
+            fieldConfigConsumer.addFormator(CommonFormatting::trimSpacesAround);
+            fieldConfigConsumer.addFormator(value -> Strings.isNullOrEmpty(value) ? KeyType.DEFAULT.name() : value.toUpperCase());
+            fieldConfigConsumer.addValidator(validateKeyType);
+        });
+
+        simpleResourceEditorDefinition.addInputText(LetsencryptConfig.PROPERTY_KEYS_POOL_SIZE, fieldConfigConsumer -> {
+            fieldConfigConsumer.addFormator(CommonFormatting::trimSpacesAround);
+            fieldConfigConsumer.addFormator(value -> Strings.isNullOrEmpty(value) ? String.valueOf(AsymmetricKeysPool.DEFAULT_POOL_SIZE) : value);
+            fieldConfigConsumer.addValidator(validateKeysPoolSize);
+        });
+
     }
 
     @Override
@@ -9,12 +9,15 @@
  */
 package com.foilen.infra.resource.letsencrypt.plugin;
 
+import java.util.Objects;
+
 import com.foilen.infra.plugin.v1.core.context.ChangesContext;
 import com.foilen.infra.plugin.v1.core.context.CommonServicesContext;
 import com.foilen.infra.plugin.v1.core.eventhandler.AbstractCommonMethodUpdateEventHandler;
 import com.foilen.infra.plugin.v1.core.eventhandler.CommonMethodUpdateEventHandlerContext;
-import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
-import com.foilen.smalltools.crypt.spongycastle.asymmetric.RSACrypt;
+import com.foilen.infra.resource.letsencrypt.acme.AcmeServiceCache;
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
 import com.foilen.smalltools.tools.SecureRandomTools;
 import com.google.common.base.Strings;
 
@@ -25,13 +28,28 @@ public class LetsencryptConfigUpdateHandler extends AbstractCommonMethodUpdateEv
 
         LetsencryptConfig resource = context.getResource();
 
+        // The account changed. Log in again on the next use (not when only the meta changed, e.g. the rate limits)
+        LetsencryptConfig oldResource = context.getOldResource();
+        if (oldResource == null //
+                || !Objects.equals(oldResource.getUrl(), resource.getUrl()) //
+                || !Objects.equals(oldResource.getContactEmail(), resource.getContactEmail()) //
+                || !Objects.equals(oldResource.getAccountKeypairPem(), resource.getAccountKeypairPem())) {
+            AcmeServiceCache.invalidateAll();
+        }
+
+        // The keys pool
+        if (oldResource == null //
+                || !Objects.equals(oldResource.getKeyType(), resource.getKeyType()) //
+                || oldResource.getKeysPoolSize() != resource.getKeysPoolSize()) {
+            LetsencryptHelper.configureKeysPool(resource);
+        }
+
         boolean update = false;
         // accountKeypairPem
         if (Strings.isNullOrEmpty(resource.getAccountKeypairPem())) {
-            logger.info("Generating an AccountKeypair");
-            AsymmetricKeys keys = RSACrypt.RSA_CRYPT.generateKeyPair(4096);
-            String accountPem = RSACrypt.RSA_CRYPT.savePrivateKeyPemAsString(keys) + RSACrypt.RSA_CRYPT.savePublicKeyPemAsString(keys);
-            resource.setAccountKeypairPem(accountPem);
+            KeyType keyType = KeyType.fromValue(resource.getKeyType());
+            logger.info("Generating an AccountKeypair of type {}", keyType);
+            resource.setAccountKeypairPem(CertificateKeys.generate(keyType).toPem());
             update = true;
         }
 
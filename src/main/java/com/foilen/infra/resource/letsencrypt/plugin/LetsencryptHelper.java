@@ -9,16 +9,16 @@
  */
 package com.foilen.infra.resource.letsencrypt.plugin;
 
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
-import org.shredzone.acme4j.Order;
-import org.shredzone.acme4j.challenge.Dns01Challenge;
+import org.shredzone.acme4j.exception.AcmeRateLimitedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,39 +27,71 @@ import com.foilen.infra.plugin.v1.core.context.CommonServicesContext;
 import com.foilen.infra.plugin.v1.core.context.TimerEventContext;
 import com.foilen.infra.plugin.v1.core.exception.IllegalUpdateException;
 import com.foilen.infra.plugin.v1.core.service.IPResourceService;
-import com.foilen.infra.plugin.v1.model.resource.LinkTypeConstants;
-import com.foilen.infra.resource.dns.DnsEntry;
-import com.foilen.infra.resource.dns.model.DnsEntryType;
 import com.foilen.infra.resource.letsencrypt.acme.AcmeService;
-import com.foilen.infra.resource.letsencrypt.acme.AcmeServiceImpl;
+import com.foilen.infra.resource.letsencrypt.acme.AcmeServiceCache;
 import com.foilen.infra.resource.letsencrypt.acme.LetsencryptException;
+import com.foilen.infra.resource.letsencrypt.acme.OrderAndChallenges;
+import com.foilen.infra.resource.letsencrypt.crypt.AsymmetricKeysPool;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
 import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
-import com.foilen.smalltools.tools.SecureRandomTools;
-import com.foilen.smalltools.tuple.Tuple2;
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 
 public abstract class LetsencryptHelper {
 
     public static final String LAST_FAILURE = "lastFailure";
 
+    /**
+     * The meta keys in the {@link WebsiteCertificate} for the amount of failures in a row and the time of the next attempt.
+     */
+    public static final String FAILURES = "letsencryptFailures";
+    public static final String NEXT_ATTEMPT = "letsencryptNextAttempt";
+
+    /**
+     * The delay before the next attempt after a failure. It doubles after each failure in a row up to the maximum.
+     */
+    public static final long RETRY_FIRST_DELAY_MS = 60 * 60000L;
+    public static final long RETRY_MAX_DELAY_MS = 23 * 60 * 60000L;
+
+    /**
+     * The meta key in the {@link WebsiteCertificate} to use another {@link KeyType} than the one in the config.
+     */
+    public static final String KEY_TYPE = "letsencryptKeyType";
+
+    /**
+     * The delay before checking the DNS for the first time. The next checks are done per certificate.
+     */
+    public static final int FIRST_DNS_CHECK_SECONDS = 30;
+
     private static final Logger logger = LoggerFactory.getLogger(LetsencryptHelper.class);
 
     /**
-     * Get the ACME configuration, create the challenges and start the timer to complete.
+     * Keep the amount of keys of the config in the pool of its key type. The EC keys are fast to generate and are not pooled.
      *
-     * @param services
-     *            all services
-     * @param changes
-     *            the changes to make
-     * @param certificatesToUpdate
-     *            the certificates to generate challenges for
+     * @param config
+     *            the config
      */
-    public static void createChallengesAndCreateTimer(CommonServicesContext services, ChangesContext changes, List<WebsiteCertificate> certificatesToUpdate) {
+    public static void configureKeysPool(LetsencryptConfig config) {
+        KeyType keyType = KeyType.fromValue(config.getKeyType());
+        if (keyType.isRsa()) {
+            logger.info("Keeping {} keys of type {} in the pool", config.getKeysPoolSize(), keyType);
+            AsymmetricKeysPool.configure(keyType.getAlgorithm(), keyType.getKeySize(), config.getKeysPoolSize());
+        }
+    }
 
-        IPResourceService resourceService = services.getResourceService();
+    /**
+     * Get the config.
+     *
+     * @param resourceService
+     *            the resource service
+     * @return the config
+     */
+    public static LetsencryptConfig getConfig(IPResourceService resourceService) {
 
-        // Get the config
         logger.info("Getting the config");
+        Metrics.resourceQuery();
         Optional<LetsencryptConfig> configOptional = resourceService.resourceFind(resourceService.createResourceQuery(LetsencryptConfig.class));
         LetsencryptConfig config;
         logger.info("Config is present? {}", configOptional.isPresent());
@@ -74,64 +106,260 @@ public abstract class LetsencryptHelper {
             throw new IllegalUpdateException("The LetsencryptConfig does not have a tag name");
         }
 
+        return config;
+    }
+
+    /**
+     * Get back the renewals that were saved in the certificates (after a restart) and start the timer to complete them. The states that cannot be resumed are removed.
+     *
+     * @param services
+     *            all services
+     * @param changes
+     *            the changes to make
+     * @return the resumed renewals
+     */
+    public static List<CertificateRenewal> resumeRenewalsAndCreateTimer(CommonServicesContext services, ChangesContext changes) {
+
+        IPResourceService resourceService = services.getResourceService();
+        long now = System.currentTimeMillis();
+
+        Metrics.resourceQuery();
+        List<WebsiteCertificate> certificatesWithState = resourceService.resourceFindAll( //
+                resourceService.createResourceQuery(WebsiteCertificate.class) //
+                        .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME)) //
+                .stream() //
+                .filter(it -> it.getMeta().containsKey(RenewalState.META_KEY)) //
+                .collect(Collectors.toList());
+        List<CertificateRenewal> renewals = new ArrayList<>();
+        if (certificatesWithState.isEmpty()) {
+            return renewals;
+        }
+
+        logger.info("Resuming {} renewals", certificatesWithState.size());
+        LetsencryptConfig config = getConfig(resourceService);
+        AcmeService acmeService = AcmeServiceCache.getAcmeService(config);
+        for (WebsiteCertificate certificate : certificatesWithState) {
+            String domain = certificate.getDomainNames().stream().findFirst().get();
+            RenewalState renewalState = RenewalState.fromMeta(certificate);
+            try {
+                if (renewalState == null || renewalState.getOrderUrl() == null || !RenewalState.isInProgress(certificate, now)) {
+                    throw new LetsencryptException("The saved state is invalid or too old");
+                }
+                OrderAndChallenges orderAndChallenges = acmeService.challengeResume(new URL(renewalState.getOrderUrl()));
+                if (!new TreeSet<>(orderAndChallenges.getDomainNames()).equals(new TreeSet<>(certificate.getDomainNames()))) {
+                    throw new LetsencryptException("The domain names of the certificate changed");
+                }
+                CertificateRenewal renewal = CertificateRenewal.fromState(domain, orderAndChallenges, renewalState) //
+                        .setWebsiteCertificateId(certificate.getInternalId());
+                if (renewal.isDone()) {
+                    throw new LetsencryptException(renewal.getFailure());
+                }
+                logger.info("Resumed the renewal of {} at stage {}", domain, renewal.getStage());
+                renewals.add(renewal.prepareCertificateRequest());
+            } catch (Exception e) {
+                Metrics.failure("RESUME");
+                logger.warn("Cannot resume the renewal of {}. Will start over : {}", domain, e.getMessage());
+                certificate.getMeta().remove(RenewalState.META_KEY);
+                changes.resourceUpdate(certificate);
+            }
+        }
+
+        if (!renewals.isEmpty()) {
+            logger.info("Start the Waiting for the resumed renewals");
+            services.getTimerService().timerAdd(new TimerEventContext(new LetsEncryptRefreshOldCertsWaitDnsTimer(acmeService, config.getTagName(), renewals) //
+                    .setRateLimitGovernor(RateLimitGovernor.getGovernor(config)), //
+                    "Let Encrypt - Complete - Resume", //
+                    Calendar.SECOND, //
+                    FIRST_DNS_CHECK_SECONDS, //
+                    true, //
+                    false));
+        }
+
+        return renewals;
+    }
+
+    /**
+     * Save the state of the renewals in their certificate.
+     *
+     * @param websiteCertificateByDomain
+     *            the certificates by the main domain of their renewal
+     * @param changes
+     *            the changes to make
+     * @param renewals
+     *            the renewals
+     */
+    protected static void saveStates(Map<String, WebsiteCertificate> websiteCertificateByDomain, ChangesContext changes, List<CertificateRenewal> renewals) {
+        for (CertificateRenewal renewal : renewals) {
+            WebsiteCertificate websiteCertificate = websiteCertificateByDomain.get(renewal.getDomain());
+            if (websiteCertificate != null) {
+                renewal.toState().toMeta(websiteCertificate);
+                changes.resourceUpdate(websiteCertificate);
+            }
+        }
+    }
+
+    /**
+     * Get the type of keys to use for the certificate. The one in the certificate has priority over the one in the config.
+     *
+     * @param config
+     *            the config
+     * @param certificate
+     *            the certificate
+     * @return the key type
+     */
+    public static KeyType getKeyType(LetsencryptConfig config, WebsiteCertificate certificate) {
+        String keyType = certificate.getMeta().get(KEY_TYPE);
+        if (Strings.isNullOrEmpty(keyType)) {
+            keyType = config.getKeyType();
+        }
+        return KeyType.fromValue(keyType);
+    }
+
+    /**
+     * Get the time after which the certificate can be renewed again after a failure.
+     *
+     * @param certificate
+     *            the certificate
+     * @return the time or 0 if there was no failure
+     */
+    public static long getNextAttemptTime(WebsiteCertificate certificate) {
+        try {
+            String nextAttempt = certificate.getMeta().get(NEXT_ATTEMPT);
+            if (nextAttempt != null) {
+                return Long.valueOf(nextAttempt);
+            }
+            String lastFailure = certificate.getMeta().get(LAST_FAILURE);
+            if (lastFailure != null) {
+                return Long.valueOf(lastFailure) + RETRY_MAX_DELAY_MS;
+            }
+        } catch (NumberFormatException e) {
+        }
+        return 0;
+    }
+
+    /**
+     * Save the failure in the certificate and plan the next attempt.
+     *
+     * @param certificate
+     *            the certificate
+     * @param now
+     *            the current time
+     */
+    public static void recordFailure(WebsiteCertificate certificate, long now) {
+        int failures = 1;
+        try {
+            failures += Integer.valueOf(certificate.getMeta().getOrDefault(FAILURES, "0"));
+        } catch (NumberFormatException e) {
+        }
+        long delay = RETRY_MAX_DELAY_MS;
+        if (failures <= 16) {
+            delay = Math.min(RETRY_FIRST_DELAY_MS << (failures - 1), RETRY_MAX_DELAY_MS);
+        }
+        logger.info("Failure {} in a row for {}. Next attempt in {} minutes", failures, certificate.getDomainNames(), delay / 60000);
+
+        certificate.getMeta().put(LAST_FAILURE, String.valueOf(now));
+        certificate.getMeta().put(FAILURES, String.valueOf(failures));
+        certificate.getMeta().put(NEXT_ATTEMPT, String.valueOf(now + delay));
+    }
+
+    /**
+     * Get the ACME configuration, create the challenges and start the timer to complete.
+     *
+     * @param services
+     *            all services
+     * @param changes
+     *            the changes to make
+     * @param certificatesToUpdate
+     *            the certificates to generate challenges for
+     * @param acquired
+     *            true if the certificates already took their place in the rate limits (e.g. when they were selected with {@link RateLimitGovernor#tryAcquire(WebsiteCertificate, long)}) ;
+     *            false to take it here
+     * @return the timer that will complete the renewals or null if they were all held back by the rate limits
+     */
+    public static LetsEncryptRefreshOldCertsWaitDnsTimer createChallengesAndCreateTimer(CommonServicesContext services, ChangesContext changes, List<WebsiteCertificate> certificatesToUpdate,
+            boolean acquired) {
+
+        IPResourceService resourceService = services.getResourceService();
+        LetsencryptConfig config = getConfig(resourceService);
+        String tagName = config.getTagName();
+
         logger.info("Will update certificates: {}", certificatesToUpdate.stream().flatMap(it -> it.getDomainNames().stream()).sorted().collect(Collectors.toList()));
-        AcmeService acmeService = new AcmeServiceImpl(config);
+        AcmeService acmeService = AcmeServiceCache.getAcmeService(config);
+        RateLimitGovernor rateLimitGovernor = RateLimitGovernor.getGovernor(config);
 
-        // Get the challenges
+        // Get the challenges (one order per certificate with all its domain names)
         logger.info("Getting the challenges");
         List<String> domainsWithoutChallenge = new ArrayList<>();
-        Map<String, Tuple2<Order, Dns01Challenge>> challengeByDomain = new HashMap<>();
+        List<String> heldBackDomains = new ArrayList<>();
+        List<CertificateRenewal> renewals = new ArrayList<>();
         for (WebsiteCertificate certificate : certificatesToUpdate) {
             String domain = certificate.getDomainNames().stream().findFirst().get();
-            Tuple2<Order, Dns01Challenge> orderAndDnsChallenge;
+            long now = System.currentTimeMillis();
+            if (acquired ? now < rateLimitGovernor.getPausedUntil() : !rateLimitGovernor.tryAcquire(certificate, now)) {
+                heldBackDomains.add(domain);
+                continue;
+            }
             try {
-                orderAndDnsChallenge = acmeService.challengeInit(domain);
-                Dns01Challenge dnsChallenge = orderAndDnsChallenge.getB();
-                challengeByDomain.put(domain, orderAndDnsChallenge);
-                String digest = dnsChallenge.getDigest();
-
-                // Add DnsEntries if does not already exist
-                DnsEntry dnsEntry = new DnsEntry("_acme-challenge." + domain, DnsEntryType.TXT, digest);
-                Optional<DnsEntry> existingDnsEntry = resourceService.resourceFindByPk(dnsEntry);
-                if (!existingDnsEntry.isPresent()) {
-                    changes.resourceAdd(dnsEntry);
-                    changes.linkAdd(certificate, LinkTypeConstants.MANAGES, dnsEntry);
-                    changes.tagAdd(dnsEntry, tagName);
+                OrderAndChallenges orderAndChallenges = Metrics.time(Metrics.ACME_CHALLENGE_INIT_TIME, () -> acmeService.challengeInit(new ArrayList<>(certificate.getDomainNames())));
+                renewals.add(new CertificateRenewal(domain, orderAndChallenges) //
+                        .setKeyType(getKeyType(config, certificate)) //
+                        .setWebsiteCertificateId(certificate.getInternalId()) //
+                        .prepareCertificateRequest());
+
+                if (!orderAndChallenges.getAlreadyValidDomains().isEmpty()) {
+                    logger.info("Reusing the valid authorizations for {}", orderAndChallenges.getAlreadyValidDomains());
                 }
             } catch (LetsencryptException e) {
+                Metrics.failure("CHALLENGE_INIT");
                 logger.error("Cannot get the challenge for domain {}", domain, e);
                 domainsWithoutChallenge.add(domain + " : " + e.getMessage());
+
+                // Do not send the next orders if the server says the rate limit is reached
+                Throwables.getCausalChain(e).stream() //
+                        .filter(it -> it instanceof AcmeRateLimitedException) //
+                        .map(it -> (AcmeRateLimitedException) it) //
+                        .findFirst() //
+                        .ifPresent(it -> rateLimitGovernor.pauseUntil(it.getRetryAfter() == null ? System.currentTimeMillis() + RateLimitGovernor.DEFAULT_PAUSE_MS : it.getRetryAfter().toEpochMilli()));
             } catch (Exception e) {
+                Metrics.failure("CHALLENGE_INIT");
                 logger.error("Unexpected failure while getting the challenge for domain {}", domain, e);
                 domainsWithoutChallenge.add(domain + " : " + e.getMessage());
             }
         }
 
+        rateLimitGovernor.saveIfChanged(config, changes, System.currentTimeMillis());
+
         if (!domainsWithoutChallenge.isEmpty()) {
             services.getMessagingService().alertingWarn("Let's Encrypt - Domains Without Challenge", Joiner.on('\n').join(domainsWithoutChallenge));
         }
 
-        if (challengeByDomain.isEmpty()) {
-            throw new LetsencryptException("Could not get any challenge");
+        if (!heldBackDomains.isEmpty()) {
+            logger.info("The rate limit is reached. Holding back the orders for {}", heldBackDomains);
         }
 
-        // Add the waiting domain
-        String dnsWaitDomain = "z" + SecureRandomTools.randomHexString(5).toLowerCase() + config.getDnsUpdatedSubDomain();
-        logger.info("Adding the DNS Wait domain {}", dnsWaitDomain);
+        if (renewals.isEmpty()) {
+            if (!heldBackDomains.isEmpty()) {
+                return null;
+            }
+            throw new LetsencryptException("Could not get any challenge");
+        }
 
-        DnsEntry dnsEntry = new DnsEntry(dnsWaitDomain, DnsEntryType.A, "127.0.0.1");
-        changes.resourceAdd(dnsEntry);
-        changes.linkAdd(config, LinkTypeConstants.MANAGES, dnsEntry);
-        changes.tagAdd(dnsEntry, tagName);
+        // Add the first chunk of challenges in the DNS and save their states to be able to resume after a restart. The next chunks are added by the timer
+        LetsEncryptRefreshOldCertsWaitDnsTimer waitDnsTimer = new LetsEncryptRefreshOldCertsWaitDnsTimer(acmeService, tagName, renewals) //
+                .setRateLimitGovernor(rateLimitGovernor) //
+                .addChallengesToPublish(renewals);
+        waitDnsTimer.publishChallenges(resourceService, changes);
 
-        // Start a new timer for the rest
-        logger.info("Start the Waiting for the DNS");
-        services.getTimerService().timerAdd(new TimerEventContext(new LetsEncryptRefreshOldCertsWaitDnsTimer(acmeService, dnsWaitDomain, challengeByDomain), //
+        // Start a new timer for the rest (right away if all the authorizations are already valid or if some challenges are left to add)
+        boolean waitDns = renewals.stream().anyMatch(CertificateRenewal::isWaitingDns) && !waitDnsTimer.hasChallengesToPublish();
+        logger.info("Start the Waiting for the DNS. Some are waiting for the DNS? {}", waitDns);
+        services.getTimerService().timerAdd(new TimerEventContext(waitDnsTimer, //
                 "Let Encrypt - Complete - Wait DNS", //
-                Calendar.MINUTE, //
-                2, //
+                Calendar.SECOND, //
+                waitDns ? FIRST_DNS_CHECK_SECONDS : 1, //
                 true, //
                 false));
+        return waitDnsTimer;
 
     }
 
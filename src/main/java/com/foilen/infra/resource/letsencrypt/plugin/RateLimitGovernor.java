@@ -0,0 +1,421 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.foilen.infra.plugin.v1.core.context.ChangesContext;
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tools.JsonTools;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.net.InternetDomainName;
+
+/**
+ * Holds the new orders back when they would go over the Lets Encrypt rate limits instead of sending them and getting errors. Each limit is a token bucket that refills over its window:
+ * <ul>
+ * <li>the new orders per account;</li>
+ * <li>the new certificates per registered domain (the renewals are exempted);</li>
+ * <li>the duplicate certificates (same domain names ; the renewals are exempted since they are far apart and a bucket per certificate would bloat the saved state);</li>
+ * <li>the failed validations per hostname (an order is held back when one of its hostnames has no more budget).</li>
+ * </ul>
+ * There is one governor per account and its buckets are saved in the meta of the {@link LetsencryptConfig}.
+ */
+public class RateLimitGovernor extends AbstractBasics {
+
+    /**
+     * The meta key in the {@link LetsencryptConfig}.
+     */
+    public static final String META_KEY = "letsencryptRateLimits";
+
+    public static final long HOUR_MS = 60 * 60000L;
+    public static final long WEEK_MS = 7 * 24 * HOUR_MS;
+
+    public static final int DEFAULT_NEW_ORDERS_MAX = 300;
+    public static final long DEFAULT_NEW_ORDERS_WINDOW_MS = 3 * HOUR_MS;
+    public static final int DEFAULT_CERTIFICATES_PER_REGISTERED_DOMAIN_MAX = 50;
+    public static final long DEFAULT_CERTIFICATES_PER_REGISTERED_DOMAIN_WINDOW_MS = WEEK_MS;
+    public static final int DEFAULT_DUPLICATE_CERTIFICATES_MAX = 5;
+    public static final long DEFAULT_DUPLICATE_CERTIFICATES_WINDOW_MS = WEEK_MS;
+    public static final int DEFAULT_FAILED_VALIDATIONS_MAX = 5;
+    public static final long DEFAULT_FAILED_VALIDATIONS_WINDOW_MS = HOUR_MS;
+
+    /**
+     * How long to hold all the orders back when the server says the rate limit is reached without telling when to retry.
+     */
+    public static final long DEFAULT_PAUSE_MS = HOUR_MS;
+
+    private static final String ORDERS = "orders";
+    private static final String REGISTERED_DOMAIN_PREFIX = "registeredDomain:";
+    private static final String DUPLICATE_PREFIX = "duplicate:";
+    private static final String FAILED_VALIDATIONS_PREFIX = "failedValidations:";
+
+    private static final Map<String, RateLimitGovernor> governorByKey = new ConcurrentHashMap<>();
+
+    /**
+     * The content of a token bucket when it was last used.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Bucket {
+
+        private double tokens;
+        private long time;
+
+        public Bucket() {
+        }
+
+        public Bucket(double tokens, long time) {
+            this.tokens = tokens;
+            this.time = time;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public double getTokens() {
+            return tokens;
+        }
+
+        public void setTime(long time) {
+            this.time = time;
+        }
+
+        public void setTokens(double tokens) {
+            this.tokens = tokens;
+        }
+
+    }
+
+    /**
+     * What is saved in the meta of the {@link LetsencryptConfig}.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class State {
+
+        private long pausedUntil;
+        private Map<String, Bucket> bucketByKey = new TreeMap<>();
+
+        public Map<String, Bucket> getBucketByKey() {
+            return bucketByKey;
+        }
+
+        public long getPausedUntil() {
+            return pausedUntil;
+        }
+
+        public void setBucketByKey(Map<String, Bucket> bucketByKey) {
+            this.bucketByKey = bucketByKey;
+        }
+
+        public void setPausedUntil(long pausedUntil) {
+            this.pausedUntil = pausedUntil;
+        }
+
+    }
+
+    /**
+     * Get the governor of the account of that config. It is loaded from the meta of the config the first time.
+     *
+     * @param config
+     *            the config
+     * @return the governor
+     */
+    public static RateLimitGovernor getGovernor(LetsencryptConfig config) {
+        String accountKeypairPem = Strings.nullToEmpty(config.getAccountKeypairPem());
+        String key = config.getUrl() + "|" + Hashing.sha256().hashString(accountKeypairPem, StandardCharsets.UTF_8).toString();
+        return governorByKey.computeIfAbsent(key, it -> new RateLimitGovernor().load(config));
+    }
+
+    /**
+     * Get the registered domain (the one bought from a registrar) of a domain name.
+     *
+     * @param domainName
+     *            the domain name (can be a wildcard)
+     * @return the registered domain or the domain name itself if it is not under a public suffix
+     */
+    public static String getRegisteredDomain(String domainName) {
+        String name = domainName.toLowerCase();
+        if (name.startsWith("*.")) {
+            name = name.substring(2);
+        }
+        try {
+            InternetDomainName internetDomainName = InternetDomainName.from(name);
+            if (internetDomainName.isUnderPublicSuffix()) {
+                return internetDomainName.topPrivateDomain().toString();
+            }
+        } catch (IllegalArgumentException e) {
+        }
+        return name;
+    }
+
+    /**
+     * Tells if the certificate was already issued by the CA for the same domain names. These renewals do not count in the certificates per registered domain and in the duplicate
+     * certificates.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     * @return true if it is a renewal
+     */
+    public static boolean isRenewal(WebsiteCertificate websiteCertificate) {
+        return !Strings.isNullOrEmpty(websiteCertificate.getCaCertificate());
+    }
+
+    /**
+     * Remove all the governors (e.g. between tests).
+     */
+    public static void resetAll() {
+        governorByKey.clear();
+    }
+
+    private int newOrdersMax = DEFAULT_NEW_ORDERS_MAX;
+    private long newOrdersWindowMs = DEFAULT_NEW_ORDERS_WINDOW_MS;
+    private int certificatesPerRegisteredDomainMax = DEFAULT_CERTIFICATES_PER_REGISTERED_DOMAIN_MAX;
+    private long certificatesPerRegisteredDomainWindowMs = DEFAULT_CERTIFICATES_PER_REGISTERED_DOMAIN_WINDOW_MS;
+    private int duplicateCertificatesMax = DEFAULT_DUPLICATE_CERTIFICATES_MAX;
+    private long duplicateCertificatesWindowMs = DEFAULT_DUPLICATE_CERTIFICATES_WINDOW_MS;
+    private int failedValidationsMax = DEFAULT_FAILED_VALIDATIONS_MAX;
+    private long failedValidationsWindowMs = DEFAULT_FAILED_VALIDATIONS_WINDOW_MS;
+
+    private State state = new State();
+    private boolean changed;
+
+    /**
+     * Copy the limits and the buckets to simulate the next orders without changing this governor.
+     *
+     * @return the copy
+     */
+    public synchronized RateLimitGovernor copy() {
+        RateLimitGovernor copy = new RateLimitGovernor() //
+                .setNewOrdersLimit(newOrdersMax, newOrdersWindowMs) //
+                .setCertificatesPerRegisteredDomainLimit(certificatesPerRegisteredDomainMax, certificatesPerRegisteredDomainWindowMs) //
+                .setDuplicateCertificatesLimit(duplicateCertificatesMax, duplicateCertificatesWindowMs) //
+                .setFailedValidationsLimit(failedValidationsMax, failedValidationsWindowMs);
+        copy.state.setPausedUntil(state.getPausedUntil());
+        state.getBucketByKey().forEach((key, bucket) -> copy.state.getBucketByKey().put(key, new Bucket(bucket.getTokens(), bucket.getTime())));
+        return copy;
+    }
+
+    private int getMax(String key) {
+        if (ORDERS.equals(key)) {
+            return newOrdersMax;
+        } else if (key.startsWith(REGISTERED_DOMAIN_PREFIX)) {
+            return certificatesPerRegisteredDomainMax;
+        } else if (key.startsWith(DUPLICATE_PREFIX)) {
+            return duplicateCertificatesMax;
+        } else {
+            return failedValidationsMax;
+        }
+    }
+
+    /**
+     * Get how many new orders can be sent right now.
+     *
+     * @param now
+     *            the current time
+     * @return the amount of orders
+     */
+    public synchronized int getNewOrdersLeft(long now) {
+        return now < state.getPausedUntil() ? 0 : (int) getTokens(ORDERS, now);
+    }
+
+    public synchronized long getPausedUntil() {
+        return state.getPausedUntil();
+    }
+
+    /**
+     * Get the amount of tokens left in a bucket after refilling it.
+     *
+     * @param key
+     *            the key of the bucket
+     * @param now
+     *            the current time
+     * @return the amount of tokens
+     */
+    protected synchronized double getTokens(String key, long now) {
+        Bucket bucket = state.getBucketByKey().get(key);
+        int max = getMax(key);
+        if (bucket == null) {
+            return max;
+        }
+        long elapsed = Math.max(0, now - bucket.getTime());
+        return Math.min(max, bucket.getTokens() + (double) elapsed * max / getWindowMs(key));
+    }
+
+    private long getWindowMs(String key) {
+        if (ORDERS.equals(key)) {
+            return newOrdersWindowMs;
+        } else if (key.startsWith(REGISTERED_DOMAIN_PREFIX)) {
+            return certificatesPerRegisteredDomainWindowMs;
+        } else if (key.startsWith(DUPLICATE_PREFIX)) {
+            return duplicateCertificatesWindowMs;
+        } else {
+            return failedValidationsWindowMs;
+        }
+    }
+
+    public synchronized boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Load the buckets saved in the config.
+     *
+     * @param config
+     *            the config
+     * @return this
+     */
+    public synchronized RateLimitGovernor load(LetsencryptConfig config) {
+        String json = config.getMeta().get(META_KEY);
+        if (!Strings.isNullOrEmpty(json)) {
+            try {
+                state = JsonTools.readFromString(json, State.class);
+            } catch (Exception e) {
+                logger.warn("Could not read the saved rate limits. Starting with full budgets : {}", e.getMessage());
+            }
+        }
+        changed = false;
+        return this;
+    }
+
+    /**
+     * Hold all the orders back until that time (e.g. when the server said the rate limit is reached).
+     *
+     * @param until
+     *            the time
+     */
+    public synchronized void pauseUntil(long until) {
+        if (until > state.getPausedUntil()) {
+            logger.info("Holding all the orders back for {} minutes", Math.max(0, until - System.currentTimeMillis()) / 60000);
+            state.setPausedUntil(until);
+            changed = true;
+        }
+    }
+
+    /**
+     * Count the failed validations of these hostnames.
+     *
+     * @param hostnames
+     *            the hostnames of the challenges that failed
+     * @param now
+     *            the current time
+     */
+    public synchronized void recordFailedValidations(Collection<String> hostnames, long now) {
+        hostnames.forEach(hostname -> take(FAILED_VALIDATIONS_PREFIX + hostname.toLowerCase(), now));
+    }
+
+    /**
+     * Save the buckets in the config if they changed. The full buckets are not saved.
+     *
+     * @param config
+     *            the config
+     * @param changes
+     *            the changes to make
+     * @param now
+     *            the current time
+     */
+    public synchronized void saveIfChanged(LetsencryptConfig config, ChangesContext changes, long now) {
+        if (!changed) {
+            return;
+        }
+
+        state.getBucketByKey().keySet().removeIf(key -> getTokens(key, now) >= getMax(key));
+        if (state.getPausedUntil() <= now) {
+            state.setPausedUntil(0);
+        }
+        config.getMeta().put(META_KEY, JsonTools.compactPrint(state));
+        changes.resourceUpdate(config);
+        changed = false;
+    }
+
+    public RateLimitGovernor setCertificatesPerRegisteredDomainLimit(int max, long windowMs) {
+        this.certificatesPerRegisteredDomainMax = max;
+        this.certificatesPerRegisteredDomainWindowMs = windowMs;
+        return this;
+    }
+
+    public RateLimitGovernor setDuplicateCertificatesLimit(int max, long windowMs) {
+        this.duplicateCertificatesMax = max;
+        this.duplicateCertificatesWindowMs = windowMs;
+        return this;
+    }
+
+    public RateLimitGovernor setFailedValidationsLimit(int max, long windowMs) {
+        this.failedValidationsMax = max;
+        this.failedValidationsWindowMs = windowMs;
+        return this;
+    }
+
+    public RateLimitGovernor setNewOrdersLimit(int max, long windowMs) {
+        this.newOrdersMax = max;
+        this.newOrdersWindowMs = windowMs;
+        return this;
+    }
+
+    private void take(String key, long now) {
+        state.getBucketByKey().put(key, new Bucket(Math.max(0, getTokens(key, now) - 1), now));
+        changed = true;
+    }
+
+    /**
+     * Take the budget for a new order for that certificate if all the limits allow it.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     * @param now
+     *            the current time
+     * @return true if the order can be sent ; false if it must be held back
+     */
+    public synchronized boolean tryAcquire(WebsiteCertificate websiteCertificate, long now) {
+
+        if (now < state.getPausedUntil()) {
+            return false;
+        }
+
+        // Not enough budget to validate
+        for (String hostname : websiteCertificate.getDomainNames()) {
+            if (getTokens(FAILED_VALIDATIONS_PREFIX + hostname.toLowerCase(), now) < 1) {
+                logger.info("Holding back {} : too many failed validations for {}", websiteCertificate.getDomainNames(), hostname);
+                return false;
+            }
+        }
+
+        // Not enough budget to issue
+        List<String> keys = new ArrayList<>();
+        keys.add(ORDERS);
+        if (!isRenewal(websiteCertificate)) {
+            keys.add(DUPLICATE_PREFIX + Joiner.on(',').join(new TreeSet<>(websiteCertificate.getDomainNames())).toLowerCase());
+            websiteCertificate.getDomainNames().stream() //
+                    .map(RateLimitGovernor::getRegisteredDomain) //
+                    .distinct() //
+                    .forEach(registeredDomain -> keys.add(REGISTERED_DOMAIN_PREFIX + registeredDomain));
+        }
+        for (String key : keys) {
+            if (getTokens(key, now) < 1) {
+                logger.info("Holding back {} : the rate limit {} is reached", websiteCertificate.getDomainNames(), key);
+                return false;
+            }
+        }
+
+        keys.forEach(key -> take(key, now));
+        return true;
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+
+/**
+ * What the {@link LetsEncryptRefreshOldCertsBeginTimer} would do in the next waves with the estimated costs. It is computed without any ACME call and without any change (see
+ * {@link LetsEncryptRefreshOldCertsBeginTimer#plan(com.foilen.infra.plugin.v1.core.service.IPResourceService, long, long)}).
+ */
+public class RenewalPlan {
+
+    /**
+     * The ACME requests for each order: new order, finalize, order status and certificate download.
+     */
+    public static final int ACME_REQUESTS_PER_ORDER = 4;
+    /**
+     * The ACME requests for each domain name of an order: authorization, challenge trigger and challenge status. The authorizations that are still valid do not need the last 2.
+     */
+    public static final int ACME_REQUESTS_PER_DOMAIN = 3;
+
+    /**
+     * The renewals started at the same time.
+     */
+    public static class Wave {
+
+        private long time;
+        private int renewals;
+        private int domainNames;
+
+        public Wave(long time, int renewals, int domainNames) {
+            this.time = time;
+            this.renewals = renewals;
+            this.domainNames = domainNames;
+        }
+
+        public int getDomainNames() {
+            return domainNames;
+        }
+
+        public int getRenewals() {
+            return renewals;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+    }
+
+    private long time;
+    private long horizonMs;
+    private long renewalDurationMs;
+
+    private int certificates;
+    private int inProgress;
+    private int due;
+    private List<Wave> waves = new ArrayList<>();
+
+    private int newOrdersLeftBefore;
+    private int newOrdersLeftAfter;
+
+    public RenewalPlan(long time, long horizonMs, long renewalDurationMs) {
+        this.time = time;
+        this.horizonMs = horizonMs;
+        this.renewalDurationMs = renewalDurationMs;
+    }
+
+    /**
+     * Add a wave.
+     *
+     * @param waveTime
+     *            the time when it starts
+     * @param started
+     *            the certificates that are renewed in it
+     */
+    public void addWave(long waveTime, List<WebsiteCertificate> started) {
+        waves.add(new Wave(waveTime, started.size(), started.stream().mapToInt(it -> it.getDomainNames().size()).sum()));
+    }
+
+    public int getCertificates() {
+        return certificates;
+    }
+
+    /**
+     * Get the amount of certificate updates: saving the renewal state and then the new certificate.
+     *
+     * @return the amount of changes
+     */
+    public int getCertificateUpdates() {
+        return 2 * getPlanned();
+    }
+
+    /**
+     * Get the amount of challenge DnsEntries that will be added and then deleted.
+     *
+     * @return the amount of changes
+     */
+    public int getDnsEntryWrites() {
+        return 2 * getDomainNames();
+    }
+
+    public int getDomainNames() {
+        return waves.stream().mapToInt(Wave::getDomainNames).sum();
+    }
+
+    public int getDue() {
+        return due;
+    }
+
+    /**
+     * Get how long until the last planned renewal is completed.
+     *
+     * @return the duration or 0 if nothing is planned
+     */
+    public long getEstimatedDurationMs() {
+        if (waves.isEmpty()) {
+            return 0;
+        }
+        return waves.get(waves.size() - 1).getTime() - time + renewalDurationMs;
+    }
+
+    /**
+     * Get the certificates that are due in the horizon, but that would not be started because of the limits.
+     *
+     * @return the amount
+     */
+    public int getHeldBack() {
+        return due - getPlanned();
+    }
+
+    public long getHorizonMs() {
+        return horizonMs;
+    }
+
+    public int getInProgress() {
+        return inProgress;
+    }
+
+    /**
+     * Get the maximum amount of ACME requests. It is less when some authorizations are still valid or more when the server asks to poll again.
+     *
+     * @return the amount of requests
+     */
+    public int getMaxAcmeRequests() {
+        return ACME_REQUESTS_PER_ORDER * getPlanned() + ACME_REQUESTS_PER_DOMAIN * getDomainNames();
+    }
+
+    /**
+     * Get the biggest amount of renewals started at the same time.
+     *
+     * @return the amount
+     */
+    public int getMaxWaveRenewals() {
+        return waves.stream().mapToInt(Wave::getRenewals).max().orElse(0);
+    }
+
+    public int getNewOrdersLeftAfter() {
+        return newOrdersLeftAfter;
+    }
+
+    public int getNewOrdersLeftBefore() {
+        return newOrdersLeftBefore;
+    }
+
+    public int getPlanned() {
+        return waves.stream().mapToInt(Wave::getRenewals).sum();
+    }
+
+    public long getRenewalDurationMs() {
+        return renewalDurationMs;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public List<Wave> getWaves() {
+        return waves;
+    }
+
+    public RenewalPlan setCertificates(int certificates) {
+        this.certificates = certificates;
+        return this;
+    }
+
+    public RenewalPlan setDue(int due) {
+        this.due = due;
+        return this;
+    }
+
+    public RenewalPlan setInProgress(int inProgress) {
+        this.inProgress = inProgress;
+        return this;
+    }
+
+    public RenewalPlan setNewOrdersLeftAfter(int newOrdersLeftAfter) {
+        this.newOrdersLeftAfter = newOrdersLeftAfter;
+        return this;
+    }
+
+    public RenewalPlan setNewOrdersLeftBefore(int newOrdersLeftBefore) {
+        this.newOrdersLeftBefore = newOrdersLeftBefore;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("Plan for the next ").append(horizonMs / 3600000).append(" hours (from ").append(new Date(time)).append(")\n");
+        summary.append("Certificates: ").append(certificates).append(" ; in progress: ").append(inProgress).append(" ; due: ").append(due).append('\n');
+        summary.append("Renewals: ").append(getPlanned()).append(" in ").append(waves.size()).append(" waves (max ").append(getMaxWaveRenewals()).append(" at once) ; held back: ")
+                .append(getHeldBack()).append('\n');
+        summary.append("Orders: ").append(getPlanned()).append(" ; domain names: ").append(getDomainNames()).append(" ; ACME requests: up to ").append(getMaxAcmeRequests()).append('\n');
+        summary.append("DnsEntry writes: ").append(getDnsEntryWrites()).append(" ; certificate updates: ").append(getCertificateUpdates()).append('\n');
+        summary.append("New orders budget: ").append(newOrdersLeftBefore).append(" now ; ").append(newOrdersLeftAfter).append(" after the last wave\n");
+        summary.append("Estimated duration: ").append(getEstimatedDurationMs() / 60000).append(" minutes (").append(renewalDurationMs / 1000).append(" seconds per renewal)\n");
+        for (Wave wave : waves) {
+            summary.append("  ").append(new Date(wave.getTime())).append(" : ").append(wave.getRenewals()).append(" renewals ; ").append(wave.getDomainNames()).append(" domain names\n");
+        }
+        return summary.toString();
+    }
+
+}
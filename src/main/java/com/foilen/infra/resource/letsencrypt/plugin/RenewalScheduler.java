@@ -0,0 +1,276 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+
+/**
+ * Spreads the renewals over time. Each certificate gets a renewal slot inside its renewal window that is always the same for the same domain names and end date. Only the certificates that
+ * passed their slot are renewed and the amount of orders started is capped per run and per hour. The ones that are left are taken by the next waves.
+ */
+public class RenewalScheduler extends AbstractBasics {
+
+    public static final long HOUR_MS = 60 * 60000L;
+    public static final long DAY_MS = 24 * HOUR_MS;
+
+    /**
+     * The renewal window starts 3 weeks before the end.
+     */
+    public static final long DEFAULT_WINDOW_START_MS = 21 * DAY_MS;
+    /**
+     * The renewal window ends 1 week before the end. After that, the certificate is renewed as soon as possible.
+     */
+    public static final long DEFAULT_WINDOW_END_MS = 7 * DAY_MS;
+
+    public static final int DEFAULT_MAX_PER_RUN = 50;
+    public static final int DEFAULT_MAX_PER_HOUR = 100;
+
+    public static final long DEFAULT_WAVE_INTERVAL_MS = 30 * 60000L;
+
+    private long windowStartMs = DEFAULT_WINDOW_START_MS;
+    private long windowEndMs = DEFAULT_WINDOW_END_MS;
+    private int maxPerRun = DEFAULT_MAX_PER_RUN;
+    private int maxPerHour = DEFAULT_MAX_PER_HOUR;
+    private long waveIntervalMs = DEFAULT_WAVE_INTERVAL_MS;
+
+    private Deque<Long> startTimes = new LinkedList<>();
+    private long nextWaveTime = -1;
+
+    private void cleanupStartTimes(long now) {
+        while (!startTimes.isEmpty() && startTimes.peekFirst() <= now - HOUR_MS) {
+            startTimes.removeFirst();
+        }
+    }
+
+    /**
+     * Copy the settings and the orders started in the last hour (but not the planned wave) to simulate the next waves without changing this scheduler.
+     *
+     * @return the copy
+     */
+    public synchronized RenewalScheduler copy() {
+        RenewalScheduler copy = new RenewalScheduler() //
+                .setWindowStartMs(windowStartMs) //
+                .setWindowEndMs(windowEndMs) //
+                .setMaxPerRun(maxPerRun) //
+                .setMaxPerHour(maxPerHour) //
+                .setWaveIntervalMs(waveIntervalMs);
+        copy.startTimes.addAll(startTimes);
+        return copy;
+    }
+
+    public int getMaxPerHour() {
+        return maxPerHour;
+    }
+
+    public int getMaxPerRun() {
+        return maxPerRun;
+    }
+
+    /**
+     * Get when the next wave is planned.
+     *
+     * @return the time or -1 if none
+     */
+    public synchronized long getNextWaveTime() {
+        return nextWaveTime;
+    }
+
+    /**
+     * Get the deterministic renewal slot of the certificate. It is between the start and the end of the renewal window.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     * @return the time when it should be renewed
+     */
+    public long getSlot(WebsiteCertificate websiteCertificate) {
+        long end = websiteCertificate.getEnd().getTime();
+        long windowLength = windowStartMs - windowEndMs;
+        if (windowLength <= 0) {
+            return end - windowStartMs;
+        }
+        String key = Joiner.on(',').join(new TreeSet<>(websiteCertificate.getDomainNames())) + "|" + end;
+        long hash = Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+        return end - windowStartMs + Math.floorMod(hash, windowLength);
+    }
+
+    /**
+     * Get how many orders were started in the last hour.
+     *
+     * @param now
+     *            the current time
+     * @return the amount
+     */
+    public synchronized int getStartedInLastHour(long now) {
+        cleanupStartTimes(now);
+        return startTimes.size();
+    }
+
+    public long getWaveIntervalMs() {
+        return waveIntervalMs;
+    }
+
+    public long getWindowEndMs() {
+        return windowEndMs;
+    }
+
+    public long getWindowStartMs() {
+        return windowStartMs;
+    }
+
+    /**
+     * Plan the next wave for the certificates that were not selected.
+     *
+     * @param remainingCertificates
+     *            the certificates that are in their renewal window but were not selected
+     * @param now
+     *            the current time
+     * @param horizonMs
+     *            the next wave is not planned if it would be after that delay (another run will happen before)
+     * @return the delay before the next wave or -1 if there is no need or if one is already planned before
+     */
+    public synchronized long planNextWave(Collection<WebsiteCertificate> remainingCertificates, long now, long horizonMs) {
+
+        long earliestSlot = remainingCertificates.stream() //
+                .mapToLong(this::getSlot) //
+                .min().orElse(-1);
+        return planWave(earliestSlot, now, horizonMs);
+    }
+
+    /**
+     * Plan a wave for when some certificates will be due (e.g. the next attempt after a failure). It is not before the wave interval.
+     *
+     * @param dueTime
+     *            the time when some certificates will be due or -1 if none
+     * @param now
+     *            the current time
+     * @param horizonMs
+     *            the wave is not planned if it would be after that delay (another run will happen before)
+     * @return the delay before the wave or -1 if there is no need or if one is already planned before
+     */
+    public synchronized long planWave(long dueTime, long now, long horizonMs) {
+
+        if (nextWaveTime != -1 && nextWaveTime <= now) {
+            nextWaveTime = -1;
+        }
+
+        if (dueTime == -1) {
+            return -1;
+        }
+
+        long waveTime = Math.max(dueTime, now + waveIntervalMs);
+        if (waveTime - now > horizonMs) {
+            return -1;
+        }
+        if (nextWaveTime != -1 && nextWaveTime <= waveTime) {
+            logger.info("A wave is already planned in {} minutes", (nextWaveTime - now) / 60000);
+            return -1;
+        }
+
+        nextWaveTime = waveTime;
+        return waveTime - now;
+    }
+
+    /**
+     * Count orders that were started elsewhere (e.g. resumed) in the per hour limit.
+     *
+     * @param now
+     *            the current time
+     * @param count
+     *            the amount of orders
+     */
+    public synchronized void recordStarted(long now, int count) {
+        for (int i = 0; i < count; ++i) {
+            startTimes.addLast(now);
+        }
+    }
+
+    /**
+     * Select the certificates that passed their renewal slot, the most urgent first, up to the per run and per hour limits. The selected ones are counted as started.
+     *
+     * @param certificates
+     *            the certificates that are in their renewal window
+     * @param now
+     *            the current time
+     * @return the certificates to renew now
+     */
+    public synchronized List<WebsiteCertificate> selectDue(Collection<WebsiteCertificate> certificates, long now) {
+        return selectDue(certificates, now, it -> true);
+    }
+
+    /**
+     * Select the certificates that passed their renewal slot and that can start, the most urgent first, up to the per run and per hour limits. The selected ones are counted as started.
+     *
+     * @param certificates
+     *            the certificates that are in their renewal window
+     * @param now
+     *            the current time
+     * @param canStart
+     *            tells if the renewal can start now (e.g. takes the budget of the rate limits). Only called until the limits are reached
+     * @return the certificates to renew now
+     */
+    public synchronized List<WebsiteCertificate> selectDue(Collection<WebsiteCertificate> certificates, long now, Predicate<WebsiteCertificate> canStart) {
+
+        cleanupStartTimes(now);
+        int available = Math.min(maxPerRun, maxPerHour - startTimes.size());
+        if (available <= 0) {
+            logger.info("Already started {} orders in the last hour. Not starting more", startTimes.size());
+            return new ArrayList<>();
+        }
+
+        List<WebsiteCertificate> due = certificates.stream() //
+                .filter(it -> getSlot(it) <= now) //
+                .sorted(Comparator.comparing(WebsiteCertificate::getEnd)) //
+                .filter(canStart) //
+                .limit(available) //
+                .collect(Collectors.toList());
+        recordStarted(now, due.size());
+        return due;
+    }
+
+    public RenewalScheduler setMaxPerHour(int maxPerHour) {
+        this.maxPerHour = maxPerHour;
+        return this;
+    }
+
+    public RenewalScheduler setMaxPerRun(int maxPerRun) {
+        this.maxPerRun = maxPerRun;
+        return this;
+    }
+
+    public RenewalScheduler setWaveIntervalMs(long waveIntervalMs) {
+        this.waveIntervalMs = waveIntervalMs;
+        return this;
+    }
+
+    public RenewalScheduler setWindowEndMs(long windowEndMs) {
+        this.windowEndMs = windowEndMs;
+        return this;
+    }
+
+    public RenewalScheduler setWindowStartMs(long windowStartMs) {
+        this.windowStartMs = windowStartMs;
+        return this;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+import com.foilen.smalltools.tools.JsonTools;
+import com.google.common.base.Strings;
+
+/**
+ * The state of a {@link CertificateRenewal} that is saved in the meta of its {@link WebsiteCertificate} to be able to resume it after a restart. It only has what is needed to find the
+ * order again: the private key of the certificate is never saved, so an order that was already finalized cannot be resumed and is started over.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RenewalState {
+
+    /**
+     * The meta key in the {@link WebsiteCertificate}.
+     */
+    public static final String META_KEY = "letsencryptRenewalState";
+
+    /**
+     * After that time, the state is considered abandoned.
+     */
+    public static final long MAX_AGE_MS = 24 * 60 * 60000L;
+
+    /**
+     * Remove the state of a renewal that was abandoned (too old).
+     *
+     * @param websiteCertificate
+     *            the certificate
+     * @param now
+     *            the current time
+     * @return true if there was a state and it was removed
+     */
+    public static boolean clearIfAbandoned(WebsiteCertificate websiteCertificate, long now) {
+        if (!websiteCertificate.getMeta().containsKey(META_KEY) || isInProgress(websiteCertificate, now)) {
+            return false;
+        }
+        websiteCertificate.getMeta().remove(META_KEY);
+        return true;
+    }
+
+    /**
+     * Get the state saved in the certificate.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     * @return the state or null if none or if it cannot be read
+     */
+    public static RenewalState fromMeta(WebsiteCertificate websiteCertificate) {
+        String json = websiteCertificate.getMeta().get(META_KEY);
+        if (Strings.isNullOrEmpty(json)) {
+            return null;
+        }
+        try {
+            return JsonTools.readFromString(json, RenewalState.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tells if the certificate has a recent renewal state.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     * @param now
+     *            the current time
+     * @return true if a renewal is in progress
+     */
+    public static boolean isInProgress(WebsiteCertificate websiteCertificate, long now) {
+        RenewalState renewalState = fromMeta(websiteCertificate);
+        return renewalState != null && now - renewalState.getStartTime() < MAX_AGE_MS;
+    }
+
+    private long startTime;
+    private String orderUrl;
+    private Map<String, String> authorizationUrlByDomain = new TreeMap<>();
+    private Map<String, String> digestByDomain = new TreeMap<>();
+    private String stage;
+    private int attempts;
+    private String keyType;
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public Map<String, String> getAuthorizationUrlByDomain() {
+        return authorizationUrlByDomain;
+    }
+
+    public Map<String, String> getDigestByDomain() {
+        return digestByDomain;
+    }
+
+    public String getKeyType() {
+        return keyType;
+    }
+
+    public String getOrderUrl() {
+        return orderUrl;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public void setAuthorizationUrlByDomain(Map<String, String> authorizationUrlByDomain) {
+        this.authorizationUrlByDomain = authorizationUrlByDomain;
+    }
+
+    public void setDigestByDomain(Map<String, String> digestByDomain) {
+        this.digestByDomain = digestByDomain;
+    }
+
+    public void setKeyType(String keyType) {
+        this.keyType = keyType;
+    }
+
+    public void setOrderUrl(String orderUrl) {
+        this.orderUrl = orderUrl;
+    }
+
+    public void setStage(String stage) {
+        this.stage = stage;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * Save this state in the certificate.
+     *
+     * @param websiteCertificate
+     *            the certificate
+     */
+    public void toMeta(WebsiteCertificate websiteCertificate) {
+        websiteCertificate.getMeta().put(META_KEY, JsonTools.compactPrint(this));
+    }
+
+}
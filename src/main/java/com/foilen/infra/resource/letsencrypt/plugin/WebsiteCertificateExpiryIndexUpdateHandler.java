@@ -0,0 +1,48 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import com.foilen.infra.plugin.v1.core.context.ChangesContext;
+import com.foilen.infra.plugin.v1.core.context.CommonServicesContext;
+import com.foilen.infra.plugin.v1.core.eventhandler.AbstractCommonMethodUpdateEventHandler;
+import com.foilen.infra.plugin.v1.core.eventhandler.CommonMethodUpdateEventHandlerContext;
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+
+/**
+ * Gives the added and updated certificates to the {@link CertificateExpiryIndex} as hints. The events come before the commit, so the deleted certificates and the ones that are due later
+ * are not applied here: the begin timer checks them against the resource store when the index says they are due.
+ */
+public class WebsiteCertificateExpiryIndexUpdateHandler extends AbstractCommonMethodUpdateEventHandler<WebsiteCertificate> {
+
+    private CertificateExpiryIndex expiryIndex;
+
+    public WebsiteCertificateExpiryIndexUpdateHandler(CertificateExpiryIndex expiryIndex) {
+        this.expiryIndex = expiryIndex;
+    }
+
+    @Override
+    protected void commonHandlerExecute(CommonServicesContext services, ChangesContext changes, CommonMethodUpdateEventHandlerContext<WebsiteCertificate> context) {
+
+        // Deleted. Will be dropped when it is due and not found
+        WebsiteCertificate resource = context.getResource();
+        if (resource == null) {
+            return;
+        }
+
+        expiryIndex.hint(resource);
+
+    }
+
+    @Override
+    public Class<WebsiteCertificate> supportedClass() {
+        return WebsiteCertificate.class;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExponentialBackoffPollingStrategyTest {
+
+    @Test
+    public void testNextDelay_backoff() {
+        ExponentialBackoffPollingStrategy strategy = new ExponentialBackoffPollingStrategy(1000, 5000, 2.0, 0, 60000);
+        Assert.assertEquals(1000, strategy.nextDelay(0, 0, null));
+        Assert.assertEquals(2000, strategy.nextDelay(1, 1000, null));
+        Assert.assertEquals(4000, strategy.nextDelay(2, 3000, null));
+        Assert.assertEquals(5000, strategy.nextDelay(3, 7000, null));
+        Assert.assertEquals(5000, strategy.nextDelay(10, 12000, null));
+    }
+
+    @Test
+    public void testNextDelay_deadline() {
+        ExponentialBackoffPollingStrategy strategy = new ExponentialBackoffPollingStrategy(1000, 5000, 2.0, 0, 60000);
+        Assert.assertEquals(3000, strategy.nextDelay(10, 57000, null));
+        Assert.assertEquals(-1, strategy.nextDelay(10, 60000, null));
+    }
+
+    @Test
+    public void testNextDelay_jitter() {
+        ExponentialBackoffPollingStrategy strategy = new ExponentialBackoffPollingStrategy(1000, 5000, 2.0, 0.2, 60000);
+        for (int i = 0; i < 100; ++i) {
+            long delay = strategy.nextDelay(1, 0, null);
+            Assert.assertTrue("Delay " + delay, delay >= 1600 && delay <= 2400);
+        }
+    }
+
+    @Test
+    public void testNextDelay_retryAfter() {
+        ExponentialBackoffPollingStrategy strategy = new ExponentialBackoffPollingStrategy(1000, 5000, 2.0, 0, 60000);
+        long delay = strategy.nextDelay(0, 0, Instant.now().plusSeconds(20));
+        Assert.assertTrue("Delay " + delay, delay > 15000 && delay <= 20000);
+        Assert.assertEquals(0, strategy.nextDelay(0, 0, Instant.now().minusSeconds(20)));
+    }
+
+}
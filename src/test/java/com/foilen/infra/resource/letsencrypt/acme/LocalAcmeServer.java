@@ -0,0 +1,963 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequest;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.jwk.PublicJsonWebKey;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.lang.JoseException;
+import org.shredzone.acme4j.toolbox.AcmeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foilen.infra.resource.letsencrypt.dns.DnsResolver;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process ACME v2 server on localhost that is good enough for the acme4j client. It supports the directory, the nonces, the accounts, the orders, the authorizations with a dns-01
+ * challenge, the finalization and the certificate download. The certificates are signed by a local CA.
+ *
+ * <p>
+ * It can simulate:
+ * </p>
+ * <ul>
+ * <li>a latency on every request;</li>
+ * <li>a validation delay for the challenges and an issuance delay for the orders;</li>
+ * <li>failing challenges (some domains or randomly);</li>
+ * <li>random server errors (500);</li>
+ * <li>a rate limit on the new orders (429 with Retry-After).</li>
+ * </ul>
+ *
+ * <p>
+ * When a {@link DnsResolver} is set, the challenges are only valid if the TXT record is visible on the first name server, like a real server does.
+ * </p>
+ */
+public class LocalAcmeServer implements Closeable {
+
+    private static class AccountState {
+        private String url;
+        private PublicKey publicKey;
+        private String thumbprint;
+        private List<Object> contact;
+        private Map<String, AuthorizationState> validAuthorizationByDomain = new ConcurrentHashMap<>();
+    }
+
+    private static class AcmeProblem extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private int httpStatus;
+        private String type;
+        private long retryAfterSeconds;
+
+        public AcmeProblem(int httpStatus, String type, String detail) {
+            super(detail);
+            this.httpStatus = httpStatus;
+            this.type = type;
+        }
+
+    }
+
+    private static class AuthorizationState {
+        private String id;
+        private String url;
+        private AccountState account;
+        private String domain;
+        private boolean wildcard;
+        private String status = STATUS_PENDING;
+        private String challengeId;
+        private String challengeUrl;
+        private String challengeStatus = STATUS_PENDING;
+        private String token;
+        private long triggeredAt;
+        private String error;
+    }
+
+    private static class OrderState {
+        private String id;
+        private String url;
+        private AccountState account;
+        private List<String> domains;
+        private List<AuthorizationState> authorizations = new ArrayList<>();
+        private String status = STATUS_PENDING;
+        private PublicKey csrPublicKey;
+        private long finalizedAt;
+        private String certificateUrl;
+        private String error;
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalAcmeServer.class);
+
+    private static final BouncyCastleProvider BOUNCY_CASTLE_PROVIDER = new BouncyCastleProvider();
+
+    public static final String PROBLEM_PREFIX = "urn:ietf:params:acme:error:";
+
+    private static final String STATUS_INVALID = "invalid";
+    private static final String STATUS_PENDING = "pending";
+    private static final String STATUS_PROCESSING = "processing";
+    private static final String STATUS_READY = "ready";
+    private static final String STATUS_VALID = "valid";
+
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final String CONTENT_TYPE_PEM_CHAIN = "application/pem-certificate-chain";
+    private static final String CONTENT_TYPE_PROBLEM = "application/problem+json";
+
+    private HttpServer httpServer;
+    private ExecutorService executorService;
+    private String baseUrl;
+
+    private KeyPair caKeyPair;
+    private X509Certificate caCertificate;
+    private String caCertificatePem;
+
+    // State
+    private AtomicLong nextId = new AtomicLong();
+    private Set<String> nonces = ConcurrentHashMap.newKeySet();
+    private Map<String, AccountState> accountByThumbprint = new ConcurrentHashMap<>();
+    private Map<String, AccountState> accountByUrl = new ConcurrentHashMap<>();
+    private Map<String, OrderState> orderById = new ConcurrentHashMap<>();
+    private Map<String, AuthorizationState> authorizationById = new ConcurrentHashMap<>();
+    private Map<String, AuthorizationState> authorizationByChallengeId = new ConcurrentHashMap<>();
+    private Map<String, String> certificatePemById = new ConcurrentHashMap<>();
+    private Deque<Long> newOrderTimes = new ArrayDeque<>();
+
+    // Metrics
+    private Map<String, AtomicLong> requestCountByEndpoint = new ConcurrentHashMap<>();
+    private AtomicLong issuedCertificates = new AtomicLong();
+    private AtomicLong badNonces = new AtomicLong();
+
+    // Config
+    private long latencyMs;
+    private long validationDelayMs;
+    private long issuanceDelayMs;
+    private double challengeFailureRate;
+    private double serverErrorRate;
+    private Set<String> failingDomains = ConcurrentHashMap.newKeySet();
+    private int maxNewOrdersPerWindow;
+    private long rateLimitWindowMs = 60000;
+    private boolean reuseValidAuthorizations = true;
+    private int certificateValidityDays = 90;
+    private DnsResolver dnsResolver;
+
+    public LocalAcmeServer() throws IOException {
+        this(10);
+    }
+
+    public LocalAcmeServer(int threads) throws IOException {
+        createCa();
+
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", this::handle);
+        executorService = Executors.newFixedThreadPool(threads);
+        httpServer.setExecutor(executorService);
+        httpServer.start();
+        baseUrl = "http://127.0.0.1:" + httpServer.getAddress().getPort();
+        LOGGER.info("Local ACME server started on {}", baseUrl);
+    }
+
+    public LocalAcmeServer addFailingDomain(String domain) {
+        failingDomains.add(domain.toLowerCase());
+        return this;
+    }
+
+    private Map<String, Object> authorizationJson(AuthorizationState authorization) {
+        Map<String, Object> challenge = new LinkedHashMap<>();
+        challenge.put("type", "dns-01");
+        challenge.put("url", authorization.challengeUrl);
+        challenge.put("status", authorization.challengeStatus);
+        challenge.put("token", authorization.token);
+        if (authorization.error != null) {
+            challenge.put("error", problemJson("incorrectResponse", authorization.error));
+        }
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("identifier", identifierJson(authorization.domain));
+        json.put("status", authorization.status);
+        json.put("expires", Instant.now().plus(7, ChronoUnit.DAYS).toString());
+        json.put("challenges", Collections.singletonList(challenge));
+        if (authorization.wildcard) {
+            json.put("wildcard", true);
+        }
+        return json;
+    }
+
+    private void checkRateLimit() {
+        if (maxNewOrdersPerWindow <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (newOrderTimes) {
+            while (!newOrderTimes.isEmpty() && newOrderTimes.peekFirst() <= now - rateLimitWindowMs) {
+                newOrderTimes.pollFirst();
+            }
+            if (newOrderTimes.size() >= maxNewOrdersPerWindow) {
+                AcmeProblem problem = new AcmeProblem(429, "rateLimited", "Too many new orders recently");
+                problem.retryAfterSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(newOrderTimes.peekFirst() + rateLimitWindowMs - now + 999));
+                throw problem;
+            }
+            newOrderTimes.addLast(now);
+        }
+    }
+
+    public void clearFailingDomains() {
+        failingDomains.clear();
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executorService.shutdownNow();
+    }
+
+    private void createCa() {
+        try {
+            caKeyPair = generateEcKeyPair();
+            X500Name caName = new X500Name("CN=Local ACME Test CA");
+            long now = System.currentTimeMillis();
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(caName, BigInteger.ONE, new Date(now - 60000), new Date(now + TimeUnit.DAYS.toMillis(3650)), caName,
+                    caKeyPair.getPublic());
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+            caCertificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(caKeyPair.getPrivate())));
+            caCertificatePem = toPem(caCertificate);
+        } catch (Exception e) {
+            throw new LetsencryptException("Could not create the local CA", e);
+        }
+    }
+
+    private Map<String, Object> directoryJson() {
+        Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("termsOfService", baseUrl + "/terms");
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("newNonce", baseUrl + "/new-nonce");
+        json.put("newAccount", baseUrl + "/new-account");
+        json.put("newOrder", baseUrl + "/new-order");
+        json.put("revokeCert", baseUrl + "/revoke-cert");
+        json.put("keyChange", baseUrl + "/key-change");
+        json.put("meta", meta);
+        return json;
+    }
+
+    private KeyPair generateEcKeyPair() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    /**
+     * Get how many signed requests were refused because their nonce was unknown or already used.
+     *
+     * @return the amount
+     */
+    public long getBadNonces() {
+        return badNonces.get();
+    }
+
+    public X509Certificate getCaCertificate() {
+        return caCertificate;
+    }
+
+    public double getChallengeFailureRate() {
+        return challengeFailureRate;
+    }
+
+    /**
+     * Get the URL to use as the ACME url in the config.
+     *
+     * @return the directory URL
+     */
+    public String getDirectoryUrl() {
+        return baseUrl + "/directory";
+    }
+
+    public long getIssuanceDelayMs() {
+        return issuanceDelayMs;
+    }
+
+    public long getIssuedCertificates() {
+        return issuedCertificates.get();
+    }
+
+    public long getLatencyMs() {
+        return latencyMs;
+    }
+
+    public int getMaxNewOrdersPerWindow() {
+        return maxNewOrdersPerWindow;
+    }
+
+    /**
+     * Get how many requests were received on an endpoint.
+     *
+     * @param endpoint
+     *            the endpoint (e.g. "new-order", "finalize", "authz")
+     * @return the amount
+     */
+    public long getRequestCount(String endpoint) {
+        AtomicLong count = requestCountByEndpoint.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    public Map<String, Long> getRequestCountByEndpoint() {
+        Map<String, Long> counts = new TreeMap<>();
+        requestCountByEndpoint.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+        return counts;
+    }
+
+    public double getServerErrorRate() {
+        return serverErrorRate;
+    }
+
+    public long getValidationDelayMs() {
+        return validationDelayMs;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String[] parts = path.substring(1).split("/");
+        String endpoint = parts.length == 3 ? parts[2] : parts[0];
+        requestCountByEndpoint.computeIfAbsent(endpoint, it -> new AtomicLong()).incrementAndGet();
+
+        try {
+            if (latencyMs > 0) {
+                Thread.sleep(latencyMs);
+            }
+
+            boolean isPost = "POST".equals(exchange.getRequestMethod());
+            if (serverErrorRate > 0 && !"directory".equals(endpoint) && !"new-nonce".equals(endpoint) && ThreadLocalRandom.current().nextDouble() < serverErrorRate) {
+                throw new AcmeProblem(500, "serverInternal", "Injected server error");
+            }
+
+            // Unsigned
+            switch (endpoint) {
+            case "directory":
+                sendJson(exchange, 200, directoryJson(), null);
+                return;
+            case "new-nonce":
+                send(exchange, "HEAD".equals(exchange.getRequestMethod()) ? 200 : 204, null, null, null);
+                return;
+            case "cert":
+                if (!isPost) {
+                    String pem = certificatePemById.get(parts[1]);
+                    if (pem == null) {
+                        throw new AcmeProblem(404, "malformed", "Unknown certificate");
+                    }
+                    send(exchange, 200, CONTENT_TYPE_PEM_CHAIN, pem.getBytes(StandardCharsets.UTF_8), null);
+                    return;
+                }
+                break;
+            case "order":
+                if (!isPost) {
+                    sendJson(exchange, 200, orderJson(refresh(getOrder(parts[1]))), null);
+                    return;
+                }
+                break;
+            case "authz":
+                if (!isPost) {
+                    sendJson(exchange, 200, authorizationJson(refresh(getAuthorization(parts[1]))), null);
+                    return;
+                }
+                break;
+            case "chall":
+                if (!isPost) {
+                    sendJson(exchange, 200, challengeJson(refresh(getAuthorizationByChallenge(parts[1]))), null);
+                    return;
+                }
+                break;
+            default:
+            }
+
+            if (!isPost) {
+                throw new AcmeProblem(405, "malformed", "Method not allowed");
+            }
+
+            // Signed
+            JsonWebSignature jws = verify(exchange);
+            String payload = jws.getPayload();
+            Map<String, Object> claims = payload.isEmpty() ? Collections.emptyMap() : JsonUtil.parseJson(payload);
+            String kid = jws.getKeyIdHeaderValue();
+            AccountState account = kid == null ? null : accountByUrl.get(kid);
+            switch (endpoint) {
+            case "new-account":
+                handleNewAccount(exchange, jws, claims);
+                return;
+            case "new-order":
+                handleNewOrder(exchange, account, claims);
+                return;
+            case "acct":
+                sendJson(exchange, 200, accountJson(account), null);
+                return;
+            case "order":
+                sendJson(exchange, 200, orderJson(refresh(getOrder(parts[1]))), null);
+                return;
+            case "finalize":
+                handleFinalize(exchange, account, getOrder(parts[1]), claims);
+                return;
+            case "authz":
+                sendJson(exchange, 200, authorizationJson(refresh(getAuthorization(parts[1]))), null);
+                return;
+            case "chall":
+                handleChallengeTrigger(exchange, account, getAuthorizationByChallenge(parts[1]), payload.isEmpty());
+                return;
+            default:
+                throw new AcmeProblem(404, "malformed", "Unknown endpoint " + path);
+            }
+
+        } catch (AcmeProblem e) {
+            Map<String, String> headers = new TreeMap<>();
+            if (e.retryAfterSeconds > 0) {
+                headers.put("Retry-After", String.valueOf(e.retryAfterSeconds));
+            }
+            send(exchange, e.httpStatus, CONTENT_TYPE_PROBLEM, JsonUtil.toJson(problemJson(e.type, e.getMessage())).getBytes(StandardCharsets.UTF_8), headers);
+        } catch (Exception e) {
+            LOGGER.error("Unexpected error on {}", path, e);
+            send(exchange, 500, CONTENT_TYPE_PROBLEM, JsonUtil.toJson(problemJson("serverInternal", e.getMessage())).getBytes(StandardCharsets.UTF_8), null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Map<String, Object> accountJson(AccountState account) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("status", STATUS_VALID);
+        json.put("contact", account.contact);
+        json.put("termsOfServiceAgreed", true);
+        json.put("orders", account.url + "/orders");
+        return json;
+    }
+
+    private Map<String, Object> challengeJson(AuthorizationState authorization) {
+        @SuppressWarnings("unchecked")
+        List<Object> challenges = (List<Object>) authorizationJson(authorization).get("challenges");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> challenge = (Map<String, Object>) challenges.get(0);
+        return challenge;
+    }
+
+    private PublicJsonWebKey getJwk(JsonWebSignature jws) throws JoseException {
+        if (jws.getHeaders().getObjectHeaderValue("jwk") == null) {
+            return null;
+        }
+        return jws.getHeaders().getPublicJwkHeaderValue("jwk", null);
+    }
+
+    private AuthorizationState getAuthorization(String id) {
+        AuthorizationState authorization = authorizationById.get(id);
+        if (authorization == null) {
+            throw new AcmeProblem(404, "malformed", "Unknown authorization");
+        }
+        return authorization;
+    }
+
+    private AuthorizationState getAuthorizationByChallenge(String id) {
+        AuthorizationState authorization = authorizationByChallengeId.get(id);
+        if (authorization == null) {
+            throw new AcmeProblem(404, "malformed", "Unknown challenge");
+        }
+        return authorization;
+    }
+
+    private OrderState getOrder(String id) {
+        OrderState order = orderById.get(id);
+        if (order == null) {
+            throw new AcmeProblem(404, "malformed", "Unknown order");
+        }
+        return order;
+    }
+
+    private void handleChallengeTrigger(HttpExchange exchange, AccountState account, AuthorizationState authorization, boolean postAsGet) throws IOException {
+        if (account != authorization.account) {
+            throw new AcmeProblem(403, "unauthorized", "Not your challenge");
+        }
+        if (!postAsGet) {
+            synchronized (authorization) {
+                if (STATUS_PENDING.equals(authorization.challengeStatus)) {
+                    authorization.challengeStatus = STATUS_PROCESSING;
+                    authorization.triggeredAt = System.currentTimeMillis();
+                }
+            }
+        }
+        sendJson(exchange, 200, challengeJson(refresh(authorization)), null);
+    }
+
+    private void handleFinalize(HttpExchange exchange, AccountState account, OrderState order, Map<String, Object> claims) throws IOException {
+        if (account != order.account) {
+            throw new AcmeProblem(403, "unauthorized", "Not your order");
+        }
+
+        // Read the CSR
+        Set<String> csrDomains = new TreeSet<>();
+        PublicKey csrPublicKey;
+        try {
+            JcaPKCS10CertificationRequest csr = new JcaPKCS10CertificationRequest(AcmeUtils.base64UrlDecode((String) claims.get("csr"))).setProvider(BOUNCY_CASTLE_PROVIDER);
+            csrPublicKey = csr.getPublicKey();
+            for (Attribute attribute : csr.getAttributes(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest)) {
+                GeneralNames generalNames = GeneralNames.fromExtensions(Extensions.getInstance(attribute.getAttrValues().getObjectAt(0)), Extension.subjectAlternativeName);
+                if (generalNames != null) {
+                    for (GeneralName generalName : generalNames.getNames()) {
+                        csrDomains.add(generalName.getName().toString().toLowerCase());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new AcmeProblem(400, "badCSR", "Could not read the CSR: " + e.getMessage());
+        }
+        if (!csrDomains.equals(new TreeSet<>(order.domains))) {
+            throw new AcmeProblem(400, "badCSR", "The CSR domains " + csrDomains + " are not the order domains " + order.domains);
+        }
+
+        refresh(order);
+        synchronized (order) {
+            if (!STATUS_READY.equals(order.status)) {
+                throw new AcmeProblem(403, "orderNotReady", "The order is " + order.status);
+            }
+            order.status = STATUS_PROCESSING;
+            order.csrPublicKey = csrPublicKey;
+            order.finalizedAt = System.currentTimeMillis();
+        }
+        sendJson(exchange, 200, orderJson(refresh(order)), null);
+    }
+
+    private void handleNewAccount(HttpExchange exchange, JsonWebSignature jws, Map<String, Object> claims) throws Exception {
+        PublicJsonWebKey jwk = getJwk(jws);
+        if (jwk == null) {
+            throw new AcmeProblem(400, "malformed", "A new account request must have a jwk");
+        }
+        String thumbprint = jwk.calculateBase64urlEncodedThumbprint("SHA-256");
+
+        AccountState existing = accountByThumbprint.get(thumbprint);
+        if (existing != null) {
+            sendJson(exchange, 200, accountJson(existing), existing.url);
+            return;
+        }
+        if (Boolean.TRUE.equals(claims.get("onlyReturnExisting"))) {
+            throw new AcmeProblem(400, "accountDoesNotExist", "No account for that key");
+        }
+
+        AccountState account = new AccountState();
+        account.url = baseUrl + "/acct/" + nextId.incrementAndGet();
+        account.publicKey = jwk.getPublicKey();
+        account.thumbprint = thumbprint;
+        @SuppressWarnings("unchecked")
+        List<Object> contact = (List<Object>) claims.get("contact");
+        account.contact = contact;
+        AccountState winner = accountByThumbprint.putIfAbsent(thumbprint, account);
+        if (winner != null) {
+            sendJson(exchange, 200, accountJson(winner), winner.url);
+            return;
+        }
+        accountByUrl.put(account.url, account);
+        sendJson(exchange, 201, accountJson(account), account.url);
+    }
+
+    private void handleNewOrder(HttpExchange exchange, AccountState account, Map<String, Object> claims) throws IOException {
+        if (account == null) {
+            throw new AcmeProblem(400, "accountDoesNotExist", "Unknown account");
+        }
+        checkRateLimit();
+
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> identifiers = (List<Map<String, Object>>) claims.get("identifiers");
+        if (identifiers == null || identifiers.isEmpty()) {
+            throw new AcmeProblem(400, "malformed", "No identifiers");
+        }
+
+        OrderState order = new OrderState();
+        order.id = String.valueOf(nextId.incrementAndGet());
+        order.url = baseUrl + "/order/" + order.id;
+        order.account = account;
+        order.domains = new ArrayList<>();
+        for (Map<String, Object> identifier : identifiers) {
+            String domain = ((String) identifier.get("value")).toLowerCase();
+            order.domains.add(domain);
+
+            boolean wildcard = domain.startsWith("*.");
+            String authorizationDomain = wildcard ? domain.substring(2) : domain;
+            AuthorizationState authorization = reuseValidAuthorizations ? account.validAuthorizationByDomain.get(domain) : null;
+            if (authorization == null) {
+                authorization = new AuthorizationState();
+                authorization.id = String.valueOf(nextId.incrementAndGet());
+                authorization.url = baseUrl + "/authz/" + authorization.id;
+                authorization.account = account;
+                authorization.domain = authorizationDomain;
+                authorization.wildcard = wildcard;
+                authorization.challengeId = String.valueOf(nextId.incrementAndGet());
+                authorization.challengeUrl = baseUrl + "/chall/" + authorization.challengeId;
+                authorization.token = randomBase64Url(32);
+                authorizationById.put(authorization.id, authorization);
+                authorizationByChallengeId.put(authorization.challengeId, authorization);
+            }
+            order.authorizations.add(authorization);
+        }
+        orderById.put(order.id, order);
+
+        sendJson(exchange, 201, orderJson(refresh(order)), order.url);
+    }
+
+    private Map<String, Object> identifierJson(String domain) {
+        Map<String, Object> identifier = new LinkedHashMap<>();
+        identifier.put("type", "dns");
+        identifier.put("value", domain);
+        return identifier;
+    }
+
+    private void issue(OrderState order) {
+        try {
+            long now = System.currentTimeMillis();
+            List<GeneralName> generalNames = new ArrayList<>();
+            for (String domain : order.domains) {
+                generalNames.add(new GeneralName(GeneralName.dNSName, domain));
+            }
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(caCertificate, BigInteger.valueOf(nextId.incrementAndGet()), new Date(now - 60000),
+                    new Date(now + TimeUnit.DAYS.toMillis(certificateValidityDays)), new X500Name("CN=" + order.domains.get(0)), order.csrPublicKey);
+            builder.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(generalNames.toArray(new GeneralName[generalNames.size()])));
+            X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(caKeyPair.getPrivate())));
+
+            String id = String.valueOf(nextId.incrementAndGet());
+            certificatePemById.put(id, toPem(certificate) + caCertificatePem);
+            order.certificateUrl = baseUrl + "/cert/" + id;
+            order.status = STATUS_VALID;
+            issuedCertificates.incrementAndGet();
+        } catch (Exception e) {
+            throw new LetsencryptException("Could not issue the certificate", e);
+        }
+    }
+
+    private String newNonce() {
+        String nonce = randomBase64Url(16);
+        nonces.add(nonce);
+        return nonce;
+    }
+
+    private Map<String, Object> orderJson(OrderState order) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("status", order.status);
+        json.put("expires", Instant.now().plus(7, ChronoUnit.DAYS).toString());
+        List<Object> identifiers = new ArrayList<>();
+        order.domains.forEach(domain -> identifiers.add(identifierJson(domain)));
+        json.put("identifiers", identifiers);
+        List<Object> authorizations = new ArrayList<>();
+        order.authorizations.forEach(authorization -> authorizations.add(authorization.url));
+        json.put("authorizations", authorizations);
+        json.put("finalize", order.url + "/finalize");
+        if (order.certificateUrl != null) {
+            json.put("certificate", order.certificateUrl);
+        }
+        if (order.error != null) {
+            json.put("error", problemJson("unauthorized", order.error));
+        }
+        return json;
+    }
+
+    private Map<String, Object> problemJson(String type, String detail) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("type", PROBLEM_PREFIX + type);
+        json.put("detail", detail);
+        return json;
+    }
+
+    private String randomBase64Url(int byteCount) {
+        byte[] bytes = new byte[byteCount];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return AcmeUtils.base64UrlEncode(bytes);
+    }
+
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private AuthorizationState refresh(AuthorizationState authorization) {
+        synchronized (authorization) {
+            if (STATUS_PROCESSING.equals(authorization.challengeStatus) && System.currentTimeMillis() >= authorization.triggeredAt + validationDelayMs) {
+                String error = validate(authorization);
+                if (error == null) {
+                    authorization.challengeStatus = STATUS_VALID;
+                    authorization.status = STATUS_VALID;
+                    authorization.account.validAuthorizationByDomain.put(authorization.wildcard ? "*." + authorization.domain : authorization.domain, authorization);
+                } else {
+                    authorization.challengeStatus = STATUS_INVALID;
+                    authorization.status = STATUS_INVALID;
+                    authorization.error = error;
+                }
+            }
+        }
+        return authorization;
+    }
+
+    private OrderState refresh(OrderState order) {
+        synchronized (order) {
+            if (STATUS_PENDING.equals(order.status)) {
+                boolean allValid = true;
+                for (AuthorizationState authorization : order.authorizations) {
+                    refresh(authorization);
+                    if (STATUS_INVALID.equals(authorization.status)) {
+                        order.status = STATUS_INVALID;
+                        order.error = "The authorization for " + authorization.domain + " failed: " + authorization.error;
+                        return order;
+                    }
+                    allValid &= STATUS_VALID.equals(authorization.status);
+                }
+                if (allValid) {
+                    order.status = STATUS_READY;
+                }
+            }
+            if (STATUS_PROCESSING.equals(order.status) && System.currentTimeMillis() >= order.finalizedAt + issuanceDelayMs) {
+                issue(order);
+            }
+        }
+        return order;
+    }
+
+    private void send(HttpExchange exchange, int httpStatus, String contentType, byte[] body, Map<String, String> headers) throws IOException {
+        exchange.getResponseHeaders().set("Replay-Nonce", newNonce());
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.getResponseHeaders().add("Link", "<" + getDirectoryUrl() + ">;rel=\"index\"");
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        if (headers != null) {
+            headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+        }
+        if (body == null || body.length == 0) {
+            exchange.sendResponseHeaders(httpStatus, -1);
+        } else {
+            exchange.sendResponseHeaders(httpStatus, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, int httpStatus, Map<String, Object> json, String location) throws IOException {
+        Map<String, String> headers = null;
+        if (location != null) {
+            headers = Collections.singletonMap("Location", location);
+        }
+        send(exchange, httpStatus, CONTENT_TYPE_JSON, JsonUtil.toJson(json).getBytes(StandardCharsets.UTF_8), headers);
+    }
+
+    /**
+     * The probability that a triggered challenge fails even if the TXT record is right.
+     *
+     * @param challengeFailureRate
+     *            between 0 and 1
+     * @return this
+     */
+    public LocalAcmeServer setChallengeFailureRate(double challengeFailureRate) {
+        this.challengeFailureRate = challengeFailureRate;
+        return this;
+    }
+
+    /**
+     * Check the TXT records with that resolver when validating the challenges. When null, the challenges are valid without checking.
+     *
+     * @param dnsResolver
+     *            the resolver
+     * @return this
+     */
+    public LocalAcmeServer setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+        return this;
+    }
+
+    public LocalAcmeServer setIssuanceDelayMs(long issuanceDelayMs) {
+        this.issuanceDelayMs = issuanceDelayMs;
+        return this;
+    }
+
+    public LocalAcmeServer setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+        return this;
+    }
+
+    /**
+     * Limit the amount of new orders per window. When reached, the server answers 429 with a Retry-After header.
+     *
+     * @param maxNewOrdersPerWindow
+     *            the maximum or 0 for no limit
+     * @param rateLimitWindowMs
+     *            the sliding window
+     * @return this
+     */
+    public LocalAcmeServer setRateLimit(int maxNewOrdersPerWindow, long rateLimitWindowMs) {
+        this.maxNewOrdersPerWindow = maxNewOrdersPerWindow;
+        this.rateLimitWindowMs = rateLimitWindowMs;
+        return this;
+    }
+
+    public LocalAcmeServer setReuseValidAuthorizations(boolean reuseValidAuthorizations) {
+        this.reuseValidAuthorizations = reuseValidAuthorizations;
+        return this;
+    }
+
+    /**
+     * The probability that any request (except the directory and the nonces) fails with a 500.
+     *
+     * @param serverErrorRate
+     *            between 0 and 1
+     * @return this
+     */
+    public LocalAcmeServer setServerErrorRate(double serverErrorRate) {
+        this.serverErrorRate = serverErrorRate;
+        return this;
+    }
+
+    public LocalAcmeServer setValidationDelayMs(long validationDelayMs) {
+        this.validationDelayMs = validationDelayMs;
+        return this;
+    }
+
+    private String toPem(X509Certificate certificate) throws IOException {
+        StringWriter pem = new StringWriter();
+        try (JcaPEMWriter pemWriter = new JcaPEMWriter(pem)) {
+            pemWriter.writeObject(certificate);
+        }
+        return pem.toString();
+    }
+
+    /**
+     * Tells why the challenge is invalid.
+     *
+     * @param authorization
+     *            the authorization
+     * @return the error or null if valid
+     */
+    private String validate(AuthorizationState authorization) {
+        if (failingDomains.contains(authorization.domain)) {
+            return "Injected failure for " + authorization.domain;
+        }
+        if (challengeFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < challengeFailureRate) {
+            return "Injected random failure";
+        }
+        if (dnsResolver == null) {
+            return null;
+        }
+
+        String keyAuthorization = authorization.token + "." + authorization.account.thumbprint;
+        String digest = AcmeUtils.base64UrlEncode(AcmeUtils.sha256hash(keyAuthorization));
+        String name = "_acme-challenge." + authorization.domain;
+        try {
+            List<String> nameservers = dnsResolver.findAuthoritativeNameservers(name);
+            if (nameservers.isEmpty()) {
+                return "No name server for " + name;
+            }
+            Set<String> txts = dnsResolver.findTxt(nameservers.get(0), name);
+            if (!txts.contains(digest)) {
+                return "Incorrect TXT record found at " + name + ": " + txts;
+            }
+        } catch (Exception e) {
+            return "DNS problem for " + name + ": " + e.getMessage();
+        }
+        return null;
+    }
+
+    private JsonWebSignature verify(HttpExchange exchange) throws Exception {
+        Map<String, Object> body;
+        try {
+            body = JsonUtil.parseJson(new String(readBody(exchange), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new AcmeProblem(400, "malformed", "The body is not a flattened JWS");
+        }
+
+        JsonWebSignature jws = new JsonWebSignature();
+        jws.setCompactSerialization(body.get("protected") + "." + body.get("payload") + "." + body.get("signature"));
+
+        // Nonce
+        String nonce = jws.getHeader("nonce");
+        if (nonce == null || !nonces.remove(nonce)) {
+            badNonces.incrementAndGet();
+            throw new AcmeProblem(400, "badNonce", "Unknown or already used nonce");
+        }
+
+        // Url
+        String expectedUrl = baseUrl + exchange.getRequestURI().getPath();
+        if (!expectedUrl.equals(jws.getHeader("url"))) {
+            throw new AcmeProblem(400, "malformed", "The url header " + jws.getHeader("url") + " is not " + expectedUrl);
+        }
+
+        // Key
+        PublicJsonWebKey jwk = getJwk(jws);
+        String kid = jws.getKeyIdHeaderValue();
+        if (jwk != null) {
+            jws.setKey(jwk.getPublicKey());
+        } else if (kid != null) {
+            AccountState account = accountByUrl.get(kid);
+            if (account == null) {
+                throw new AcmeProblem(400, "accountDoesNotExist", "Unknown account " + kid);
+            }
+            jws.setKey(account.publicKey);
+        } else {
+            throw new AcmeProblem(400, "malformed", "There must be a jwk or a kid");
+        }
+
+        if (!jws.verifySignature()) {
+            throw new AcmeProblem(400, "malformed", "Invalid signature");
+        }
+        return jws;
+    }
+
+}
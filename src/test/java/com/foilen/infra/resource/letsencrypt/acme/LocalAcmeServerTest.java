@@ -0,0 +1,237 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.shredzone.acme4j.challenge.Dns01Challenge;
+import org.shredzone.acme4j.util.CSRBuilder;
+
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
+import com.foilen.infra.resource.letsencrypt.dns.StubDnsResolver;
+import com.foilen.infra.resource.letsencrypt.plugin.LetsencryptConfig;
+
+public class LocalAcmeServerTest {
+
+    private static final PollingStrategy FAST_POLLING = new ExponentialBackoffPollingStrategy(10, 50, 2.0, 0, 5000);
+
+    private LocalAcmeServer server;
+    private StubDnsResolver dnsResolver;
+    private AcmeServiceImpl acmeService;
+
+    @After
+    public void after() {
+        server.close();
+    }
+
+    @Before
+    public void before() throws Exception {
+        dnsResolver = new StubDnsResolver();
+        server = new LocalAcmeServer() //
+                .setDnsResolver(dnsResolver) //
+                .setValidationDelayMs(20) //
+                .setIssuanceDelayMs(20);
+
+        LetsencryptConfig config = new LetsencryptConfig();
+        config.setContactEmail("admin@example.com");
+        config.setAccountKeypairPem(CertificateKeys.generate(KeyType.EC_P256).toPem());
+        acmeService = new AcmeServiceImpl(config, server.getDirectoryUrl()) //
+                .setChallengePollingStrategy(FAST_POLLING) //
+                .setOrderPollingStrategy(FAST_POLLING);
+    }
+
+    private CertificateChain issue(List<String> domains) throws Exception {
+        OrderAndChallenges orderAndChallenges = acmeService.challengeInit(domains);
+        for (Entry<String, Dns01Challenge> entry : orderAndChallenges.getChallengeByDomain().entrySet()) {
+            dnsResolver.publish("_acme-challenge." + entry.getKey(), entry.getValue().getDigest());
+            acmeService.challengeComplete(entry.getValue());
+        }
+
+        CertificateKeys keys = CertificateKeys.generate(KeyType.EC_P256);
+        CSRBuilder csrb = new CSRBuilder();
+        csrb.addDomains(domains);
+        csrb.sign(keys.getKeyPair());
+        return acmeService.requestCertificate(orderAndChallenges.getOrder(), csrb.getEncoded());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+
+        // Many renewals that wait at the same time
+        AsyncAcmeService asyncAcmeService = acmeService.async();
+        List<CompletableFuture<CertificateChain>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            List<String> domains = Arrays.asList("d" + i + ".example.com");
+            futures.add(asyncAcmeService.challengeInit(domains) //
+                    .thenCompose(orderAndChallenges -> {
+                        Dns01Challenge challenge = orderAndChallenges.getChallengeByDomain().get(domains.get(0));
+                        dnsResolver.publish("_acme-challenge." + domains.get(0), challenge.getDigest());
+                        return asyncAcmeService.challengeComplete(challenge).thenApply(it -> orderAndChallenges);
+                    }) //
+                    .thenCompose(orderAndChallenges -> {
+                        CertificateKeys keys = CertificateKeys.generate(KeyType.EC_P256);
+                        CSRBuilder csrb = new CSRBuilder();
+                        csrb.addDomains(domains);
+                        try {
+                            csrb.sign(keys.getKeyPair());
+                            return asyncAcmeService.requestCertificate(orderAndChallenges.getOrder(), csrb.getEncoded());
+                        } catch (IOException e) {
+                            throw new LetsencryptException("Could not create the CSR", e);
+                        }
+                    }));
+        }
+
+        for (CompletableFuture<CertificateChain> future : futures) {
+            AsyncAcmeServiceImpl.join(future).getCertificate().verify(server.getCaCertificate().getPublicKey());
+        }
+        Assert.assertEquals(10, server.getIssuedCertificates());
+
+        // Failure
+        server.addFailingDomain("bad.example.com");
+        OrderAndChallenges orderAndChallenges = AsyncAcmeServiceImpl.join(asyncAcmeService.challengeInit(Arrays.asList("bad.example.com")));
+        Dns01Challenge challenge = orderAndChallenges.getChallengeByDomain().get("bad.example.com");
+        dnsResolver.publish("_acme-challenge.bad.example.com", challenge.getDigest());
+        try {
+            AsyncAcmeServiceImpl.join(asyncAcmeService.challengeComplete(challenge));
+            Assert.fail("Expecting an exception");
+        } catch (LetsencryptException e) {
+            Assert.assertEquals("The challenge failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        CertificateChain.clearCache();
+
+        CertificateChain first = issue(Arrays.asList("example.com"));
+        CertificateChain second = issue(Arrays.asList("www.example.com"));
+
+        // The intermediates are the ones returned by the server and they are shared
+        Assert.assertEquals(Arrays.asList(server.getCaCertificate()), first.getIntermediates());
+        Assert.assertSame(first.getIntermediates().get(0), second.getIntermediates().get(0));
+        Assert.assertSame(first.getIntermediatesPem(), second.getIntermediatesPem());
+        Assert.assertTrue(first.getIntermediatesPem().startsWith("-----BEGIN CERTIFICATE-----"));
+        Assert.assertEquals(1, CertificateChain.getCachedIntermediatesCount());
+        Assert.assertNotEquals(first.getCertificate(), second.getCertificate());
+    }
+
+    @Test
+    public void testConcurrentSignedRequests() throws Exception {
+
+        // Many threads that sign at the same time with the same service
+        int threads = 10;
+        int ordersPerThread = 5;
+        CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                int thread = t;
+                futures.add(executorService.submit(() -> {
+                    startLatch.await();
+                    for (int i = 0; i < ordersPerThread; ++i) {
+                        acmeService.challengeInit(Arrays.asList("t" + thread + "-d" + i + ".example.com"));
+                    }
+                    return null;
+                }));
+            }
+            startLatch.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        Assert.assertEquals(threads * ordersPerThread, server.getRequestCount("new-order"));
+        Assert.assertEquals(0, server.getBadNonces());
+    }
+
+    @Test
+    public void testFailingDomain() {
+        server.addFailingDomain("bad.example.com");
+
+        OrderAndChallenges orderAndChallenges = acmeService.challengeInit(Arrays.asList("bad.example.com"));
+        Dns01Challenge challenge = orderAndChallenges.getChallengeByDomain().get("bad.example.com");
+        dnsResolver.publish("_acme-challenge.bad.example.com", challenge.getDigest());
+        try {
+            acmeService.challengeComplete(challenge);
+            Assert.fail("Expecting an exception");
+        } catch (LetsencryptException e) {
+            Assert.assertEquals("The challenge failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testIssue() throws Exception {
+        X509Certificate certificate = issue(Arrays.asList("example.com", "www.example.com")).getCertificate();
+
+        certificate.verify(server.getCaCertificate().getPublicKey());
+        TreeSet<String> sans = certificate.getSubjectAlternativeNames().stream() //
+                .map(it -> (String) it.get(1)) //
+                .collect(Collectors.toCollection(TreeSet::new));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("example.com", "www.example.com")), sans);
+        Assert.assertEquals(1, server.getIssuedCertificates());
+        Assert.assertEquals(1, server.getRequestCount("new-order"));
+        Assert.assertEquals(1, server.getRequestCount("finalize"));
+    }
+
+    @Test
+    public void testMissingTxtRecord() {
+        OrderAndChallenges orderAndChallenges = acmeService.challengeInit(Arrays.asList("example.com"));
+        try {
+            acmeService.challengeComplete(orderAndChallenges.getChallengeByDomain().get("example.com"));
+            Assert.fail("Expecting an exception");
+        } catch (LetsencryptException e) {
+            Assert.assertEquals("The challenge failed", e.getMessage());
+        }
+        Assert.assertTrue(dnsResolver.getQueries() > 0);
+    }
+
+    @Test
+    public void testRateLimit() {
+        server.setRateLimit(1, 60000);
+
+        acmeService.challengeInit(Arrays.asList("example.com"));
+        try {
+            acmeService.challengeInit(Arrays.asList("example.com"));
+            Assert.fail("Expecting an exception");
+        } catch (LetsencryptException e) {
+            Assert.assertEquals("Could not ask for domains [example.com]", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReuseValidAuthorizations() throws Exception {
+        issue(Arrays.asList("example.com"));
+
+        OrderAndChallenges orderAndChallenges = acmeService.challengeInit(Arrays.asList("example.com", "www.example.com"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("example.com")), orderAndChallenges.getAlreadyValidDomains());
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("www.example.com")), orderAndChallenges.getChallengeByDomain().keySet());
+    }
+
+}
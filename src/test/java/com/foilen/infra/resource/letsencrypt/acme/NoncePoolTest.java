@@ -0,0 +1,44 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.acme;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NoncePoolTest {
+
+    @Test
+    public void testCapacity() {
+        NoncePool noncePool = new NoncePool(2);
+        noncePool.offer("n1");
+        noncePool.offer("n2");
+        noncePool.offer("n3");
+        Assert.assertEquals(2, noncePool.size());
+
+        // The oldest was dropped
+        Assert.assertEquals("n3", noncePool.take());
+        Assert.assertEquals("n2", noncePool.take());
+        Assert.assertNull(noncePool.take());
+    }
+
+    @Test
+    public void testMetrics() {
+        NoncePool noncePool = new NoncePool();
+        Assert.assertNull(noncePool.take());
+        noncePool.offer(null);
+        noncePool.offer("n1");
+        Assert.assertEquals("n1", noncePool.take());
+
+        Assert.assertEquals(1, noncePool.getHits());
+        Assert.assertEquals(1, noncePool.getMisses());
+        Assert.assertEquals(1, noncePool.getOffered());
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.crypt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.foilen.infra.resource.letsencrypt.metrics.InMemoryMetricsRegistry;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+import com.foilen.infra.resource.letsencrypt.metrics.MetricsRegistry;
+import com.foilen.smalltools.crypt.spongycastle.asymmetric.AsymmetricKeys;
+
+public class AsymmetricKeysPoolTest {
+
+    /**
+     * Counts the generations and does not do the slow RSA work.
+     */
+    private static class CountingAsymmetricKeysPool extends AsymmetricKeysPool {
+
+        private final AtomicInteger generated = new AtomicInteger();
+
+        public CountingAsymmetricKeysPool(int poolSize) {
+            super(ALGORITHM_RSA, DEFAULT_KEY_SIZE, poolSize);
+        }
+
+        @Override
+        protected AsymmetricKeys generate() {
+            generated.incrementAndGet();
+            return new AsymmetricKeys();
+        }
+
+    }
+
+    private MetricsRegistry previousRegistry;
+    private InMemoryMetricsRegistry registry = new InMemoryMetricsRegistry();
+
+    @After
+    public void after() {
+        Metrics.setRegistry(previousRegistry);
+    }
+
+    @Before
+    public void before() {
+        previousRegistry = Metrics.getRegistry();
+        Metrics.setRegistry(registry);
+    }
+
+    @Test(timeout = 30000)
+    public void testTakeAndRefill() throws Exception {
+        CountingAsymmetricKeysPool pool = new CountingAsymmetricKeysPool(2);
+        pool.refill();
+        waitAvailable(pool, 2);
+        Assert.assertEquals(2, pool.generated.get());
+
+        // Taken from the pool and refilled in the background
+        Assert.assertNotNull(pool.take());
+        waitAvailable(pool, 2);
+        Assert.assertEquals(3, pool.generated.get());
+
+        Assert.assertEquals(1, pool.getHits());
+        Assert.assertEquals(0, pool.getMisses());
+        Assert.assertEquals(1, registry.getCounter(Metrics.KEYS_POOL_HITS));
+        Assert.assertEquals(0, registry.getCounter(Metrics.KEYS_POOL_MISSES));
+    }
+
+    @Test(timeout = 30000)
+    public void testTakeWhenEmpty() {
+        CountingAsymmetricKeysPool pool = new CountingAsymmetricKeysPool(0);
+
+        // Generated inline and nothing is kept
+        Assert.assertNotNull(pool.take());
+        Assert.assertEquals(1, pool.generated.get());
+        Assert.assertEquals(0, pool.getAvailable());
+
+        Assert.assertEquals(0, pool.getHits());
+        Assert.assertEquals(1, pool.getMisses());
+        Assert.assertEquals(0, registry.getCounter(Metrics.KEYS_POOL_HITS));
+        Assert.assertEquals(1, registry.getCounter(Metrics.KEYS_POOL_MISSES));
+    }
+
+    private void waitAvailable(AsymmetricKeysPool pool, int expected) throws InterruptedException {
+        while (pool.getAvailable() < expected) {
+            Thread.sleep(10);
+        }
+    }
+
+}
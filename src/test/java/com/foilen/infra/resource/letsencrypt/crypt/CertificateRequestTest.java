@@ -0,0 +1,46 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.crypt;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CertificateRequestTest {
+
+    @Test
+    public void testPrepareAsync() throws Exception {
+        CertificateRequest certificateRequest = CertificateRequest.prepareAsync(KeyType.EC_P256, Arrays.asList("example.com", "www.example.com")).get();
+        Assert.assertEquals(KeyType.EC_P256, certificateRequest.getKeys().getKeyType());
+
+        // Signed by the keys
+        PKCS10CertificationRequest csr = new PKCS10CertificationRequest(certificateRequest.getEncoded());
+        Assert.assertTrue(csr.isSignatureValid(new JcaContentVerifierProviderBuilder().build(certificateRequest.getKeys().getKeyPair().getPublic())));
+
+        // For all the domains
+        Extensions extensions = Extensions.getInstance(csr.getAttributes(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest)[0].getAttrValues().getObjectAt(0));
+        Set<String> domainNames = new TreeSet<>();
+        for (GeneralName generalName : GeneralNames.fromExtensions(extensions, Extension.subjectAlternativeName).getNames()) {
+            domainNames.add(generalName.getName().toString());
+        }
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("example.com", "www.example.com")), domainNames);
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.dns;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.foilen.infra.resource.letsencrypt.dns.DnsPropagationVerifier.Visibility;
+
+public class DnsPropagationVerifierTest {
+
+    private FakeDnsServer fakeDnsServer;
+    private DnsPropagationVerifier dnsPropagationVerifier;
+
+    @Before
+    public void init() throws Exception {
+        fakeDnsServer = new FakeDnsServer();
+        fakeDnsServer.addNs("example.com", "127.0.0.1");
+        fakeDnsServer.addTxt("_acme-challenge.example.com", "digest-root");
+        fakeDnsServer.addTxt("_acme-challenge.www.example.com", "digest-www");
+        fakeDnsServer.addTxt("_acme-challenge.www.example.com", "digest-www-other");
+
+        dnsPropagationVerifier = new DnsPropagationVerifier(new JndiDnsResolver("127.0.0.1", fakeDnsServer.getPort()).setTimeoutMs(500));
+    }
+
+    @After
+    public void stop() {
+        fakeDnsServer.close();
+    }
+
+    @Test
+    public void testCheck() {
+
+        Map<String, String> digestByDomain = new HashMap<>();
+        digestByDomain.put("example.com", "digest-root");
+        digestByDomain.put("*.example.com", "digest-wrong");
+        digestByDomain.put("www.example.com", "digest-www-other");
+        digestByDomain.put("mail.example.com", "digest-mail");
+        digestByDomain.put("www.example.org", "digest-org");
+
+        Map<String, Visibility> visibilityByDomain = dnsPropagationVerifier.check(digestByDomain);
+
+        Assert.assertEquals(Visibility.VISIBLE, visibilityByDomain.get("example.com"));
+        Assert.assertEquals(Visibility.NOT_VISIBLE, visibilityByDomain.get("*.example.com"));
+        Assert.assertEquals(Visibility.VISIBLE, visibilityByDomain.get("www.example.com"));
+        Assert.assertEquals(Visibility.NOT_VISIBLE, visibilityByDomain.get("mail.example.com"));
+        Assert.assertEquals(Visibility.UNKNOWN, visibilityByDomain.get("www.example.org"));
+
+        // Now visible
+        fakeDnsServer.addTxt("_acme-challenge.mail.example.com", "digest-mail");
+        digestByDomain.clear();
+        digestByDomain.put("mail.example.com", "digest-mail");
+        Assert.assertEquals(Visibility.VISIBLE, dnsPropagationVerifier.check(digestByDomain).get("mail.example.com"));
+
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal UDP DNS server on localhost that answers NS and TXT queries from in-memory records.
+ */
+public class FakeDnsServer implements Closeable {
+
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_TXT = 16;
+
+    private DatagramSocket socket;
+    private Thread thread;
+
+    private Map<String, List<String>> nsByName = new ConcurrentHashMap<>();
+    private Map<String, List<String>> txtByName = new ConcurrentHashMap<>();
+
+    private AtomicInteger queryCount = new AtomicInteger();
+
+    public FakeDnsServer() throws IOException {
+        socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        thread = new Thread(this::run, "fake-dns");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public FakeDnsServer addNs(String zone, String nameserver) {
+        nsByName.computeIfAbsent(zone.toLowerCase(), it -> new CopyOnWriteArrayList<>()).add(nameserver);
+        return this;
+    }
+
+    public FakeDnsServer addTxt(String name, String value) {
+        txtByName.computeIfAbsent(name.toLowerCase(), it -> new CopyOnWriteArrayList<>()).add(value);
+        return this;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public int getQueryCount() {
+        return queryCount.get();
+    }
+
+    private byte[] respond(byte[] query, int length) throws IOException {
+
+        // Read the question
+        int position = 12;
+        StringBuilder name = new StringBuilder();
+        while (query[position] != 0) {
+            int labelLength = query[position] & 0xFF;
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(query, position + 1, labelLength, StandardCharsets.US_ASCII));
+            position += labelLength + 1;
+        }
+        ++position;
+        int type = ((query[position] & 0xFF) << 8) | (query[position + 1] & 0xFF);
+        int questionEnd = position + 4;
+
+        String lowerName = name.toString().toLowerCase();
+        List<String> values = new ArrayList<>();
+        boolean nameExists = nsByName.containsKey(lowerName) || txtByName.containsKey(lowerName);
+        if (type == TYPE_NS) {
+            values.addAll(nsByName.getOrDefault(lowerName, new ArrayList<>()));
+        } else if (type == TYPE_TXT) {
+            values.addAll(txtByName.getOrDefault(lowerName, new ArrayList<>()));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(query, 0, 2); // Id
+        out.writeShort(nameExists || values.size() > 0 ? 0x8400 : 0x8403); // Response, authoritative, NXDOMAIN if unknown
+        out.writeShort(1);
+        out.writeShort(values.size());
+        out.writeShort(0);
+        out.writeShort(0);
+        out.write(query, 12, questionEnd - 12);
+        for (String value : values) {
+            out.writeShort(0xC00C); // Pointer to the question's name
+            out.writeShort(type);
+            out.writeShort(1); // IN
+            out.writeInt(60);
+            byte[] rdata;
+            if (type == TYPE_NS) {
+                ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+                for (String label : value.split("\\.")) {
+                    nameBytes.write(label.length());
+                    nameBytes.write(label.getBytes(StandardCharsets.US_ASCII));
+                }
+                nameBytes.write(0);
+                rdata = nameBytes.toByteArray();
+            } else {
+                byte[] text = value.getBytes(StandardCharsets.US_ASCII);
+                rdata = new byte[text.length + 1];
+                rdata[0] = (byte) text.length;
+                System.arraycopy(text, 0, rdata, 1, text.length);
+            }
+            out.writeShort(rdata.length);
+            out.write(rdata);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void run() {
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queryCount.incrementAndGet();
+                byte[] response = respond(packet.getData(), packet.getLength());
+                socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+}
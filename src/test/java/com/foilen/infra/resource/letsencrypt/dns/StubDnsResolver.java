@@ -0,0 +1,126 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.dns;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * An in-memory {@link DnsResolver} with a single name server for all the zones. The TXT records can be published directly (with a propagation delay) or come from a function (e.g. that
+ * looks at the DnsEntries of the system). Some queries can fail randomly.
+ */
+public class StubDnsResolver implements DnsResolver {
+
+    public static final String NAMESERVER = "ns1.stub.local";
+
+    private Map<String, Map<String, Long>> visibleAtByValueByName = new ConcurrentHashMap<>();
+    private Function<String, Set<String>> txtSource;
+
+    private long propagationDelayMs;
+    private double failureRate;
+
+    private AtomicLong queries = new AtomicLong();
+
+    public void clear() {
+        visibleAtByValueByName.clear();
+    }
+
+    @Override
+    public List<String> findAuthoritativeNameservers(String name) {
+        return Collections.singletonList(NAMESERVER);
+    }
+
+    @Override
+    public Set<String> findTxt(String nameserver, String name) {
+        queries.incrementAndGet();
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            throw new DnsException("Injected failure while querying TXT " + name + " on " + nameserver);
+        }
+
+        Set<String> values = new HashSet<>();
+        long now = System.currentTimeMillis();
+        Map<String, Long> visibleAtByValue = visibleAtByValueByName.get(name.toLowerCase());
+        if (visibleAtByValue != null) {
+            visibleAtByValue.forEach((value, visibleAt) -> {
+                if (visibleAt <= now) {
+                    values.add(value);
+                }
+            });
+        }
+        if (txtSource != null) {
+            values.addAll(txtSource.apply(name.toLowerCase()));
+        }
+        return values;
+    }
+
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    public long getPropagationDelayMs() {
+        return propagationDelayMs;
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Publish a TXT record. It will be visible after the propagation delay.
+     *
+     * @param name
+     *            the full name
+     * @param value
+     *            the value
+     * @return this
+     */
+    public StubDnsResolver publish(String name, String value) {
+        visibleAtByValueByName.computeIfAbsent(name.toLowerCase(), it -> new ConcurrentHashMap<>()).put(value, System.currentTimeMillis() + propagationDelayMs);
+        return this;
+    }
+
+    public StubDnsResolver setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    public StubDnsResolver setPropagationDelayMs(long propagationDelayMs) {
+        this.propagationDelayMs = propagationDelayMs;
+        return this;
+    }
+
+    /**
+     * Also take the TXT records from that function.
+     *
+     * @param txtSource
+     *            gives the TXT values of a full name (in lower case)
+     * @return this
+     */
+    public StubDnsResolver setTxtSource(Function<String, Set<String>> txtSource) {
+        this.txtSource = txtSource;
+        return this;
+    }
+
+    public StubDnsResolver unpublish(String name, String value) {
+        Map<String, Long> visibleAtByValue = visibleAtByValueByName.get(name.toLowerCase());
+        if (visibleAtByValue != null) {
+            visibleAtByValue.remove(value);
+        }
+        return this;
+    }
+
+}
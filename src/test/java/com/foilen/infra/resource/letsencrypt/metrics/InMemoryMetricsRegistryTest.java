@@ -0,0 +1,71 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InMemoryMetricsRegistryTest {
+
+    @Test
+    public void testCounters() {
+        InMemoryMetricsRegistry registry = new InMemoryMetricsRegistry();
+        registry.increment("a");
+        registry.increment("a", 4);
+        registry.increment("b");
+
+        Assert.assertEquals(5, registry.getCounter("a"));
+        Assert.assertEquals(1, registry.getCounter("b"));
+        Assert.assertEquals(0, registry.getCounter("c"));
+        Assert.assertEquals("[a, b]", registry.getCounters().keySet().toString());
+    }
+
+    @Test
+    public void testHistogram() {
+        InMemoryMetricsRegistry registry = new InMemoryMetricsRegistry();
+        for (int i = 1; i <= 100; ++i) {
+            registry.record("time", i * 10);
+        }
+
+        Histogram histogram = registry.getHistogram("time");
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(10, histogram.getMin());
+        Assert.assertEquals(1000, histogram.getMax());
+        Assert.assertEquals(505.0, histogram.getMean(), 0.001);
+        Assert.assertEquals(500, histogram.getPercentile(50));
+        Assert.assertEquals(1000, histogram.getPercentile(95));
+        Assert.assertEquals(0, registry.getHistogram("none").getCount());
+    }
+
+    @Test
+    public void testRunQueries() {
+        InMemoryMetricsRegistry registry = new InMemoryMetricsRegistry();
+        MetricsRegistry previous = Metrics.getRegistry();
+        Metrics.setRegistry(registry);
+        try {
+            Metrics.runStart();
+            Metrics.resourceQuery();
+            Metrics.resourceQuery();
+            Metrics.runEnd("run");
+
+            Metrics.runStart();
+            Metrics.runEnd("run");
+
+            Assert.assertEquals(2, registry.getCounter(Metrics.RESOURCE_QUERIES));
+            Histogram histogram = registry.getHistogram("run" + Metrics.RESOURCE_QUERIES_PER_RUN_SUFFIX);
+            Assert.assertEquals(2, histogram.getCount());
+            Assert.assertEquals(2, histogram.getMax());
+            Assert.assertEquals(0, histogram.getMin());
+        } finally {
+            Metrics.setRegistry(previous);
+        }
+    }
+
+}
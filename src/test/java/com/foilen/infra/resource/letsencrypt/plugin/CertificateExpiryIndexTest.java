@@ -0,0 +1,147 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+
+public class CertificateExpiryIndexTest {
+
+    private static final long NOW = 1540000000000L;
+
+    private WebsiteCertificate createCertificate(long id, long end) {
+        WebsiteCertificate websiteCertificate = new WebsiteCertificate();
+        websiteCertificate.setInternalId(id);
+        websiteCertificate.setResourceEditorName(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME);
+        websiteCertificate.setDomainNames(new TreeSet<>(Arrays.asList("d" + id + ".example.com")));
+        websiteCertificate.setEnd(new Date(end));
+        return websiteCertificate;
+    }
+
+    @Test
+    public void testFindDue() {
+        CertificateExpiryIndex expiryIndex = new CertificateExpiryIndex();
+        Assert.assertTrue(expiryIndex.isStale(NOW));
+
+        expiryIndex.rebuild(Arrays.asList( //
+                createCertificate(1, NOW + 10 * RenewalScheduler.DAY_MS), //
+                createCertificate(2, NOW + 30 * RenewalScheduler.DAY_MS), //
+                createCertificate(3, NOW + RenewalScheduler.DEFAULT_WINDOW_START_MS) //
+        ), NOW);
+        Assert.assertFalse(expiryIndex.isStale(NOW));
+        Assert.assertEquals(3, expiryIndex.size());
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(1L, 3L)), new TreeSet<>(expiryIndex.findDue(NOW)));
+        Assert.assertEquals(NOW + 9 * RenewalScheduler.DAY_MS, expiryIndex.getNextDueTime(NOW));
+
+        // Renewed
+        expiryIndex.update(createCertificate(1, NOW + 90 * RenewalScheduler.DAY_MS));
+        Assert.assertEquals(Arrays.asList(3L), expiryIndex.findDue(NOW));
+
+        // Not managed anymore
+        WebsiteCertificate manual = createCertificate(3, NOW);
+        manual.setResourceEditorName(null);
+        expiryIndex.update(manual);
+        Assert.assertTrue(expiryIndex.findDue(NOW).isEmpty());
+        Assert.assertEquals(2, expiryIndex.size());
+
+        // Stale after a day
+        Assert.assertTrue(expiryIndex.isStale(NOW + RenewalScheduler.DAY_MS));
+    }
+
+    @Test
+    public void testHint() {
+        CertificateExpiryIndex expiryIndex = new CertificateExpiryIndex();
+        expiryIndex.rebuild(Arrays.asList( //
+                createCertificate(1, NOW + 60 * RenewalScheduler.DAY_MS), //
+                createCertificate(2, NOW) //
+        ), NOW);
+        Assert.assertEquals(Arrays.asList(2L), expiryIndex.findDue(NOW));
+
+        // Sooner and new ones are applied
+        expiryIndex.hint(createCertificate(1, NOW));
+        expiryIndex.hint(createCertificate(3, NOW));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L)), new HashSet<>(expiryIndex.findDue(NOW)));
+
+        // Later is not applied since it might be rolled back
+        expiryIndex.hint(createCertificate(2, NOW + 90 * RenewalScheduler.DAY_MS));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L)), new HashSet<>(expiryIndex.findDue(NOW)));
+
+        // The check against the store: 1 was rolled back, 2 was really renewed and 3 was never committed
+        expiryIndex.refresh(expiryIndex.findDue(NOW), Arrays.asList( //
+                createCertificate(1, NOW + 60 * RenewalScheduler.DAY_MS), //
+                createCertificate(2, NOW + 90 * RenewalScheduler.DAY_MS) //
+        ));
+        Assert.assertTrue(expiryIndex.findDue(NOW).isEmpty());
+        Assert.assertEquals(2, expiryIndex.size());
+    }
+
+    @Test
+    public void testRecordFailure() {
+        CertificateExpiryIndex expiryIndex = new CertificateExpiryIndex();
+        WebsiteCertificate websiteCertificate = createCertificate(1, NOW + RenewalScheduler.DAY_MS);
+        expiryIndex.rebuild(Arrays.asList(websiteCertificate), NOW);
+        Assert.assertEquals(Arrays.asList(1L), expiryIndex.findDue(NOW));
+
+        // Waits longer after each failure
+        LetsencryptHelper.recordFailure(websiteCertificate, NOW);
+        expiryIndex.update(websiteCertificate);
+        Assert.assertTrue(expiryIndex.findDue(NOW).isEmpty());
+        Assert.assertEquals(NOW + LetsencryptHelper.RETRY_FIRST_DELAY_MS, expiryIndex.getNextDueTime(NOW));
+
+        LetsencryptHelper.recordFailure(websiteCertificate, NOW);
+        expiryIndex.update(websiteCertificate);
+        Assert.assertEquals(NOW + 2 * LetsencryptHelper.RETRY_FIRST_DELAY_MS, expiryIndex.getNextDueTime(NOW));
+
+        for (int i = 0; i < 20; ++i) {
+            LetsencryptHelper.recordFailure(websiteCertificate, NOW);
+        }
+        expiryIndex.update(websiteCertificate);
+        Assert.assertEquals(NOW + LetsencryptHelper.RETRY_MAX_DELAY_MS, expiryIndex.getNextDueTime(NOW));
+
+        // Only the time of the last failure (before the next attempt was saved)
+        websiteCertificate.getMeta().clear();
+        websiteCertificate.getMeta().put(LetsencryptHelper.LAST_FAILURE, String.valueOf(NOW));
+        expiryIndex.update(websiteCertificate);
+        Assert.assertEquals(NOW + LetsencryptHelper.RETRY_MAX_DELAY_MS, expiryIndex.getNextDueTime(NOW));
+    }
+
+    @Test
+    public void testRefresh() {
+        CertificateExpiryIndex expiryIndex = new CertificateExpiryIndex();
+        expiryIndex.rebuild(Arrays.asList( //
+                createCertificate(1, NOW), //
+                createCertificate(2, NOW) //
+        ), NOW);
+
+        // 1 was renewed and 2 was deleted without the index knowing
+        expiryIndex.refresh(expiryIndex.findDue(NOW), Collections.singletonList(createCertificate(1, NOW + 90 * RenewalScheduler.DAY_MS)));
+        Assert.assertTrue(expiryIndex.findDue(NOW).isEmpty());
+        Assert.assertEquals(1, expiryIndex.size());
+    }
+
+    @Test
+    public void testUpdate_withoutId() {
+        CertificateExpiryIndex expiryIndex = new CertificateExpiryIndex();
+        expiryIndex.rebuild(Collections.emptyList(), NOW);
+        Assert.assertFalse(expiryIndex.isStale(NOW));
+
+        expiryIndex.update(new WebsiteCertificate());
+        Assert.assertTrue(expiryIndex.isStale(NOW));
+    }
+
+}
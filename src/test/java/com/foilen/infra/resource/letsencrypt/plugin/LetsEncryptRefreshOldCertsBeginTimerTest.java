@@ -0,0 +1,120 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+
+public class LetsEncryptRefreshOldCertsBeginTimerTest {
+
+    private static final long NOW = 1540000000000L;
+
+    private WebsiteCertificate createCertificate(String domain, long end) {
+        WebsiteCertificate websiteCertificate = new WebsiteCertificate();
+        websiteCertificate.setDomainNames(new TreeSet<>(Arrays.asList(domain, "www." + domain)));
+        websiteCertificate.setEnd(new Date(end));
+        websiteCertificate.setCaCertificate("ca");
+        return websiteCertificate;
+    }
+
+    private List<WebsiteCertificate> createCertificates(int count, long end) {
+        List<WebsiteCertificate> certificates = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            certificates.add(createCertificate("d" + i + ".example.com", end));
+        }
+        return certificates;
+    }
+
+    @Test
+    public void testPlan() {
+        LetsEncryptRefreshOldCertsBeginTimer beginTimer = new LetsEncryptRefreshOldCertsBeginTimer();
+        beginTimer.getExpiryIndex().setWindowStartMs(RenewalScheduler.DAY_MS);
+        RateLimitGovernor rateLimitGovernor = new RateLimitGovernor();
+
+        // Past their renewal window, in progress and not due yet
+        List<WebsiteCertificate> certificates = createCertificates(120, NOW + 5 * RenewalScheduler.DAY_MS);
+        WebsiteCertificate inProgress = createCertificate("progress.example.com", NOW + 5 * RenewalScheduler.DAY_MS);
+        RenewalState renewalState = new RenewalState();
+        renewalState.setStartTime(NOW - 60000);
+        renewalState.toMeta(inProgress);
+        certificates.add(inProgress);
+        certificates.add(createCertificate("later.example.com", NOW + 60 * RenewalScheduler.DAY_MS));
+
+        RenewalPlan plan = beginTimer.plan(certificates, rateLimitGovernor, NOW, RenewalScheduler.DAY_MS);
+
+        Assert.assertEquals(122, plan.getCertificates());
+        Assert.assertEquals(1, plan.getInProgress());
+        Assert.assertEquals(120, plan.getDue());
+        Assert.assertEquals(120, plan.getPlanned());
+        Assert.assertEquals(0, plan.getHeldBack());
+
+        // 50 per run and 100 per hour
+        Assert.assertEquals(3, plan.getWaves().size());
+        Assert.assertEquals(NOW, plan.getWaves().get(0).getTime());
+        Assert.assertEquals(50, plan.getWaves().get(0).getRenewals());
+        Assert.assertEquals(NOW + RenewalScheduler.DEFAULT_WAVE_INTERVAL_MS, plan.getWaves().get(1).getTime());
+        Assert.assertEquals(50, plan.getWaves().get(1).getRenewals());
+        Assert.assertEquals(NOW + RenewalScheduler.HOUR_MS, plan.getWaves().get(2).getTime());
+        Assert.assertEquals(20, plan.getWaves().get(2).getRenewals());
+        Assert.assertEquals(50, plan.getMaxWaveRenewals());
+
+        // Costs
+        Assert.assertEquals(240, plan.getDomainNames());
+        Assert.assertEquals(480, plan.getDnsEntryWrites());
+        Assert.assertEquals(240, plan.getCertificateUpdates());
+        Assert.assertEquals(4 * 120 + 3 * 240, plan.getMaxAcmeRequests());
+        Assert.assertEquals(300, plan.getNewOrdersLeftBefore());
+        Assert.assertEquals(280, plan.getNewOrdersLeftAfter());
+        Assert.assertEquals(RenewalScheduler.HOUR_MS + plan.getRenewalDurationMs(), plan.getEstimatedDurationMs());
+
+        // Nothing changed
+        Assert.assertEquals(0, beginTimer.getRenewalScheduler().getStartedInLastHour(NOW));
+        Assert.assertEquals(-1, beginTimer.getRenewalScheduler().getNextWaveTime());
+        Assert.assertEquals(RenewalScheduler.DAY_MS, beginTimer.getExpiryIndex().getWindowStartMs());
+        Assert.assertFalse(rateLimitGovernor.isChanged());
+        Assert.assertEquals(300, rateLimitGovernor.getNewOrdersLeft(NOW));
+    }
+
+    @Test
+    public void testPlan_nothingDue() {
+        LetsEncryptRefreshOldCertsBeginTimer beginTimer = new LetsEncryptRefreshOldCertsBeginTimer();
+
+        RenewalPlan plan = beginTimer.plan(createCertificates(10, NOW + 60 * RenewalScheduler.DAY_MS), new RateLimitGovernor(), NOW, RenewalScheduler.DAY_MS);
+
+        Assert.assertEquals(10, plan.getCertificates());
+        Assert.assertEquals(0, plan.getDue());
+        Assert.assertTrue(plan.getWaves().isEmpty());
+        Assert.assertEquals(0, plan.getEstimatedDurationMs());
+    }
+
+    @Test
+    public void testPlan_rateLimited() {
+        LetsEncryptRefreshOldCertsBeginTimer beginTimer = new LetsEncryptRefreshOldCertsBeginTimer();
+        RateLimitGovernor rateLimitGovernor = new RateLimitGovernor() //
+                .setNewOrdersLimit(10, 3 * RenewalScheduler.HOUR_MS);
+
+        RenewalPlan plan = beginTimer.plan(createCertificates(120, NOW + 5 * RenewalScheduler.DAY_MS), rateLimitGovernor, NOW, RenewalScheduler.HOUR_MS);
+
+        Assert.assertEquals(120, plan.getDue());
+        Assert.assertEquals(10, plan.getWaves().get(0).getRenewals());
+        Assert.assertTrue(plan.getPlanned() < 20);
+        Assert.assertEquals(120 - plan.getPlanned(), plan.getHeldBack());
+        Assert.assertEquals(0, plan.getNewOrdersLeftAfter());
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foilen.infra.plugin.core.system.fake.junits.AbstractIPPluginTest;
+import com.foilen.infra.plugin.v1.core.context.ChangesContext;
+import com.foilen.infra.plugin.v1.core.service.IPResourceService;
+import com.foilen.infra.plugin.v1.model.resource.LinkTypeConstants;
+import com.foilen.infra.resource.dns.DnsEntry;
+import com.foilen.infra.resource.dns.model.DnsEntryType;
+import com.foilen.infra.resource.letsencrypt.acme.OrderAndChallenges;
+import com.foilen.infra.resource.letsencrypt.dns.DnsPropagationVerifier;
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+import com.foilen.smalltools.tools.DateTools;
+
+/**
+ * Compares the amount of queries done on the resource store at the end of the WaitDns timer between one query per certificate and the bulk lookups of the timer, on the same
+ * certificates.
+ */
+public class LetsEncryptRefreshOldCertsWaitDnsTimerLookupBenchmarkTest extends AbstractIPPluginTest {
+
+    private static final int CERTIFICATE_COUNT = 300;
+    private static final String TAG_NAME = "letsencrypt";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LetsEncryptRefreshOldCertsWaitDnsTimerLookupBenchmarkTest.class);
+
+    private IPResourceService countingResourceService(IPResourceService resourceService, AtomicInteger queryCount) {
+        return (IPResourceService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { IPResourceService.class }, (proxy, method, args) -> {
+            if (method.getName().startsWith("resourceFind") || method.getName().startsWith("linkFind")) {
+                queryCount.incrementAndGet();
+            }
+            try {
+                return method.invoke(resourceService, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    private List<Set<String>> createCertificates() {
+        IPResourceService resourceService = getCommonServicesContext().getResourceService();
+        ChangesContext changes = new ChangesContext(resourceService);
+        List<Set<String>> allDomainNames = new ArrayList<>();
+        for (int i = 0; i < CERTIFICATE_COUNT; ++i) {
+            Set<String> domainNames = new TreeSet<>(Arrays.asList("d" + i + ".example.com", "www.d" + i + ".example.com"));
+            allDomainNames.add(domainNames);
+
+            WebsiteCertificate websiteCertificate = new WebsiteCertificate();
+            websiteCertificate.setResourceEditorName(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME);
+            websiteCertificate.setDomainNames(domainNames);
+            websiteCertificate.setThumbprint("thumbprint" + i);
+            websiteCertificate.setStart(new Date());
+            websiteCertificate.setEnd(DateTools.addDate(new Date(), Calendar.DAY_OF_YEAR, 5));
+            changes.resourceAdd(websiteCertificate);
+
+            for (String domainName : domainNames) {
+                DnsEntry dnsEntry = new DnsEntry(DnsPropagationVerifier.getChallengeTxtName(domainName), DnsEntryType.TXT, "digest" + i);
+                changes.resourceAdd(dnsEntry);
+                changes.linkAdd(websiteCertificate, LinkTypeConstants.MANAGES, dnsEntry);
+                changes.tagAdd(dnsEntry, TAG_NAME);
+            }
+        }
+        getInternalServicesContext().getInternalChangeService().changesExecute(changes);
+        return allDomainNames;
+    }
+
+    private List<CertificateRenewal> createRenewals() {
+        IPResourceService resourceService = getCommonServicesContext().getResourceService();
+        return resourceService.resourceFindAll(resourceService.createResourceQuery(WebsiteCertificate.class)).stream() //
+                .map(websiteCertificate -> {
+                    String domain = websiteCertificate.getDomainNames().iterator().next();
+                    OrderAndChallenges orderAndChallenges = new OrderAndChallenges(null, new ArrayList<>(websiteCertificate.getDomainNames()));
+                    websiteCertificate.getDomainNames().forEach(orderAndChallenges::addAlreadyValidDomain);
+                    return new CertificateRenewal(domain, orderAndChallenges).setWebsiteCertificateId(websiteCertificate.getInternalId());
+                }) //
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testLookups() {
+
+        List<Set<String>> allDomainNames = createCertificates();
+        List<CertificateRenewal> renewals = createRenewals();
+        Set<String> challengeTxtNames = allDomainNames.stream() //
+                .flatMap(it -> it.stream()) //
+                .map(DnsPropagationVerifier::getChallengeTxtName) //
+                .collect(Collectors.toSet());
+        IPResourceService resourceService = getCommonServicesContext().getResourceService();
+
+        // One query per certificate and per certificate's links
+        AtomicInteger perCertificateQueryCount = new AtomicInteger();
+        IPResourceService perCertificateResourceService = countingResourceService(resourceService, perCertificateQueryCount);
+        long perCertificateStart = System.currentTimeMillis();
+        Set<String> perCertificateDnsEntries = new HashSet<>();
+        for (Set<String> domainNames : allDomainNames) {
+            List<WebsiteCertificate> websiteCertificates = perCertificateResourceService.resourceFindAll( //
+                    perCertificateResourceService.createResourceQuery(WebsiteCertificate.class) //
+                            .addEditorEquals(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME) //
+                            .propertyEquals(WebsiteCertificate.PROPERTY_DOMAIN_NAMES, domainNames));
+            for (WebsiteCertificate websiteCertificate : websiteCertificates) {
+                perCertificateResourceService.linkFindAllByFromResourceAndLinkTypeAndToResourceClass(websiteCertificate, LinkTypeConstants.MANAGES, DnsEntry.class) //
+                        .forEach(it -> perCertificateDnsEntries.add(it.getName()));
+            }
+        }
+        long perCertificateTime = System.currentTimeMillis() - perCertificateStart;
+
+        // Bulk (what the timer does)
+        AtomicInteger bulkQueryCount = new AtomicInteger();
+        IPResourceService bulkResourceService = countingResourceService(resourceService, bulkQueryCount);
+        long bulkStart = System.currentTimeMillis();
+        Map<String, WebsiteCertificate> websiteCertificateByDomain = LetsEncryptRefreshOldCertsWaitDnsTimer.findCertificates(bulkResourceService, renewals);
+        Set<String> bulkDnsEntries = LetsEncryptRefreshOldCertsWaitDnsTimer.findChallengeDnsEntries(bulkResourceService, TAG_NAME, challengeTxtNames).stream() //
+                .map(DnsEntry::getName) //
+                .collect(Collectors.toSet());
+        long bulkTime = System.currentTimeMillis() - bulkStart;
+
+        LOGGER.info("Per certificate: {} queries in {} ms", perCertificateQueryCount.get(), perCertificateTime);
+        LOGGER.info("Bulk: {} queries in {} ms", bulkQueryCount.get(), bulkTime);
+
+        // Same result with one query for the certificates and one for the DNS entries
+        Assert.assertEquals(CERTIFICATE_COUNT, websiteCertificateByDomain.size());
+        for (CertificateRenewal renewal : renewals) {
+            Assert.assertEquals(new TreeSet<>(renewal.getOrderAndChallenges().getDomainNames()), websiteCertificateByDomain.get(renewal.getDomain()).getDomainNames());
+        }
+        Assert.assertEquals(challengeTxtNames, perCertificateDnsEntries);
+        Assert.assertEquals(perCertificateDnsEntries, bulkDnsEntries);
+        Assert.assertEquals(CERTIFICATE_COUNT * 2, perCertificateQueryCount.get());
+        Assert.assertEquals(2, bulkQueryCount.get());
+
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foilen.infra.plugin.core.system.fake.junits.AbstractIPPluginTest;
+import com.foilen.infra.plugin.v1.core.context.ChangesContext;
+import com.foilen.infra.plugin.v1.core.service.IPResourceService;
+
+public class LetsEncryptRenewalPlanTimerTest extends AbstractIPPluginTest {
+
+    @Test
+    public void testWithoutConfig() {
+
+        IPResourceService resourceService = getCommonServicesContext().getResourceService();
+        LetsEncryptRefreshOldCertsBeginTimer beginTimer = new LetsEncryptRefreshOldCertsBeginTimer();
+
+        // Empty plan
+        RenewalPlan plan = beginTimer.plan(resourceService, System.currentTimeMillis(), RenewalScheduler.DAY_MS);
+        Assert.assertEquals(0, plan.getCertificates());
+        Assert.assertEquals(0, plan.getPlanned());
+        Assert.assertTrue(plan.getWaves().isEmpty());
+
+        // The timer does not fail
+        new LetsEncryptRenewalPlanTimer(beginTimer).timerHandler(getCommonServicesContext(), new ChangesContext(resourceService), null);
+
+    }
+
+}
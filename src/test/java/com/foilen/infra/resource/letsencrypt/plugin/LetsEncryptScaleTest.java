@@ -0,0 +1,315 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foilen.infra.plugin.core.system.fake.junits.AbstractIPPluginTest;
+import com.foilen.infra.plugin.v1.core.context.ChangesContext;
+import com.foilen.infra.plugin.v1.core.service.IPResourceService;
+import com.foilen.infra.plugin.v1.model.resource.IPResource;
+import com.foilen.infra.resource.dns.DnsEntry;
+import com.foilen.infra.resource.letsencrypt.acme.AcmeServiceCache;
+import com.foilen.infra.resource.letsencrypt.acme.AcmeServiceImpl;
+import com.foilen.infra.resource.letsencrypt.acme.ExponentialBackoffPollingStrategy;
+import com.foilen.infra.resource.letsencrypt.acme.LocalAcmeServer;
+import com.foilen.infra.resource.letsencrypt.acme.PollingStrategy;
+import com.foilen.infra.resource.letsencrypt.crypt.CertificateKeys;
+import com.foilen.infra.resource.letsencrypt.crypt.KeyType;
+import com.foilen.infra.resource.letsencrypt.dns.DnsPropagationVerifier;
+import com.foilen.infra.resource.letsencrypt.dns.StubDnsResolver;
+import com.foilen.infra.resource.letsencrypt.metrics.InMemoryMetricsRegistry;
+import com.foilen.infra.resource.letsencrypt.metrics.Metrics;
+import com.foilen.infra.resource.letsencrypt.metrics.MetricsRegistry;
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+import com.foilen.smalltools.tools.DateTools;
+import com.foilen.smalltools.tools.ThreadTools;
+
+/**
+ * Runs the BeginTimer and the WaitDns timer on a fleet of certificates with spread-out expiry dates against a {@link LocalAcmeServer} and a {@link StubDnsResolver}. Reports the wall-clock
+ * time, the resource queries, the changes and the heap use of each run and fails when they go past the limits.
+ *
+ * <p>
+ * It is skipped unless -Dletsencrypt.scale.enabled=true is given. The size and the limits can be changed with system properties (e.g. -Dletsencrypt.scale.certificates=10000).
+ * </p>
+ */
+public class LetsEncryptScaleTest extends AbstractIPPluginTest {
+
+    /**
+     * Counts the changes.
+     */
+    private static class CountingChangesContext extends ChangesContext {
+
+        private int count;
+
+        public CountingChangesContext(IPResourceService resourceService) {
+            super(resourceService);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public void linkAdd(IPResource fromResource, String linkType, IPResource toResource) {
+            ++count;
+            super.linkAdd(fromResource, linkType, toResource);
+        }
+
+        @Override
+        public void resourceAdd(IPResource resource) {
+            ++count;
+            super.resourceAdd(resource);
+        }
+
+        @Override
+        public void resourceDelete(IPResource resource) {
+            ++count;
+            super.resourceDelete(resource);
+        }
+
+        @Override
+        public void resourceUpdate(IPResource resource) {
+            ++count;
+            super.resourceUpdate(resource);
+        }
+
+        @Override
+        public void resourceUpdate(IPResource previousResource, IPResource updatedResource) {
+            ++count;
+            super.resourceUpdate(previousResource, updatedResource);
+        }
+
+        @Override
+        public void tagAdd(IPResource resource, String tagName) {
+            ++count;
+            super.tagAdd(resource, tagName);
+        }
+
+    }
+
+    private static class RunReport {
+
+        private String name;
+        private long timeMs;
+        private long queries;
+        private int changes;
+        private long heapBytes;
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %8d ms %8d queries %8d changes %8d KiB heap", name, timeMs, queries, changes, heapBytes / 1024);
+        }
+
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LetsEncryptScaleTest.class);
+
+    private static final int CERTIFICATE_COUNT = Integer.getInteger("letsencrypt.scale.certificates", 1000);
+    private static final int MAX_EXPIRY_DAYS = 90;
+    private static final String TAG_NAME = "letsencrypt";
+
+    // Limits
+    private static final long MAX_BEGIN_QUERIES_FIXED = Long.getLong("letsencrypt.scale.maxBeginQueriesFixed", 10);
+    private static final long MAX_WAIT_DNS_QUERIES_PER_RUN = Long.getLong("letsencrypt.scale.maxWaitDnsQueriesPerRun", 5);
+    private static final long MAX_CHANGES_PER_RUN = Long.getLong("letsencrypt.scale.maxChangesPerRun", 20 * LetsEncryptRefreshOldCertsWaitDnsTimer.DEFAULT_CHUNK_SIZE);
+    private static final long MAX_CHANGES_PER_RENEWAL = Long.getLong("letsencrypt.scale.maxChangesPerRenewal", 20);
+    private static final long MAX_TIME_PER_RENEWAL_MS = Long.getLong("letsencrypt.scale.maxTimePerRenewalMs", 100);
+    private static final long MAX_HEAP_PER_RENEWAL_BYTES = Long.getLong("letsencrypt.scale.maxHeapPerRenewalBytes", 256 * 1024);
+    private static final int MAX_WAIT_DNS_RUNS = 1000;
+
+    private static final PollingStrategy FAST_POLLING = new ExponentialBackoffPollingStrategy(10, 100, 2.0, 0, 60000);
+
+    private LocalAcmeServer localAcmeServer;
+    private StubDnsResolver dnsResolver;
+    private volatile Map<String, Set<String>> txtsByName = new HashMap<>();
+    private MetricsRegistry previousRegistry;
+    private InMemoryMetricsRegistry metricsRegistry = new InMemoryMetricsRegistry();
+
+    @BeforeClass
+    public static void assumeEnabled() {
+        Assume.assumeTrue("The scale test is enabled with -Dletsencrypt.scale.enabled=true", Boolean.getBoolean("letsencrypt.scale.enabled"));
+    }
+
+    @After
+    public void after() {
+        AcmeServiceCache.setAcmeServiceFactory(AcmeServiceImpl::new);
+        Metrics.setRegistry(previousRegistry);
+        RateLimitGovernor.resetAll();
+        localAcmeServer.close();
+    }
+
+    @Before
+    public void before() throws Exception {
+        localAcmeServer = new LocalAcmeServer(20);
+        String directoryUrl = localAcmeServer.getDirectoryUrl();
+        AcmeServiceCache.setAcmeServiceFactory(config -> new AcmeServiceImpl(config, directoryUrl) //
+                .setChallengePollingStrategy(FAST_POLLING) //
+                .setOrderPollingStrategy(FAST_POLLING));
+
+        dnsResolver = new StubDnsResolver();
+        dnsResolver.setTxtSource(name -> txtsByName.getOrDefault(name, Collections.emptySet()));
+
+        previousRegistry = Metrics.getRegistry();
+        Metrics.setRegistry(metricsRegistry);
+    }
+
+    private void createResources() {
+        IPResourceService resourceService = getCommonServicesContext().getResourceService();
+        ChangesContext changes = new ChangesContext(resourceService);
+
+        LetsencryptConfig config = new LetsencryptConfig("scale", "admin@example.com", CertificateKeys.generate(KeyType.EC_P256).toPem(), "letsencrypt.example.com", true, TAG_NAME);
+        config.setKeyType(KeyType.EC_P256.name());
+        changes.resourceAdd(config);
+
+        // Measuring the renewals, not the rate limits
+        RateLimitGovernor.resetAll();
+        RateLimitGovernor.getGovernor(config).setNewOrdersLimit(Integer.MAX_VALUE, RateLimitGovernor.HOUR_MS);
+
+        // Spread the expiry dates on the next 90 days
+        for (int i = 0; i < CERTIFICATE_COUNT; ++i) {
+            WebsiteCertificate websiteCertificate = new WebsiteCertificate();
+            websiteCertificate.setResourceEditorName(LetsEncryptWebsiteCertificateEditor.EDITOR_NAME);
+            websiteCertificate.setDomainNames(new TreeSet<>(Arrays.asList("d" + i + ".example.com", "www.d" + i + ".example.com")));
+            websiteCertificate.setThumbprint("thumbprint" + i);
+            websiteCertificate.setCaCertificate("previousCa");
+            websiteCertificate.setStart(DateTools.addDate(new Date(), Calendar.DAY_OF_YEAR, -MAX_EXPIRY_DAYS));
+            websiteCertificate.setEnd(DateTools.addDate(new Date(), Calendar.MINUTE, 60 + (int) ((long) i * MAX_EXPIRY_DAYS * 24 * 60 / CERTIFICATE_COUNT)));
+            changes.resourceAdd(websiteCertificate);
+        }
+        getInternalServicesContext().getInternalChangeService().changesExecute(changes);
+    }
+
+    private long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private RunReport run(String name, Consumer<ChangesContext> timerRun) {
+        IPResourceService resourceService = getCommonServicesContext().getResourceService();
+        CountingChangesContext changes = new CountingChangesContext(resourceService);
+
+        RunReport report = new RunReport();
+        report.name = name;
+        long queriesBefore = metricsRegistry.getCounter(Metrics.RESOURCE_QUERIES);
+        long start = System.currentTimeMillis();
+        timerRun.accept(changes);
+        getInternalServicesContext().getInternalChangeService().changesExecute(changes);
+        report.timeMs = System.currentTimeMillis() - start;
+        report.queries = metricsRegistry.getCounter(Metrics.RESOURCE_QUERIES) - queriesBefore;
+        report.changes = changes.getCount();
+        report.heapBytes = getUsedHeap();
+
+        syncDns(resourceService);
+        LOGGER.info("{}", report);
+        return report;
+    }
+
+    /**
+     * Make the challenges in the system visible to the stub DNS resolver.
+     */
+    private void syncDns(IPResourceService resourceService) {
+        Map<String, Set<String>> nextTxtsByName = new HashMap<>();
+        for (DnsEntry dnsEntry : resourceService.resourceFindAll(resourceService.createResourceQuery(DnsEntry.class).tagAddAnd(TAG_NAME))) {
+            nextTxtsByName.computeIfAbsent(dnsEntry.getName().toLowerCase(), it -> new HashSet<>()).add(dnsEntry.getDetails());
+        }
+        txtsByName = nextTxtsByName;
+    }
+
+    @Test
+    public void testRenewalPipeline() {
+
+        createResources();
+        long heapBefore = getUsedHeap();
+        long start = System.currentTimeMillis();
+        IPResourceService resourceService = getCommonServicesContext().getResourceService();
+
+        // Begin
+        LetsEncryptRefreshOldCertsBeginTimer beginTimer = new LetsEncryptRefreshOldCertsBeginTimer() //
+                .setRenewalScheduler(new RenewalScheduler() //
+                        .setMaxPerRun(Integer.MAX_VALUE) //
+                        .setMaxPerHour(Integer.MAX_VALUE));
+        List<LetsEncryptRefreshOldCertsWaitDnsTimer> waitDnsTimers = new ArrayList<>();
+        RunReport beginReport = run("Begin", changes -> {
+            LetsEncryptRefreshOldCertsWaitDnsTimer waitDnsTimer = beginTimer.renewDueCertificates(getCommonServicesContext(), changes);
+            if (waitDnsTimer != null) {
+                waitDnsTimers.add(waitDnsTimer);
+            }
+        });
+        Assert.assertEquals("There must be renewals due with spread-out expiry dates", 1, waitDnsTimers.size());
+        LetsEncryptRefreshOldCertsWaitDnsTimer waitDnsTimer = waitDnsTimers.get(0) //
+                .setDnsPropagationVerifier(new DnsPropagationVerifier(dnsResolver)) //
+                .setDnsPollingStrategy(FAST_POLLING) //
+                .setChallengePollingStrategy(FAST_POLLING) //
+                .setOrderPollingStrategy(FAST_POLLING);
+
+        // Expected renewals (one order per renewal ; the states and challenges are saved by chunks)
+        long dueCount = localAcmeServer.getRequestCount("new-order");
+        LOGGER.info("Certificates: {} ; Renewals: {}", CERTIFICATE_COUNT, dueCount);
+        Assert.assertTrue(dueCount > 0);
+
+        // Wait DNS until done
+        List<RunReport> waitDnsReports = new ArrayList<>();
+        int runs = 0;
+        do {
+            Assert.assertTrue("The renewals are not done after " + MAX_WAIT_DNS_RUNS + " runs", ++runs <= MAX_WAIT_DNS_RUNS);
+            waitDnsReports.add(run("WaitDns-" + runs, changes -> waitDnsTimer.timerHandler(getCommonServicesContext(), changes, null)));
+            if (!waitDnsTimer.isDone()) {
+                ThreadTools.sleep(10);
+            }
+        } while (!waitDnsTimer.isDone());
+
+        long totalTimeMs = System.currentTimeMillis() - start;
+        long heapDelta = getUsedHeap() - heapBefore;
+        int totalChanges = beginReport.changes + waitDnsReports.stream().mapToInt(it -> it.changes).sum();
+        LOGGER.info("Total: {} ms ; {} changes ; heap delta {} KiB", totalTimeMs, totalChanges, heapDelta / 1024);
+        LOGGER.info("ACME requests: {}", localAcmeServer.getRequestCountByEndpoint());
+        LOGGER.info("Metrics:\n{}", metricsRegistry);
+
+        // All renewed
+        Assert.assertEquals(dueCount, localAcmeServer.getIssuedCertificates());
+        Assert.assertEquals(dueCount, metricsRegistry.getCounter(Metrics.RENEWAL_SUCCESSES));
+        Assert.assertEquals(0, resourceService.resourceFindAll(resourceService.createResourceQuery(DnsEntry.class).tagAddAnd(TAG_NAME)).size());
+
+        // Limits
+        Assert.assertTrue("Begin did " + beginReport.queries + " queries", beginReport.queries <= MAX_BEGIN_QUERIES_FIXED);
+        Assert.assertTrue("Begin did " + beginReport.changes + " changes", beginReport.changes <= MAX_CHANGES_PER_RUN);
+        for (RunReport waitDnsReport : waitDnsReports) {
+            Assert.assertTrue(waitDnsReport.name + " did " + waitDnsReport.queries + " queries", waitDnsReport.queries <= MAX_WAIT_DNS_QUERIES_PER_RUN);
+            Assert.assertTrue(waitDnsReport.name + " did " + waitDnsReport.changes + " changes", waitDnsReport.changes <= MAX_CHANGES_PER_RUN);
+        }
+        Assert.assertTrue("Did " + totalChanges + " changes", totalChanges <= MAX_CHANGES_PER_RENEWAL * dueCount);
+        Assert.assertTrue("Took " + totalTimeMs + " ms", totalTimeMs <= MAX_TIME_PER_RENEWAL_MS * dueCount);
+        Assert.assertTrue("Used " + heapDelta + " bytes more heap", heapDelta <= MAX_HEAP_PER_RENEWAL_BYTES * dueCount);
+
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foilen.infra.plugin.v1.core.context.ChangesContext;
+import com.foilen.infra.plugin.v1.model.resource.IPResource;
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+
+public class RateLimitGovernorTest {
+
+    private static final long NOW = 1540000000000L;
+
+    private WebsiteCertificate createCertificate(boolean renewal, String... domainNames) {
+        WebsiteCertificate websiteCertificate = new WebsiteCertificate();
+        websiteCertificate.setDomainNames(new TreeSet<>(Arrays.asList(domainNames)));
+        if (renewal) {
+            websiteCertificate.setCaCertificate("ca");
+        }
+        return websiteCertificate;
+    }
+
+    @Test
+    public void testDuplicateCertificates() {
+        RateLimitGovernor rateLimitGovernor = new RateLimitGovernor();
+        for (int i = 0; i < RateLimitGovernor.DEFAULT_DUPLICATE_CERTIFICATES_MAX; ++i) {
+            Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(false, "example.com", "www.example.com"), NOW));
+        }
+        Assert.assertFalse(rateLimitGovernor.tryAcquire(createCertificate(false, "www.example.com", "EXAMPLE.com"), NOW));
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(false, "example.com"), NOW));
+
+        // The renewals are exempted and do not keep a bucket
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "example.com", "www.example.com"), NOW));
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "example.org"), NOW));
+        LetsencryptConfig config = new LetsencryptConfig();
+        rateLimitGovernor.saveIfChanged(config, new ChangesContext(null), NOW);
+        Assert.assertFalse(config.getMeta().get(RateLimitGovernor.META_KEY).contains("example.org"));
+    }
+
+    @Test
+    public void testFailedValidations() {
+        RateLimitGovernor rateLimitGovernor = new RateLimitGovernor();
+        rateLimitGovernor.recordFailedValidations(Arrays.asList("www.example.com"), NOW);
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "example.com", "www.example.com"), NOW));
+
+        for (int i = 1; i < RateLimitGovernor.DEFAULT_FAILED_VALIDATIONS_MAX; ++i) {
+            rateLimitGovernor.recordFailedValidations(Arrays.asList("www.example.com"), NOW);
+        }
+        Assert.assertFalse(rateLimitGovernor.tryAcquire(createCertificate(true, "example.com", "www.example.com"), NOW));
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "example.com"), NOW));
+
+        // One validation is allowed again after a fifth of the window
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "example.com", "www.example.com"), NOW + RateLimitGovernor.HOUR_MS / 5));
+    }
+
+    @Test
+    public void testGetRegisteredDomain() {
+        Assert.assertEquals("example.com", RateLimitGovernor.getRegisteredDomain("example.com"));
+        Assert.assertEquals("example.com", RateLimitGovernor.getRegisteredDomain("a.b.EXAMPLE.com"));
+        Assert.assertEquals("example.co.uk", RateLimitGovernor.getRegisteredDomain("www.example.co.uk"));
+        Assert.assertEquals("example.com", RateLimitGovernor.getRegisteredDomain("*.example.com"));
+        Assert.assertEquals("localhost", RateLimitGovernor.getRegisteredDomain("localhost"));
+    }
+
+    @Test
+    public void testNewOrders() {
+        RateLimitGovernor rateLimitGovernor = new RateLimitGovernor() //
+                .setNewOrdersLimit(3, RateLimitGovernor.HOUR_MS);
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "d" + i + ".example.com"), NOW));
+        }
+        Assert.assertFalse(rateLimitGovernor.tryAcquire(createCertificate(true, "d3.example.com"), NOW));
+
+        // Refills over the window
+        Assert.assertFalse(rateLimitGovernor.tryAcquire(createCertificate(true, "d3.example.com"), NOW + RateLimitGovernor.HOUR_MS / 6));
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "d3.example.com"), NOW + RateLimitGovernor.HOUR_MS / 3));
+        Assert.assertFalse(rateLimitGovernor.tryAcquire(createCertificate(true, "d4.example.com"), NOW + RateLimitGovernor.HOUR_MS / 3));
+    }
+
+    @Test
+    public void testPause() {
+        RateLimitGovernor rateLimitGovernor = new RateLimitGovernor();
+        rateLimitGovernor.pauseUntil(NOW + RateLimitGovernor.DEFAULT_PAUSE_MS);
+        Assert.assertFalse(rateLimitGovernor.tryAcquire(createCertificate(true, "example.com"), NOW));
+
+        // Does not shorten it
+        rateLimitGovernor.pauseUntil(NOW + 1000);
+        Assert.assertEquals(NOW + RateLimitGovernor.DEFAULT_PAUSE_MS, rateLimitGovernor.getPausedUntil());
+
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "example.com"), NOW + RateLimitGovernor.DEFAULT_PAUSE_MS));
+    }
+
+    @Test
+    public void testRegisteredDomain() {
+        RateLimitGovernor rateLimitGovernor = new RateLimitGovernor() //
+                .setCertificatesPerRegisteredDomainLimit(2, RateLimitGovernor.WEEK_MS);
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(false, "a.example.com"), NOW));
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(false, "b.example.com"), NOW));
+        Assert.assertFalse(rateLimitGovernor.tryAcquire(createCertificate(false, "c.example.com"), NOW));
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(false, "c.example.org"), NOW));
+
+        // The renewals are exempted
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "c.example.com"), NOW));
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        List<IPResource> updated = new ArrayList<>();
+        ChangesContext changes = new ChangesContext(null) {
+            @Override
+            public void resourceUpdate(IPResource resource) {
+                updated.add(resource);
+            }
+        };
+        LetsencryptConfig config = new LetsencryptConfig();
+
+        // Nothing to save
+        RateLimitGovernor rateLimitGovernor = new RateLimitGovernor() //
+                .setNewOrdersLimit(2, RateLimitGovernor.HOUR_MS);
+        rateLimitGovernor.saveIfChanged(config, changes, NOW);
+        Assert.assertTrue(updated.isEmpty());
+
+        // Save
+        Assert.assertTrue(rateLimitGovernor.tryAcquire(createCertificate(true, "example.com"), NOW));
+        rateLimitGovernor.pauseUntil(NOW + 1000);
+        Assert.assertTrue(rateLimitGovernor.isChanged());
+        rateLimitGovernor.saveIfChanged(config, changes, NOW);
+        Assert.assertEquals(Arrays.asList(config), updated);
+        Assert.assertFalse(rateLimitGovernor.isChanged());
+        Assert.assertNotNull(config.getMeta().get(RateLimitGovernor.META_KEY));
+
+        // Load
+        RateLimitGovernor loaded = new RateLimitGovernor() //
+                .setNewOrdersLimit(2, RateLimitGovernor.HOUR_MS) //
+                .load(config);
+        Assert.assertEquals(NOW + 1000, loaded.getPausedUntil());
+        Assert.assertEquals(1.0, loaded.getTokens("orders", NOW), 0.001);
+        Assert.assertTrue(loaded.tryAcquire(createCertificate(true, "example.org"), NOW + 1000));
+        Assert.assertFalse(loaded.tryAcquire(createCertificate(true, "example.net"), NOW + 1000));
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+    Foilen Infra Resource Lets Encrypt
+    https://github.com/foilen/foilen-infra-resource-letsencrypt
+    Copyright (c) 2018 Foilen (http://foilen.com)
+
+    The MIT License
+    http://opensource.org/licenses/MIT
+
+ */
+package com.foilen.infra.resource.letsencrypt.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foilen.infra.resource.webcertificate.WebsiteCertificate;
+
+public class RenewalSchedulerTest {
+
+    private static final long NOW = 1540000000000L;
+
+    private WebsiteCertificate createCertificate(String domain, long end) {
+        WebsiteCertificate websiteCertificate = new WebsiteCertificate();
+        websiteCertificate.setDomainNames(new TreeSet<>(Arrays.asList(domain, "www." + domain)));
+        websiteCertificate.setEnd(new Date(end));
+        return websiteCertificate;
+    }
+
+    @Test
+    public void testGetSlot() {
+        RenewalScheduler renewalScheduler = new RenewalScheduler();
+        long end = NOW + 20 * RenewalScheduler.DAY_MS;
+
+        boolean differentSlots = false;
+        Long firstSlot = null;
+        for (int i = 0; i < 50; ++i) {
+            WebsiteCertificate websiteCertificate = createCertificate("d" + i + ".example.com", end);
+            long slot = renewalScheduler.getSlot(websiteCertificate);
+
+            // In the window
+            Assert.assertTrue(slot >= end - RenewalScheduler.DEFAULT_WINDOW_START_MS);
+            Assert.assertTrue(slot < end - RenewalScheduler.DEFAULT_WINDOW_END_MS);
+
+            // Deterministic
+            Assert.assertEquals(slot, renewalScheduler.getSlot(createCertificate("d" + i + ".example.com", end)));
+            Assert.assertEquals(slot, new RenewalScheduler().getSlot(websiteCertificate));
+
+            // Spread
+            if (firstSlot == null) {
+                firstSlot = slot;
+            } else if (firstSlot != slot) {
+                differentSlots = true;
+            }
+        }
+        Assert.assertTrue(differentSlots);
+    }
+
+    @Test
+    public void testPlanNextWave() {
+        RenewalScheduler renewalScheduler = new RenewalScheduler();
+
+        // Nothing left
+        Assert.assertEquals(-1, renewalScheduler.planNextWave(new ArrayList<>(), NOW, RenewalScheduler.DAY_MS));
+
+        // Some are due (limits reached)
+        List<WebsiteCertificate> remaining = Arrays.asList(createCertificate("example.com", NOW + RenewalScheduler.DAY_MS));
+        Assert.assertEquals(RenewalScheduler.DEFAULT_WAVE_INTERVAL_MS, renewalScheduler.planNextWave(remaining, NOW, RenewalScheduler.DAY_MS));
+
+        // Already planned
+        Assert.assertEquals(-1, renewalScheduler.planNextWave(remaining, NOW + 60000, RenewalScheduler.DAY_MS));
+
+        // The planned one is passed
+        Assert.assertEquals(RenewalScheduler.DEFAULT_WAVE_INTERVAL_MS, renewalScheduler.planNextWave(remaining, NOW + RenewalScheduler.DEFAULT_WAVE_INTERVAL_MS, RenewalScheduler.DAY_MS));
+    }
+
+    @Test
+    public void testPlanNextWave_afterHorizon() {
+        RenewalScheduler renewalScheduler = new RenewalScheduler() //
+                .setWindowStartMs(RenewalScheduler.DAY_MS * 10) //
+                .setWindowEndMs(RenewalScheduler.DAY_MS * 10);
+
+        List<WebsiteCertificate> remaining = Arrays.asList(createCertificate("example.com", NOW + RenewalScheduler.DAY_MS * 12));
+        Assert.assertEquals(-1, renewalScheduler.planNextWave(remaining, NOW, RenewalScheduler.DAY_MS));
+    }
+
+    @Test
+    public void testSelectDue() {
+        RenewalScheduler renewalScheduler = new RenewalScheduler() //
+                .setMaxPerRun(3) //
+                .setMaxPerHour(5);
+
+        // All past their window
+        List<WebsiteCertificate> certificates = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            certificates.add(createCertificate("d" + i + ".example.com", NOW + (10 - i) * 60000));
+        }
+        // Not in its slot yet
+        certificates.add(createCertificate("later.example.com", NOW + RenewalScheduler.DAY_MS * 30));
+
+        // Limited per run ; most urgent first
+        List<WebsiteCertificate> due = renewalScheduler.selectDue(certificates, NOW);
+        Assert.assertEquals(3, due.size());
+        Assert.assertEquals(certificates.get(9), due.get(0));
+        Assert.assertEquals(certificates.get(8), due.get(1));
+        Assert.assertEquals(certificates.get(7), due.get(2));
+        Assert.assertEquals(3, renewalScheduler.getStartedInLastHour(NOW));
+
+        // Limited per hour
+        certificates.removeAll(due);
+        Assert.assertEquals(2, renewalScheduler.selectDue(certificates, NOW + 60000).size());
+        Assert.assertEquals(0, renewalScheduler.selectDue(certificates, NOW + 120000).size());
+
+        // Next hour
+        Assert.assertEquals(3, renewalScheduler.selectDue(certificates, NOW + RenewalScheduler.HOUR_MS).size());
+        Assert.assertEquals(5, renewalScheduler.getStartedInLastHour(NOW + RenewalScheduler.HOUR_MS));
+    }
+
+}